@@ -10,6 +10,11 @@ Grant select on bookGenre to selectrole;
 Grant select on member to selectrole;
 Grant select on copy to selectrole;
 Grant select on memberCopy to selectrole;
+Grant select on holdQueue to selectrole;
+Grant select on loanHistory to selectrole;
+Grant select on bookCirculation to selectrole;
+Grant select on genreCirculation to selectrole;
+Grant select on memberCirculation to selectrole;
 Alter role selectrole add member member_user;
 Alter role selectrole add member employee_user;
 Alter role selectrole add member curator_user;
@@ -20,6 +25,8 @@ Grant execute to curator_user;
 
 Create role checkoutrole;
 Grant insert, update, delete on memberCopy to checkoutrole;
+Grant insert, update, delete on holdQueue to checkoutrole;
+Grant insert on loanHistory to checkoutrole;
 Alter role checkoutrole add member member_user;
 Alter role checkoutrole add member employee_user;
 Alter role checkoutrole add member curator_user;
@@ -40,32 +47,128 @@ Alter role membermanagementrole add member curator_user;
 
 
 --A lot of our stored procedures used DML, we have included them below
-CREATE OR ALTER  PROCEDURE checkOutBook @memID int, @bookID int  
-AS  
-BEGIN   
-	SET NOCOUNT ON   
-	INSERT INTO MemberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)    
-	VALUES (@memID, 	(SELECT TOP 1 copyID FROM Copy 	WHERE bookID = @bookID AND copyID NOT IN 	 
-	(SELECT copyID FROM MemberCopy  	WHERE memCopyStatus = 'checkedOut' OR memCopyStatus = 'held')),
-	'checkedOut', GETDATE(), DATEADD(day, 14, GETDATE()))  END  
+CREATE OR ALTER PROCEDURE countCirculation @memID int, @bookID int, @status varchar(10), @started bit
+AS
+BEGIN
+	SET NOCOUNT ON
+	--keeps the circulation counters current in the caller's transaction, so the stats report only reads counters and
+	--never aggregates memberCopy or loanHistory; @started is 1 when a loan or hold starts and 0 when it ends
+	--the counters are upserted under a key-range lock, so two desks can't both insert the first row for a month
+	DECLARE @month date = DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1);
+	DECLARE @loans int = CASE WHEN @status = 'checkedOut' THEN 1 ELSE 0 END;
+	DECLARE @holds int = 1 - @loans;
+	IF @started = 1
+	BEGIN
+		UPDATE bookCirculation WITH (UPDLOCK, SERIALIZABLE) SET loans = loans + @loans, holds = holds + @holds
+		WHERE monthStart = @month AND bookID = @bookID;
+		IF @@ROWCOUNT = 0
+		BEGIN
+			INSERT INTO bookCirculation (monthStart, bookID, loans, holds) VALUES (@month, @bookID, @loans, @holds);
+		END
+		UPDATE gc SET loans = gc.loans + @loans, holds = gc.holds + @holds
+		FROM genreCirculation gc WITH (UPDLOCK, SERIALIZABLE) JOIN bookGenre bg ON bg.genreID = gc.genreID
+		WHERE gc.monthStart = @month AND bg.bookID = @bookID;
+		INSERT INTO genreCirculation (monthStart, genreID, loans, holds)
+		SELECT @month, bg.genreID, @loans, @holds FROM bookGenre bg
+		WHERE bg.bookID = @bookID
+		AND NOT EXISTS (SELECT 1 FROM genreCirculation gc WITH (UPDLOCK, SERIALIZABLE) WHERE gc.monthStart = @month AND gc.genreID = bg.genreID);
+	END
+	DECLARE @change int = CASE WHEN @started = 1 THEN 1 ELSE -1 END;
+	UPDATE memberCirculation WITH (UPDLOCK, SERIALIZABLE)
+	SET activeLoans = activeLoans + @loans * @change, activeHolds = activeHolds + @holds * @change,
+		totalLoans = totalLoans + @loans * @started, lastActivity = CAST(GETDATE() AS date)
+	WHERE memberID = @memID;
+	IF @@ROWCOUNT = 0
+	BEGIN
+		INSERT INTO memberCirculation (memberID, activeLoans, activeHolds, totalLoans, lastActivity)
+		VALUES (@memID, @loans * @started, @holds * @started, @loans * @started, CAST(GETDATE() AS date));
+	END
+END
 GO
 
-CREATE OR ALTER   PROCEDURE checkoutCopy @memID int, @copyID int  
-AS  
+CREATE OR ALTER PROCEDURE checkOutBook @memID int, @bookID int
+AS
 BEGIN
-	SET NOCOUNT ON   
-	DELETE FROM MemberCopy WHERE memberID = @memID AND copyID = @copyID;  
+	SET NOCOUNT ON
+	--pick a free copy by seeking on IX_copy_book and UX_memberCopy_copy instead of scanning memberCopy
+	--READPAST skips copies another desk is allocating right now, and UPDLOCK keeps the chosen copy locked
+	--until this transaction commits, so two desks can never be handed the same copy
+	DECLARE @copyID int;
+	SELECT TOP 1 @copyID = c.copyID FROM copy c WITH (UPDLOCK, READPAST, ROWLOCK)
+	WHERE c.bookID = @bookID AND NOT EXISTS (SELECT 1 FROM memberCopy mc WHERE mc.copyID = c.copyID)
+	ORDER BY c.copyID;
+	IF @copyID IS NULL
+	BEGIN
+		THROW 50001, 'No copy of this book is available.', 1;
+	END
+	INSERT INTO MemberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)
+	VALUES (@memID, @copyID, 'checkedOut', GETDATE(), DATEADD(day, 14, GETDATE()))
+	EXEC countCirculation @memID, @bookID, 'checkedOut', 1;
 END
 GO
 
-CREATE OR ALTER PROCEDURE holdBook @memID int, @bookID int  
+CREATE OR ALTER PROCEDURE checkoutCopy @memID int, @copyID int
 AS
 BEGIN
 	SET NOCOUNT ON
-	INSERT INTO MemberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)    
-	VALUES (@memID, 	(SELECT TOP 1 copyID FROM Copy 	WHERE bookID = @bookID AND copyID NOT IN 	 
-	(SELECT copyID FROM MemberCopy  	WHERE memCopyStatus = 'checkedOut' OR memCopyStatus = 'held'))   
-	, 'held', GETDATE(), DATEADD(day, 14, GETDATE()))  
+	DECLARE @bookID int = (SELECT bookID FROM copy WHERE copyID = @copyID);
+	--a copy the member has on hold becomes their loan; the hold ends here, so it moves to loanHistory in the same
+	--statement like a return, and reconcileBookCirculation still counts it as a hold in the month it started
+	UPDATE memberCopy SET memCopyStatus = 'checkedOut', createdDate = GETDATE(), expiryDate = DATEADD(day, 14, GETDATE())
+	OUTPUT deleted.memberID, deleted.copyID, @bookID, deleted.memCopyStatus, deleted.createdDate, deleted.expiryDate,
+		CAST(GETDATE() AS date), 'collected'
+	INTO loanHistory (memberID, copyID, bookID, memCopyStatus, createdDate, expiryDate, endedDate, endReason)
+	WHERE memberID = @memID AND copyID = @copyID AND memCopyStatus = 'held';
+	IF @@ROWCOUNT = 1
+	BEGIN
+		EXEC countCirculation @memID, @bookID, 'held', 0;
+		EXEC countCirculation @memID, @bookID, 'checkedOut', 1;
+		RETURN;
+	END
+	--any other copy has to be free, and it is locked the way checkOutBook locks the copy it picks, so two desks
+	--checking out the same copy can't both see it free
+	IF NOT EXISTS (SELECT 1 FROM copy c WITH (UPDLOCK, READPAST, ROWLOCK)
+		WHERE c.copyID = @copyID AND NOT EXISTS (SELECT 1 FROM memberCopy mc WHERE mc.copyID = c.copyID))
+	BEGIN
+		THROW 50001, 'This copy is not available.', 1;
+	END
+	INSERT INTO MemberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)
+	VALUES (@memID, @copyID, 'checkedOut', GETDATE(), DATEADD(day, 14, GETDATE()))
+	EXEC countCirculation @memID, @bookID, 'checkedOut', 1;
+END
+GO
+
+CREATE OR ALTER PROCEDURE holdBook @memID int, @bookID int, @queuePosition int = 0 OUTPUT
+AS
+BEGIN
+	SET NOCOUNT ON
+	--holds and returns of the same book take turns on this lock until they commit, so a copy can't come back
+	--between this hold finding every copy taken and the member joining the queue
+	DECLARE @resource nvarchar(255) = 'holdQueue:' + CAST(@bookID AS nvarchar(10));
+	EXEC sp_getapplock @Resource = @resource, @LockMode = 'Exclusive', @LockOwner = 'Transaction';
+	--same copy allocation as checkOutBook, except it waits for copies other desks are allocating instead of skipping
+	--them, so a checkout that rolls back can't leave a free copy behind while this member queues for it
+	DECLARE @copyID int;
+	SELECT TOP 1 @copyID = c.copyID FROM copy c WITH (UPDLOCK, ROWLOCK)
+	WHERE c.bookID = @bookID AND NOT EXISTS (SELECT 1 FROM memberCopy mc WHERE mc.copyID = c.copyID)
+	ORDER BY c.copyID;
+	IF @copyID IS NOT NULL
+	BEGIN
+		INSERT INTO MemberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)
+		VALUES (@memID, @copyID, 'held', GETDATE(), DATEADD(day, 14, GETDATE()))
+		EXEC countCirculation @memID, @bookID, 'held', 1;
+		SET @queuePosition = 0;
+		RETURN;
+	END
+	--every copy is taken, so the member waits in the book's queue and returnCopy holds the next copy back for them
+	--unless they already have a copy of it or are waiting already
+	IF EXISTS (SELECT 1 FROM holdQueue WHERE memberID = @memID AND bookID = @bookID)
+	OR EXISTS (SELECT 1 FROM memberCopy mc JOIN copy c ON c.copyID = mc.copyID WHERE mc.memberID = @memID AND c.bookID = @bookID)
+	BEGIN
+		THROW 50002, 'This member already has a copy of this book or is waiting for one.', 1;
+	END
+	INSERT INTO holdQueue (memberID, bookID, queuedDate) VALUES (@memID, @bookID, GETDATE());
+	SELECT @queuePosition = COUNT(*) FROM holdQueue WHERE bookID = @bookID AND queueID <= SCOPE_IDENTITY();
 END
 GO
 
@@ -75,6 +178,8 @@ BEGIN
 	SET NOCOUNT ON
 	INSERT INTO MemberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)
 	VALUES (@memID, @copyID, 'held', GETDATE(), DATEADD(day, 14, GETDATE()))
+	DECLARE @bookID int = (SELECT bookID FROM copy WHERE copyID = @copyID);
+	EXEC countCirculation @memID, @bookID, 'held', 1;
 END
 GO
 
@@ -94,21 +199,314 @@ BEGIN
 END
 GO
 
-CREATE OR ALTER PROCEDURE searchTitle @title varchar(255)  
+CREATE OR ALTER PROCEDURE getQueuedHolds @memID int
 AS
 BEGIN
 	SET NOCOUNT ON
-	SELECT * FROM Book WHERE title LIKE '%' + @title + '%'  
+	--the books a member is waiting for and their place in each queue
+	SELECT q.bookID, b.title, q.queuedDate,
+		(SELECT COUNT(*) FROM holdQueue ahead WHERE ahead.bookID = q.bookID AND ahead.queueID <= q.queueID) AS queuePosition
+	FROM holdQueue q JOIN book b ON b.bookID = q.bookID
+	WHERE q.memberID = @memID
+	ORDER BY q.queueID
 END
 GO
 
+CREATE OR ALTER PROCEDURE getMemberHistory @memID int, @afterID int = 0, @pageSize int = 50
+AS
+BEGIN
+	SET NOCOUNT ON
+	--a member's past loans and holds, newest first, seeking IX_loanHistory_member
+	--keyset pagination going backwards, each call returns the page of entries older than @afterID (0 for the newest)
+	SELECT TOP (@pageSize) h.historyID, h.memberID, h.copyID, h.bookID, b.title, h.memCopyStatus, h.createdDate, h.expiryDate,
+		h.endedDate, h.endReason
+	FROM loanHistory h LEFT JOIN book b ON b.bookID = h.bookID
+	WHERE h.memberID = @memID AND h.historyID < ISNULL(NULLIF(@afterID, 0), 2147483647)
+	ORDER BY h.historyID DESC
+END
+GO
 
-CREATE OR ALTER PROCEDURE searchAuthor @author varchar(255)  
-AS  
+CREATE OR ALTER PROCEDURE getBookHistory @bookID int, @afterID int = 0, @pageSize int = 50
+AS
 BEGIN
-	SET NOCOUNT ON   
-	SELECT * FROM Book b   JOIN BookAuthor ba ON b.bookID = ba.bookID   JOIN AUTHOR a ON ba.authorID = a.authorID   
-	WHERE a.lastName LIKE '%'+@author+'%' OR a.firstName LIKE '%'+@author+'%'
+	SET NOCOUNT ON
+	--everyone who has had a copy of a book, newest first, paged like getMemberHistory
+	SELECT TOP (@pageSize) h.historyID, h.memberID, h.copyID, h.bookID, b.title, h.memCopyStatus, h.createdDate, h.expiryDate,
+		h.endedDate, h.endReason
+	FROM loanHistory h LEFT JOIN book b ON b.bookID = h.bookID
+	WHERE h.bookID = @bookID AND h.historyID < ISNULL(NULLIF(@afterID, 0), 2147483647)
+	ORDER BY h.historyID DESC
+END
+GO
+
+CREATE OR ALTER PROCEDURE getTopBooksThisMonth @top int = 10
+AS
+BEGIN
+	SET NOCOUNT ON
+	--most borrowed books this month, from the counters only
+	SELECT TOP (@top) bc.bookID, b.title, bc.loans, bc.holds
+	FROM bookCirculation bc JOIN book b ON b.bookID = bc.bookID
+	WHERE bc.monthStart = DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1)
+	ORDER BY bc.loans DESC, bc.bookID
+END
+GO
+
+CREATE OR ALTER PROCEDURE getGenreLoansThisMonth
+AS
+BEGIN
+	SET NOCOUNT ON
+	SELECT gc.genreID, g.genreName, gc.loans, gc.holds
+	FROM genreCirculation gc JOIN genre g ON g.genreID = gc.genreID
+	WHERE gc.monthStart = DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1)
+	ORDER BY gc.loans DESC, g.genreName
+END
+GO
+
+CREATE OR ALTER PROCEDURE getActiveMembers @days int = 30
+AS
+BEGIN
+	SET NOCOUNT ON
+	--members with a loan or hold right now, and members who borrowed, held or returned anything in the last @days days
+	SELECT SUM(CASE WHEN activeLoans + activeHolds > 0 THEN 1 ELSE 0 END) AS membersWithLoansOrHolds,
+		SUM(CASE WHEN lastActivity >= DATEADD(day, -@days, CAST(GETDATE() AS date)) THEN 1 ELSE 0 END) AS recentlyActiveMembers,
+		SUM(activeLoans) AS activeLoans, SUM(activeHolds) AS activeHolds
+	FROM memberCirculation
+END
+GO
+
+CREATE OR ALTER PROCEDURE reconcileBookCirculation @month date, @afterBookID int, @toBookID int
+AS
+BEGIN
+	SET NOCOUNT ON
+	--rebuilds one month's counters for the books in (@afterBookID, @toBookID] from memberCopy and loanHistory
+	--the counter rows are locked first so desks counting these books wait for the batch instead of being lost in it,
+	--and the batch gives way if that deadlocks with a desk, the job retries it
+	SET DEADLOCK_PRIORITY LOW;
+	DECLARE @nextMonth date = DATEADD(month, 1, @month);
+	DELETE FROM bookCirculation WITH (SERIALIZABLE) WHERE monthStart = @month AND bookID > @afterBookID AND bookID <= @toBookID;
+	INSERT INTO bookCirculation (monthStart, bookID, loans, holds)
+	SELECT @month, started.bookID, SUM(CASE WHEN started.memCopyStatus = 'checkedOut' THEN 1 ELSE 0 END),
+		SUM(CASE WHEN started.memCopyStatus = 'held' THEN 1 ELSE 0 END)
+	FROM (
+		SELECT c.bookID, mc.memCopyStatus FROM memberCopy mc JOIN copy c ON c.copyID = mc.copyID
+		WHERE c.bookID > @afterBookID AND c.bookID <= @toBookID AND mc.createdDate >= @month AND mc.createdDate < @nextMonth
+		UNION ALL
+		--loans that started this month ended this month or later, which lets the other years' partitions be skipped
+		SELECT h.bookID, h.memCopyStatus FROM loanHistory h
+		WHERE h.bookID > @afterBookID AND h.bookID <= @toBookID AND h.endedDate >= @month
+		AND h.createdDate >= @month AND h.createdDate < @nextMonth
+	) started
+	GROUP BY started.bookID
+END
+GO
+
+CREATE OR ALTER PROCEDURE reconcileGenreCirculation @month date
+AS
+BEGIN
+	SET NOCOUNT ON
+	--genre counters are the sums of their books' counters, so this runs after every book batch of the month
+	SET DEADLOCK_PRIORITY LOW;
+	DELETE FROM genreCirculation WITH (SERIALIZABLE) WHERE monthStart = @month;
+	INSERT INTO genreCirculation (monthStart, genreID, loans, holds)
+	SELECT @month, bg.genreID, SUM(bc.loans), SUM(bc.holds)
+	FROM bookCirculation bc JOIN bookGenre bg ON bg.bookID = bc.bookID
+	WHERE bc.monthStart = @month
+	GROUP BY bg.genreID
+END
+GO
+
+CREATE OR ALTER PROCEDURE reconcileMemberCirculation @afterMemberID int, @toMemberID int
+AS
+BEGIN
+	SET NOCOUNT ON
+	SET DEADLOCK_PRIORITY LOW;
+	DELETE FROM memberCirculation WITH (SERIALIZABLE) WHERE memberID > @afterMemberID AND memberID <= @toMemberID;
+	INSERT INTO memberCirculation (memberID, activeLoans, activeHolds, totalLoans, lastActivity)
+	SELECT m.memberID,
+		(SELECT COUNT(*) FROM memberCopy mc WHERE mc.memberID = m.memberID AND mc.memCopyStatus = 'checkedOut'),
+		(SELECT COUNT(*) FROM memberCopy mc WHERE mc.memberID = m.memberID AND mc.memCopyStatus = 'held'),
+		(SELECT COUNT(*) FROM memberCopy mc WHERE mc.memberID = m.memberID AND mc.memCopyStatus = 'checkedOut')
+			+ (SELECT COUNT(*) FROM loanHistory h WHERE h.memberID = m.memberID AND h.memCopyStatus = 'checkedOut'),
+		(SELECT MAX(activity) FROM (
+			SELECT MAX(mc.createdDate) AS activity FROM memberCopy mc WHERE mc.memberID = m.memberID
+			UNION ALL SELECT MAX(h.endedDate) FROM loanHistory h WHERE h.memberID = m.memberID
+		) dates)
+	FROM member m
+	WHERE m.memberID > @afterMemberID AND m.memberID <= @toMemberID
+	--members who have never borrowed or held anything don't get a row
+	AND (EXISTS (SELECT 1 FROM memberCopy mc WHERE mc.memberID = m.memberID)
+		OR EXISTS (SELECT 1 FROM loanHistory h WHERE h.memberID = m.memberID))
+END
+GO
+
+CREATE OR ALTER PROCEDURE addLoanHistoryYear @year int
+AS
+BEGIN
+	SET NOCOUNT ON
+	--loanHistory has one partition per year of endedDate, run this once a year ahead of time to add the next one
+	--old years can then be archived or dropped a whole partition at a time without touching the rest
+	DECLARE @boundary date = DATEFROMPARTS(@year, 1, 1);
+	IF NOT EXISTS (SELECT 1 FROM sys.partition_range_values v JOIN sys.partition_functions f ON f.function_id = v.function_id
+		WHERE f.name = 'pfLoanHistoryYear' AND CAST(v.value AS date) = @boundary)
+	BEGIN
+		ALTER PARTITION SCHEME psLoanHistoryYear NEXT USED [PRIMARY];
+		ALTER PARTITION FUNCTION pfLoanHistoryYear() SPLIT RANGE (@boundary);
+	END
+END
+GO
+
+CREATE OR ALTER PROCEDURE leaveHoldQueue @memID int, @bookID int
+AS
+BEGIN
+	SET NOCOUNT ON
+	DELETE FROM holdQueue WHERE memberID = @memID AND bookID = @bookID
+	IF @@ROWCOUNT = 0
+	BEGIN
+		THROW 50003, 'This member is not waiting for this book.', 1;
+	END
+END
+GO
+
+CREATE OR ALTER PROCEDURE getOverdueLoans @afterExpiry date = '19000101', @afterMemberID int = 0, @afterCopyID int = 0, @pageSize int = 1000
+AS
+BEGIN
+	SET NOCOUNT ON
+	--every checked out copy past its expiry date, oldest first, seeking IX_memberCopy_status_expiry instead of scanning memberCopy
+	--the index is ordered by expiryDate and then the primary key, so each call returns the next chunk after the
+	--(expiryDate, memberID, copyID) of the last row of the previous one without sorting
+	SELECT TOP (@pageSize) mc.memberID, m.memFirstName, m.memLastName, mc.copyID, c.bookID, b.title, mc.createdDate, mc.expiryDate,
+		DATEDIFF(day, mc.expiryDate, CAST(GETDATE() AS date)) AS daysOverdue
+	FROM memberCopy mc
+	JOIN member m ON m.memberID = mc.memberID
+	JOIN copy c ON c.copyID = mc.copyID
+	JOIN book b ON b.bookID = c.bookID
+	WHERE mc.memCopyStatus = 'checkedOut' AND mc.expiryDate < CAST(GETDATE() AS date) AND mc.expiryDate >= @afterExpiry
+	AND (mc.expiryDate > @afterExpiry OR mc.memberID > @afterMemberID OR (mc.memberID = @afterMemberID AND mc.copyID > @afterCopyID))
+	ORDER BY mc.expiryDate, mc.memberID, mc.copyID
+END
+GO
+
+CREATE OR ALTER PROCEDURE searchTitle @title varchar(255), @afterID int = 0, @pageSize int = 50
+AS
+BEGIN
+	SET NOCOUNT ON
+	--keyset pagination, each call returns the next page of books after @afterID
+	SELECT TOP (@pageSize) * FROM Book WHERE title LIKE '%' + @title + '%' AND bookID > @afterID
+	ORDER BY bookID
+END
+GO
+
+
+CREATE OR ALTER PROCEDURE searchAuthor @author varchar(255), @afterID int = 0, @pageSize int = 50
+AS
+BEGIN
+	SET NOCOUNT ON
+	SELECT TOP (@pageSize) b.* FROM Book b
+	WHERE b.bookID > @afterID AND EXISTS (
+		SELECT 1 FROM BookAuthor ba JOIN AUTHOR a ON ba.authorID = a.authorID
+		WHERE ba.bookID = b.bookID AND (a.lastName LIKE '%'+@author+'%' OR a.firstName LIKE '%'+@author+'%')
+	)
+	ORDER BY b.bookID
+END
+GO
+
+CREATE OR ALTER PROCEDURE searchKeywords @keywords varchar(max), @afterID int = 0, @pageSize int = 50
+AS
+BEGIN
+	SET NOCOUNT ON
+	--keywords are passed as one comma separated list so every search uses the same statement and plan
+	DECLARE @terms TABLE (word varchar(255) primary key);
+	INSERT INTO @terms SELECT DISTINCT LTRIM(RTRIM(value)) FROM STRING_SPLIT(@keywords, ',') WHERE LTRIM(RTRIM(value)) <> '';
+	DECLARE @termCount int = @@ROWCOUNT;
+	--a book matches when it has every one of the keywords
+	SELECT TOP (@pageSize) b.* FROM book b JOIN (
+		SELECT k.bookID FROM keyword k JOIN @terms t ON k.word = t.word
+		WHERE k.bookID > @afterID
+		GROUP BY k.bookID
+		HAVING COUNT(*) = @termCount
+	) matches ON b.bookID = matches.bookID
+	ORDER BY b.bookID
+END
+GO
+
+CREATE OR ALTER PROCEDURE searchGenres @genres varchar(max), @afterID int = 0, @pageSize int = 50
+AS
+BEGIN
+	SET NOCOUNT ON
+	DECLARE @terms TABLE (genreName varchar(255) COLLATE SQL_Latin1_General_CP1_CI_AS primary key);
+	INSERT INTO @terms SELECT DISTINCT LTRIM(RTRIM(value)) FROM STRING_SPLIT(@genres, ',') WHERE LTRIM(RTRIM(value)) <> '';
+	DECLARE @termCount int = @@ROWCOUNT;
+	--a book matches when it is in every one of the genres
+	SELECT TOP (@pageSize) b.* FROM book b JOIN (
+		SELECT bg.bookID FROM @terms t
+		JOIN genre g ON g.genreName = t.genreName
+		JOIN bookGenre bg ON bg.genreID = g.genreID
+		WHERE bg.bookID > @afterID
+		GROUP BY bg.bookID
+		HAVING COUNT(*) = @termCount
+	) matches ON b.bookID = matches.bookID
+	ORDER BY b.bookID
+END
+GO
+
+CREATE OR ALTER PROCEDURE booksByIDs @bookIDs varchar(max)
+AS
+BEGIN
+	SET NOCOUNT ON
+	--used when the matching book IDs were already found in memory, the IDs are passed as one comma separated list
+	SELECT b.* FROM book b JOIN (
+		SELECT DISTINCT CAST(value AS int) AS bookID FROM STRING_SPLIT(@bookIDs, ',') WHERE value <> ''
+	) ids ON b.bookID = ids.bookID
+	ORDER BY b.bookID
+END
+GO
+
+CREATE OR ALTER PROCEDURE rankedBooksByIDs @bookIDs varchar(max)
+AS
+BEGIN
+	SET NOCOUNT ON
+	--like booksByIDs, but in the order the IDs are listed, for rankings found in memory
+	--STRING_SPLIT doesn't give each value's position before SQL Server 2022, so it is found with CHARINDEX;
+	--the lists are one page of IDs
+	SELECT b.* FROM book b JOIN (
+		SELECT DISTINCT CAST(value AS int) AS bookID FROM STRING_SPLIT(@bookIDs, ',') WHERE value <> ''
+	) ids ON b.bookID = ids.bookID
+	ORDER BY CHARINDEX(',' + CAST(b.bookID AS varchar(11)) + ',', ',' + @bookIDs + ',')
+END
+GO
+
+CREATE OR ALTER PROCEDURE booksByAuthorIDs @authorIDs varchar(max), @afterID int = 0, @pageSize int = 50
+AS
+BEGIN
+	SET NOCOUNT ON
+	SELECT TOP (@pageSize) b.* FROM book b
+	WHERE b.bookID > @afterID AND EXISTS (
+		SELECT 1 FROM bookAuthor ba JOIN STRING_SPLIT(@authorIDs, ',') ids ON ba.authorID = CAST(ids.value AS int)
+		WHERE ba.bookID = b.bookID AND ids.value <> ''
+	)
+	ORDER BY b.bookID
+END
+GO
+
+CREATE OR ALTER PROCEDURE authorsByIDs @authorIDs varchar(max)
+AS
+BEGIN
+	SET NOCOUNT ON
+	SELECT a.* FROM author a JOIN (
+		SELECT DISTINCT CAST(value AS int) AS authorID FROM STRING_SPLIT(@authorIDs, ',') WHERE value <> ''
+	) ids ON a.authorID = ids.authorID
+	ORDER BY a.authorID
+END
+GO
+
+CREATE OR ALTER PROCEDURE membersByIDs @memberIDs varchar(max)
+AS
+BEGIN
+	SET NOCOUNT ON
+	SELECT m.* FROM member m JOIN (
+		SELECT DISTINCT CAST(value AS int) AS memberID FROM STRING_SPLIT(@memberIDs, ',') WHERE value <> ''
+	) ids ON m.memberID = ids.memberID
+	ORDER BY m.memberID
 END
 GO
 
@@ -120,12 +518,13 @@ BEGIN
 END  
 GO
 
-CREATE OR ALTER PROCEDURE findMemberByName @name varchar(255)  
+CREATE OR ALTER PROCEDURE findMemberByName @name varchar(255), @afterID int = 0, @pageSize int = 50
 AS
 BEGIN
-	SET NOCOUNT ON   
-	SELECT * FROM member   
-	WHERE memFirstName like '%'+@name+'%' OR memLastName like '%'+@name+'%'  
+	SET NOCOUNT ON
+	SELECT TOP (@pageSize) * FROM member
+	WHERE (memFirstName like '%'+@name+'%' OR memLastName like '%'+@name+'%') AND memberID > @afterID
+	ORDER BY memberID
 END
 GO
 
@@ -138,29 +537,87 @@ BEGIN
 END
 GO
 
-CREATE OR ALTER PROCEDURE removeMember @memID int  
-AS  
-BEGIN   
-	SET NOCOUNT ON   
-	DELETE FROM memberCopy where memberID = @memID   
-	DELETE FROM member where memberID = @memID  
+CREATE OR ALTER PROCEDURE holdForNextInQueue @copyID int, @bookID int, @heldForMemberID int OUTPUT
+AS
+BEGIN
+	SET NOCOUNT ON
+	--hands a free copy to the member who has waited longest for its book, in the caller's transaction
+	--callers hold the book's holdQueue lock, so nobody joins or leaves the queue meanwhile
+	SET @heldForMemberID = 0;
+	DECLARE @next TABLE (memberID int);
+	WITH nextInQueue AS (SELECT TOP 1 memberID FROM holdQueue WHERE bookID = @bookID ORDER BY queueID)
+	DELETE FROM nextInQueue OUTPUT deleted.memberID INTO @next;
+	SELECT @heldForMemberID = memberID FROM @next;
+	IF @heldForMemberID <> 0
+	BEGIN
+		INSERT INTO MemberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)
+		VALUES (@heldForMemberID, @copyID, 'held', GETDATE(), DATEADD(day, 14, GETDATE()))
+		EXEC countCirculation @heldForMemberID, @bookID, 'held', 1;
+	END
+END
+GO
+
+CREATE OR ALTER PROCEDURE removeMember @memID int
+AS
+BEGIN
+	SET NOCOUNT ON
+	--the member's copies go back on the shelf, so like returnCopy this takes the holdQueue lock of each of their books
+	--before locking any rows, in bookID order so two removals can't deadlock on each other
+	DECLARE @books TABLE (bookID int PRIMARY KEY);
+	INSERT INTO @books SELECT DISTINCT c.bookID FROM memberCopy mc JOIN copy c ON c.copyID = mc.copyID WHERE mc.memberID = @memID;
+	DECLARE @bookID int = 0, @resource nvarchar(255);
+	WHILE 1 = 1
+	BEGIN
+		SET @bookID = (SELECT MIN(bookID) FROM @books WHERE bookID > @bookID);
+		IF @bookID IS NULL
+		BEGIN
+			BREAK;
+		END
+		SET @resource = 'holdQueue:' + CAST(@bookID AS nvarchar(10));
+		EXEC sp_getapplock @Resource = @resource, @LockMode = 'Exclusive', @LockOwner = 'Transaction';
+	END
+	DELETE FROM holdQueue where memberID = @memID
+	DECLARE @freed TABLE (copyID int PRIMARY KEY, bookID int, memCopyStatus varchar(10), createdDate date, expiryDate date);
+	DELETE mc
+	OUTPUT deleted.copyID, c.bookID, deleted.memCopyStatus, deleted.createdDate, deleted.expiryDate INTO @freed
+	FROM memberCopy mc JOIN copy c ON c.copyID = mc.copyID
+	WHERE mc.memberID = @memID
+	INSERT INTO loanHistory (memberID, copyID, bookID, memCopyStatus, createdDate, expiryDate, endedDate, endReason)
+	SELECT @memID, copyID, bookID, memCopyStatus, createdDate, expiryDate, CAST(GETDATE() AS date), 'removed' FROM @freed;
+	--each freed copy is held for whoever has waited longest for its book
+	DECLARE @copyID int = 0, @heldForMemberID int;
+	WHILE 1 = 1
+	BEGIN
+		SELECT TOP 1 @copyID = copyID, @bookID = bookID FROM @freed WHERE copyID > @copyID ORDER BY copyID;
+		IF @@ROWCOUNT = 0
+		BEGIN
+			BREAK;
+		END
+		EXEC holdForNextInQueue @copyID, @bookID, @heldForMemberID OUTPUT;
+	END
+	DELETE FROM memberCirculation where memberID = @memID
+	DELETE FROM member where memberID = @memID
 END
 GO
 
-CREATE OR ALTER PROCEDURE addAuthor	@firstName varchar(255),   @lastName varchar(255),   @dob date,   @status varchar(8)   
+CREATE OR ALTER PROCEDURE addAuthor	@firstName varchar(255),   @lastName varchar(255),   @dob date,   @status varchar(8),   @newID int OUTPUT
 AS  
 BEGIN
 	SET NOCOUNT ON
 	INSERT INTO author VALUES (NULLIF(@firstName, ''), NULLIF(@lastName, ''), NULLIF(@dob, ''), @status)    
+	--hand the new ID back so the app doesn't have to look the author up by name
+	SET @newID = SCOPE_IDENTITY()
 END  
 GO
 
-CREATE OR ALTER PROCEDURE addGenre	@genreName varchar(255),   @genreDesc varchar(255)  
+CREATE OR ALTER PROCEDURE addGenre	@genreName varchar(255),   @genreDesc varchar(255),   @newID int OUTPUT
 AS  
 BEGIN
 	SET NOCOUNT ON
 	INSERT INTO genre VALUES (@genreName, @genreDesc)  
+	SET @newID = SCOPE_IDENTITY()
 END 
+GO
 
 CREATE OR ALTER PROCEDURE updateAuthor
 	@authorID int, @firstName varchar(255), @lastName varchar(255), @dob date, @status varchar(8)
@@ -187,20 +644,42 @@ BEGIN
 END
 GO
 
-CREATE OR ALTER PROCEDURE returnCopy @copyID int
+CREATE OR ALTER PROCEDURE returnCopy @copyID int, @heldForMemberID int = 0 OUTPUT
 AS
 BEGIN
 	SET NOCOUNT ON
-	DELETE FROM memberCopy WHERE copyID = @copyID
+	SET @heldForMemberID = 0;
+	DECLARE @bookID int = (SELECT bookID FROM copy WHERE copyID = @copyID);
+	IF @bookID IS NULL
+	BEGIN
+		RETURN;
+	END
+	--the same lock as holdBook, taken before any rows are locked so the two always lock in the same order
+	DECLARE @resource nvarchar(255) = 'holdQueue:' + CAST(@bookID AS nvarchar(10));
+	EXEC sp_getapplock @Resource = @resource, @LockMode = 'Exclusive', @LockOwner = 'Transaction';
+	DECLARE @memID int, @status varchar(10);
+	SELECT @memID = memberID, @status = memCopyStatus FROM memberCopy WHERE copyID = @copyID;
+	--the loan ends here, so it moves to loanHistory in the same statement and memberCopy only ever holds current loans
+	DELETE FROM memberCopy
+	OUTPUT deleted.memberID, deleted.copyID, @bookID, deleted.memCopyStatus, deleted.createdDate, deleted.expiryDate,
+		CAST(GETDATE() AS date), 'returned'
+	INTO loanHistory (memberID, copyID, bookID, memCopyStatus, createdDate, expiryDate, endedDate, endReason)
+	WHERE copyID = @copyID
+	IF @memID IS NOT NULL
+	BEGIN
+		EXEC countCirculation @memID, @bookID, @status, 0;
+	END
+	EXEC holdForNextInQueue @copyID, @bookID, @heldForMemberID OUTPUT;
 END
 GO
 
 CREATE OR ALTER PROCEDURE addBook
-	@title varchar(255), @isbn char(13), @edition int, @pubDate date, @pubName varchar(255), @copyYear int
+	@title varchar(255), @isbn char(13), @edition int, @pubDate date, @pubName varchar(255), @copyYear int, @newID int OUTPUT
 AS
 BEGIN
 	SET NOCOUNT ON
 	INSERT INTO book VALUES(@title, NULLIF(@isbn, ''), @edition, NULLIF(@pubDate, ''), NULLIF(@pubName, ''), @copyYear)
+	SET @newID = SCOPE_IDENTITY()
 END
 GO
 
@@ -238,11 +717,24 @@ END
 GO
 
 
-CREATE OR ALTER PROCEDURE addCopy @bookID int, @condition varchar(7)
+CREATE OR ALTER PROCEDURE addReference @referencingBookID int, @referencedBookID int
+AS
+BEGIN
+	SET NOCOUNT ON
+	INSERT INTO reference (referencingBookID, referencedBookID) VALUES (@referencingBookID, @referencedBookID)
+END
+GO
+
+CREATE OR ALTER PROCEDURE addCopy @bookID int, @condition varchar(7), @heldForMemberID int = 0 OUTPUT
 AS
 BEGIN
 	SET NOCOUNT ON
+	DECLARE @resource nvarchar(255) = 'holdQueue:' + CAST(@bookID AS nvarchar(10));
+	EXEC sp_getapplock @Resource = @resource, @LockMode = 'Exclusive', @LockOwner = 'Transaction';
 	INSERT INTO copy VALUES (@bookID, @condition)
+	--a new copy of a book members are waiting for goes to the first of them, like a returned one
+	DECLARE @copyID int = SCOPE_IDENTITY();
+	EXEC holdForNextInQueue @copyID, @bookID, @heldForMemberID OUTPUT;
 END
 GO
 
@@ -262,11 +754,12 @@ BEGIN
 END
 GO
 
-CREATE OR ALTER PROCEDURE addMember @firstName varchar(255), @lastName varchar(255), @dob date
+CREATE OR ALTER PROCEDURE addMember @firstName varchar(255), @lastName varchar(255), @dob date, @newID int OUTPUT
 AS
 BEGIN
 	SET NOCOUNT ON
 	INSERT INTO member VALUES (@firstName, @lastName, @dob, GETDATE())
+	SET @newID = SCOPE_IDENTITY()
 END
 GO
 
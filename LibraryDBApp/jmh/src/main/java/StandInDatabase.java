@@ -0,0 +1,325 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import org.h2.tools.SimpleResultSet;
+
+// Embedded H2 database in SQL Server mode standing in for the library database, so the JMH suite can time whole
+// commands (parsing, the pool, the statement cache, the round trip and printing) without a server
+// H2 can't run T-SQL, so each procedure the benchmarks call is a Java alias running the same query as its body in DDLSQL.sql
+// This is in the default package with the app so it can reach App's package-private methods, LibraryBenchmarks
+// looks it up by name
+public class StandInDatabase {
+private static final long SEED = 341;
+private static final int COPIES_PER_BOOK = 2;
+private static final int INSERT_BATCH = 1_000;
+private static final int MEMBER_ID = 1;
+// Every book has this many keywords and genres, so a search can ask for up to this many terms one book has
+private static final int TERMS_PER_BOOK = 20;
+private static final int KEYWORDS = 500;
+private static final int GENRES = 60;
+private static final int WORKLOAD = 4_096;
+// Each setup gets its own in-memory database
+private static final AtomicInteger databases = new AtomicInteger();
+
+// Method to build a catalog of the given size and return one command run against it per call
+// command is search (a title search for part of a real title) or checkout (checking out a book, then a plain DELETE
+// standing in for the return, since H2 has no OUTPUT parameters for returnCopy)
+public static IntSupplier operation(String command, int books) throws SQLException {
+    String url = "jdbc:h2:mem:library" + databases.incrementAndGet() + ";MODE=MSSQLServer;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    Random random = new Random(SEED);
+    String[] titles = Benchmark.titles(random, books);
+    Connection admin = DriverManager.getConnection(url);
+    create(admin, titles);
+    App.setUp(new ConnectionPool(url), 0);
+    Session session = new Session(App.USER_TYPE.MEMBER, MEMBER_ID, new Scanner(""), new PrintStream(OutputStream.nullOutputStream()));
+    switch (command) {
+        case "search": {
+            String[] terms = Benchmark.titleQueries(random, titles, WORKLOAD);
+            int[] next = {0};
+            return () -> run(session, "2 " + terms[next[0]++ % WORKLOAD]);
+        }
+        case "checkout": {
+            PreparedStatement returnCopies = admin.prepareStatement("DELETE FROM memberCopy WHERE memberID = " + MEMBER_ID);
+            int[] next = {0};
+            return () -> {
+                int ok = run(session, "12 " + (1 + next[0]++ % books));
+                try {
+                    returnCopies.executeUpdate();
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+                return ok;
+            };
+        }
+        default:
+            throw new IllegalArgumentException("Unknown command " + command);
+    }
+}
+
+// Method to build a catalog with keywords and genres and return one search for terms of them per call
+// by is keywords or genres; method is procedure (searchKeywords or searchGenres, which split the list with STRING_SPLIT)
+// or dynamic (the SQL the app built before them, one EXISTS per term, so a different statement for each number of terms)
+// The dynamic text isn't paged, so it prints every match where the procedure prints the first page
+public static IntSupplier termSearch(String by, String method, int terms, int books) throws SQLException {
+    String url = "jdbc:h2:mem:library" + databases.incrementAndGet() + ";MODE=MSSQLServer;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    Random random = new Random(SEED);
+    Connection admin = DriverManager.getConnection(url);
+    create(admin, Benchmark.titles(random, books));
+    String[][] bookTerms = createTerms(admin, random, books, by.equals("genres"));
+    // Each search asks for terms that one book has, so it always finds at least that book
+    String[][] workload = new String[WORKLOAD][];
+    for (int i = 0; i < workload.length; i++) {
+        workload[i] = Arrays.copyOf(bookTerms[random.nextInt(books)], terms);
+    }
+    ConnectionPool pool = new ConnectionPool(url);
+    ResultRenderer renderer = new ResultRenderer(Writer.nullWriter());
+    int[] next = {0};
+    if (method.equals("procedure")) {
+        String procedure = by.equals("genres") ? "searchGenres" : "searchKeywords";
+        return () -> inUnitOfWork(pool, work -> App.renderProcedure(work, renderer, procedure,
+                new String[] {String.join(",", workload[next[0]++ % WORKLOAD]), "0", Integer.toString(SearchPage.DEFAULT_PAGE_SIZE)},
+                App.BOOK_COLUMNS));
+    }
+    String dynamic = dynamicTermSearch(by, terms);
+    return () -> inUnitOfWork(pool, work -> {
+        PreparedStatement statement = work.prepareStatement(dynamic);
+        String[] values = workload[next[0]++ % WORKLOAD];
+        for (int i = 0; i < values.length; i++) {
+            statement.setString(i + 1, by.equals("genres") ? values[i].toUpperCase(Locale.ROOT) : values[i]);
+        }
+        try (ResultSet resultSet = statement.executeQuery()) {
+            return renderer.render(resultSet, App.BOOK_COLUMNS);
+        }
+    });
+}
+
+// The statement searchKeywords and searchGenres built before the procedures, with one EXISTS per term
+private static String dynamicTermSearch(String by, int terms) {
+    String exists = by.equals("genres")
+            ? "EXISTS (SELECT 1 FROM BookGenre bg JOIN Genre g ON bg.genreID = g.genreID WHERE bg.bookID = b.bookID AND UPPER(g.genreName) = ?)"
+            : "EXISTS (SELECT 1 FROM Keyword k WHERE k.bookID = b.bookID AND k.word = ?)";
+    StringBuilder statement = new StringBuilder("SELECT * FROM Book b WHERE ");
+    for (int i = 0; i < terms; i++) {
+        if (i > 0) {
+            statement.append(" AND ");
+        }
+        statement.append(exists);
+    }
+    return statement.toString();
+}
+
+private interface Work {
+    int run(UnitOfWork work) throws SQLException;
+}
+
+private static int inUnitOfWork(ConnectionPool pool, Work body) {
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        int rows = body.run(work);
+        work.commit();
+        return rows;
+    } catch (SQLException e) {
+        throw new IllegalStateException(e);
+    }
+}
+
+private static int run(Session session, String command) {
+    if (!App.runCommand(session, command)) {
+        throw new IllegalStateException("Command failed against the stand-in database: " + command);
+    }
+    return 1;
+}
+
+// Method to create the tables and procedures the benchmarks use and fill them with the synthetic catalog
+private static void create(Connection connection, String[] titles) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+        statement.execute("CREATE TABLE book (bookID int PRIMARY KEY, title varchar(255) NOT NULL, ISBN varchar(13),"
+                + " edition varchar(255), publicationDate date, publisher varchar(255), copyrightYear int)");
+        statement.execute("CREATE TABLE copy (copyID int PRIMARY KEY, bookID int NOT NULL)");
+        statement.execute("CREATE INDEX IX_copy_book ON copy (bookID)");
+        statement.execute("CREATE TABLE memberCopy (memberID int NOT NULL, copyID int NOT NULL, memCopyStatus varchar(10) NOT NULL,"
+                + " createdDate date NOT NULL, expiryDate date NOT NULL, PRIMARY KEY (memberID, copyID))");
+        statement.execute("CREATE UNIQUE INDEX UX_memberCopy_copy ON memberCopy (copyID)");
+        statement.execute("CREATE ALIAS searchTitle FOR 'StandInDatabase.searchTitle'");
+        statement.execute("CREATE ALIAS checkOutBook FOR 'StandInDatabase.checkOutBook'");
+    }
+    try (PreparedStatement book = connection.prepareStatement("INSERT INTO book VALUES (?, ?, ?, '1', DATE '2001-01-01', 'Stand-in Press', 2001)");
+            PreparedStatement copy = connection.prepareStatement("INSERT INTO copy VALUES (?, ?)")) {
+        for (int bookID = 1; bookID < titles.length; bookID++) {
+            book.setInt(1, bookID);
+            book.setString(2, titles[bookID]);
+            book.setString(3, Long.toString(9_780_000_000_000L + bookID));
+            book.addBatch();
+            for (int c = 0; c < COPIES_PER_BOOK; c++) {
+                copy.setInt(1, (bookID - 1) * COPIES_PER_BOOK + c + 1);
+                copy.setInt(2, bookID);
+                copy.addBatch();
+            }
+            if (bookID % INSERT_BATCH == 0 || bookID == titles.length - 1) {
+                book.executeBatch();
+                copy.executeBatch();
+            }
+        }
+    }
+}
+
+// Method to give every book TERMS_PER_BOOK distinct keywords, or genres, and return them by bookID - 1
+private static String[][] createTerms(Connection connection, Random random, int books, boolean genres) throws SQLException {
+    String[] names = Benchmark.vocabulary(random, genres ? GENRES : KEYWORDS);
+    if (!genres) {
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].toLowerCase(Locale.ROOT);
+        }
+    }
+    names = Arrays.stream(names).distinct().toArray(String[]::new);
+    try (Statement statement = connection.createStatement()) {
+        statement.execute("CREATE TABLE keyword (bookID int NOT NULL, word varchar(255) NOT NULL, PRIMARY KEY (bookID, word))");
+        statement.execute("CREATE INDEX IX_keyword_word ON keyword (word, bookID)");
+        statement.execute("CREATE TABLE genre (genreID int PRIMARY KEY, genreName varchar(255) NOT NULL)");
+        statement.execute("ALTER TABLE genre ADD CONSTRAINT UC_Genre UNIQUE (genreName)");
+        statement.execute("CREATE TABLE bookGenre (bookID int NOT NULL, genreID int NOT NULL, PRIMARY KEY (bookID, genreID))");
+        statement.execute("CREATE INDEX IX_bookGenre_genre ON bookGenre (genreID, bookID)");
+        statement.execute("CREATE ALIAS STRING_SPLIT FOR 'StandInDatabase.stringSplit'");
+        statement.execute("CREATE ALIAS searchKeywords FOR 'StandInDatabase.searchKeywords'");
+        statement.execute("CREATE ALIAS searchGenres FOR 'StandInDatabase.searchGenres'");
+    }
+    if (genres) {
+        try (PreparedStatement genre = connection.prepareStatement("INSERT INTO genre VALUES (?, ?)")) {
+            for (int i = 0; i < names.length; i++) {
+                genre.setInt(1, i + 1);
+                genre.setString(2, names[i]);
+                genre.addBatch();
+            }
+            genre.executeBatch();
+        }
+    }
+    String[][] bookTerms = new String[books][];
+    int[] picks = new int[names.length];
+    for (int i = 0; i < picks.length; i++) {
+        picks[i] = i;
+    }
+    try (PreparedStatement insert = connection.prepareStatement(genres ? "INSERT INTO bookGenre VALUES (?, ?)" : "INSERT INTO keyword VALUES (?, ?)")) {
+        for (int bookID = 1; bookID <= books; bookID++) {
+            String[] terms = new String[TERMS_PER_BOOK];
+            // A partial shuffle picks distinct terms
+            for (int t = 0; t < terms.length; t++) {
+                int swap = t + random.nextInt(picks.length - t);
+                int pick = picks[swap];
+                picks[swap] = picks[t];
+                picks[t] = pick;
+                terms[t] = names[pick];
+                insert.setInt(1, bookID);
+                if (genres) {
+                    insert.setInt(2, pick + 1);
+                } else {
+                    insert.setString(2, names[pick]);
+                }
+                insert.addBatch();
+            }
+            bookTerms[bookID - 1] = terms;
+            if (bookID % INSERT_BATCH == 0 || bookID == books) {
+                insert.executeBatch();
+            }
+        }
+    }
+    return bookTerms;
+}
+
+// STRING_SPLIT, one row per part in a column named value
+public static ResultSet stringSplit(String list, String separator) {
+    SimpleResultSet resultSet = new SimpleResultSet();
+    resultSet.addColumn("value", Types.VARCHAR, 255, 0);
+    if (list != null) {
+        int start = 0;
+        while (true) {
+            int end = list.indexOf(separator, start);
+            resultSet.addRow(list.substring(start, end < 0 ? list.length() : end));
+            if (end < 0) {
+                break;
+            }
+            start = end + separator.length();
+        }
+    }
+    return resultSet;
+}
+
+// searchKeywords, a session temporary table stands in for @terms and the insert's update count for @@ROWCOUNT
+// H2 runs a joined derived table once per book, so the matches are an IN subquery here, which it runs once the way
+// SQL Server runs the join
+public static ResultSet searchKeywords(Connection connection, String keywords, int afterID, int pageSize) throws SQLException {
+    return termSearch(connection, keywords, "SELECT TOP (?) b.* FROM book b WHERE b.bookID IN ("
+            + " SELECT k.bookID FROM terms t JOIN keyword k ON k.word = t.term"
+            + " WHERE k.bookID > ?"
+            + " GROUP BY k.bookID"
+            + " HAVING COUNT(*) = ?"
+            + ") ORDER BY b.bookID", afterID, pageSize);
+}
+
+// searchGenres, as above
+public static ResultSet searchGenres(Connection connection, String genres, int afterID, int pageSize) throws SQLException {
+    return termSearch(connection, genres, "SELECT TOP (?) b.* FROM book b WHERE b.bookID IN ("
+            + " SELECT bg.bookID FROM terms t"
+            + " JOIN genre g ON g.genreName = t.term"
+            + " JOIN bookGenre bg ON bg.genreID = g.genreID"
+            + " WHERE bg.bookID > ?"
+            + " GROUP BY bg.bookID"
+            + " HAVING COUNT(*) = ?"
+            + ") ORDER BY b.bookID", afterID, pageSize);
+}
+
+private static ResultSet termSearch(Connection connection, String list, String sql, int afterID, int pageSize) throws SQLException {
+    int termCount;
+    try (Statement statement = connection.createStatement()) {
+        // TRANSACTIONAL so creating it doesn't commit the caller's transaction
+        statement.execute("CREATE LOCAL TEMPORARY TABLE IF NOT EXISTS terms (term varchar(255) PRIMARY KEY) TRANSACTIONAL");
+        statement.execute("DELETE FROM terms");
+    }
+    try (PreparedStatement insert = connection.prepareStatement("INSERT INTO terms (term)"
+            + " SELECT DISTINCT TRIM(s.[value]) FROM STRING_SPLIT(?, ',') s WHERE TRIM(s.[value]) <> ''")) {
+        insert.setString(1, list);
+        termCount = insert.executeUpdate();
+    }
+    PreparedStatement statement = connection.prepareStatement(sql);
+    statement.setInt(1, pageSize);
+    statement.setInt(2, afterID);
+    statement.setInt(3, termCount);
+    return statement.executeQuery();
+}
+
+// searchTitle, keyset paged
+public static ResultSet searchTitle(Connection connection, String title, int afterID, int pageSize) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(
+            "SELECT TOP (?) * FROM book WHERE title LIKE '%' + ? + '%' AND bookID > ? ORDER BY bookID");
+    statement.setInt(1, pageSize);
+    statement.setString(2, title);
+    statement.setInt(3, afterID);
+    return statement.executeQuery();
+}
+
+// checkOutBook, picking the lowest free copy of the book; the circulation counters are left out
+public static void checkOutBook(Connection connection, int memID, int bookID) throws SQLException {
+    int copyID;
+    try (PreparedStatement statement = connection.prepareStatement("SELECT TOP 1 c.copyID FROM copy c WITH (UPDLOCK, READPAST, ROWLOCK)"
+            + " WHERE c.bookID = ? AND NOT EXISTS (SELECT 1 FROM memberCopy mc WHERE mc.copyID = c.copyID) ORDER BY c.copyID")) {
+        statement.setInt(1, bookID);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                throw new SQLException("No copy of this book is available.", "45000", 50001);
+            }
+            copyID = resultSet.getInt(1);
+        }
+    }
+    try (PreparedStatement statement = connection.prepareStatement("INSERT INTO memberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)"
+            + " VALUES (?, ?, 'checkedOut', CURRENT_DATE, DATEADD(day, 14, CURRENT_DATE))")) {
+        statement.setInt(1, memID);
+        statement.setInt(2, copyID);
+        statement.executeUpdate();
+    }
+}
+}
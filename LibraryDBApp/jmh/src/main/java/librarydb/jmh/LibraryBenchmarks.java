@@ -0,0 +1,203 @@
+package librarydb.jmh;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JMH runs of the standalone Benchmark cases at 10k, 100k and 1M items, plus whole commands against an embedded
+// stand-in database; each call times one item, e.g. one title search or one printed page
+// JMH won't generate code for the default package and named packages can't import it, so each state looks up its
+// case once in setup and the measured methods only call the operation it returns
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LibraryBenchmarks {
+
+@State(Scope.Thread)
+public static class TitleSearch {
+    @Param({"10000", "100000", "1000000"})
+    public int books;
+    // scan stands in for the searchTitle procedure, index is the trigram index
+    @Param({"scan", "index"})
+    public String method;
+    IntSupplier operation;
+
+    @Setup
+    public void setUp() {
+        operation = benchmark("titleSearch", method, books);
+    }
+}
+
+@State(Scope.Thread)
+public static class Complete {
+    @Param({"10000", "100000", "1000000"})
+    public int books;
+    @Param({"1", "6"})
+    public String prefixLength;
+    IntSupplier operation;
+
+    @Setup
+    public void setUp() {
+        operation = benchmark("complete", prefixLength, books);
+    }
+}
+
+@State(Scope.Thread)
+public static class Citations {
+    @Param({"10000", "100000", "1000000"})
+    public int books;
+    @Param({"cites", "citedBy"})
+    public String direction;
+    @Param({"1", "2", "3", "4"})
+    public String depth;
+    IntSupplier operation;
+
+    @Setup
+    public void setUp() {
+        operation = benchmark("citations", direction + depth, books);
+    }
+}
+
+@State(Scope.Thread)
+public static class Parse {
+    // regex is how command lines were split before splitCommand
+    @Param({"split", "regex"})
+    public String method;
+    IntSupplier operation;
+
+    @Setup
+    public void setUp() {
+        operation = benchmark("parse", method, 0);
+    }
+}
+
+@State(Scope.Thread)
+public static class Render {
+    @Param({"50", "500", "5000"})
+    public int rows;
+    @Param({"records", "table", "csv", "json"})
+    public String format;
+    IntSupplier operation;
+
+    @Setup
+    public void setUp() {
+        operation = benchmark("render", format, rows);
+    }
+}
+
+@State(Scope.Thread)
+public static class Statements {
+    // build is how calls were built before the statement cache
+    @Param({"cached", "build"})
+    public String method;
+    IntSupplier operation;
+
+    @Setup
+    public void setUp() {
+        operation = benchmark("statements", method, 0);
+    }
+}
+
+@State(Scope.Thread)
+public static class RoundTrip {
+    @Param({"10000", "100000", "1000000"})
+    public int books;
+    @Param({"search", "checkout"})
+    public String command;
+    IntSupplier operation;
+
+    @Setup
+    public void setUp() {
+        operation = lookUp("StandInDatabase", "operation", new Class<?>[] {String.class, int.class}, command, books);
+    }
+}
+
+@State(Scope.Thread)
+public static class TermSearch {
+    // No 1M, its 20M term rows don't fit H2's in-memory tables in the fork's heap, see the README
+    @Param({"10000", "100000"})
+    public int books;
+    @Param({"keywords", "genres"})
+    public String by;
+    @Param({"1", "5", "20"})
+    public int terms;
+    // procedure splits the list with STRING_SPLIT, dynamic is the EXISTS per term text built before it
+    @Param({"procedure", "dynamic"})
+    public String method;
+    IntSupplier operation;
+
+    @Setup
+    public void setUp() {
+        operation = lookUp("StandInDatabase", "termSearch", new Class<?>[] {String.class, String.class, int.class, int.class},
+                by, method, terms, books);
+    }
+}
+
+@Benchmark
+public int titleSearch(TitleSearch state) {
+    return state.operation.getAsInt();
+}
+
+@Benchmark
+public int complete(Complete state) {
+    return state.operation.getAsInt();
+}
+
+@Benchmark
+public int citations(Citations state) {
+    return state.operation.getAsInt();
+}
+
+@Benchmark
+public int parse(Parse state) {
+    return state.operation.getAsInt();
+}
+
+@Benchmark
+public int render(Render state) {
+    return state.operation.getAsInt();
+}
+
+@Benchmark
+public int statements(Statements state) {
+    return state.operation.getAsInt();
+}
+
+@Benchmark
+public int roundTrip(RoundTrip state) {
+    return state.operation.getAsInt();
+}
+
+@Benchmark
+public int termSearch(TermSearch state) {
+    return state.operation.getAsInt();
+}
+
+private static IntSupplier benchmark(String benchmark, String variant, int size) {
+    return lookUp("Benchmark", "operation", new Class<?>[] {String.class, String.class, int.class}, benchmark, variant, size);
+}
+
+// Method to call a default package class's static method that sets up an operation
+private static IntSupplier lookUp(String className, String methodName, Class<?>[] parameterTypes, Object... arguments) {
+    try {
+        return (IntSupplier) Class.forName(className).getMethod(methodName, parameterTypes).invoke(null, arguments);
+    } catch (InvocationTargetException e) {
+        throw new IllegalStateException("Setting up " + className + " failed", e.getCause());
+    } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Can't find " + className + "." + methodName, e);
+    }
+}
+}
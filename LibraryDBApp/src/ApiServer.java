@@ -0,0 +1,402 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+// Embedded HTTP server exposing catalog search and circulation as JSON, for the self-checkout kiosks and the OPAC page
+// Requests go through the same execute path as the console commands, each in its own unit of work on the shared pool,
+// so they use the in-memory indexes and caches, are timed in the command metrics and reach the slow query log
+// Requests are handled on their own (virtual when available) threads so a slow request never holds up the others
+// Rows are streamed as JSON Lines (one object per line) as they are read instead of being collected first
+//
+//   GET  /api/books/{bookID}
+//   GET  /api/books?title=|author=|keywords=|genres=|isbn=...[&after=bookID][&limit=n]
+//   GET  /api/members/{memberID}/loans
+//   GET  /api/members/{memberID}/holds
+//   GET  /api/members/{memberID}/history[?after=historyID][&limit=n]   newest first
+//   GET  /api/books/{bookID}/history[?after=historyID][&limit=n]
+//   POST /api/checkouts {"memberID": 1, "bookID": 2} or {"memberID": 1, "copyID": 3}
+//   POST /api/holds     {"memberID": 1, "bookID": 2} or {"memberID": 1, "copyID": 3}
+//   POST /api/returns   {"copyID": 3}
+//   GET  /api/metrics   request count, errors and latency percentiles per endpoint
+//
+// Searches are paged like the console: pass the last bookID of a page as after= to get the next one
+public class ApiServer implements AutoCloseable {
+private static final String JSON_LINES = "application/x-ndjson; charset=utf-8";
+private static final String JSON = "application/json; charset=utf-8";
+private static final int MAX_PAGE_SIZE = 500;
+private static final int MAX_BODY_BYTES = 64 * 1024;
+// Error numbers thrown by checkOutBook and checkoutCopy when no copy is free, and by holdBook for a member who has a copy or is queued
+private static final int NO_COPY_AVAILABLE = 50001;
+private static final int ALREADY_QUEUED = 50002;
+
+private final ConnectionPool pool;
+private final HttpServer server;
+private final ExecutorService executor;
+private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+// Latency and error counts for one endpoint
+private static final class Endpoint {
+    final LatencyHistogram latency = new LatencyHistogram();
+    long errors = 0;
+}
+
+// Thrown by handlers to answer with an error status and message
+private static final class ApiException extends Exception {
+    private static final long serialVersionUID = 1L;
+    final int status;
+
+    ApiException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
+
+public ApiServer(ConnectionPool pool, int port) throws IOException {
+    this.pool = pool;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    this.executor = SessionServer.newSessionExecutor();
+    server.setExecutor(executor);
+    server.createContext("/api/", this::handle);
+}
+
+public void start() {
+    server.start();
+    System.out.println("HTTP API listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/api/");
+}
+
+// The port the server listens on, for a server started on port 0
+public int getPort() {
+    return server.getAddress().getPort();
+}
+
+// Writes one page of rows for a request through App's execute path
+private interface Query {
+    void render(UnitOfWork work, ResultRenderer renderer) throws SQLException;
+}
+
+// Response body that only sends the 200 status once the first rows are written or the body is closed,
+// so errors raised before then (e.g. by the procedure itself) still become error responses
+private static final class ResponseBody extends OutputStream {
+    private final HttpExchange exchange;
+    private OutputStream out = null;
+
+    ResponseBody(HttpExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    private OutputStream started() throws IOException {
+        if (out == null) {
+            exchange.getResponseHeaders().set("Content-Type", JSON_LINES);
+            exchange.sendResponseHeaders(200, 0); // 0 means chunked, the length isn't known until the last row
+            out = exchange.getResponseBody();
+        }
+        return out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        started().write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        started().write(bytes, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        started().close();
+    }
+}
+
+// Method to route a request to its endpoint and record how long it took
+// Each endpoint is also timed as a command, so the stats command and the metrics endpoint cover the API too
+private void handle(HttpExchange exchange) {
+    String method = exchange.getRequestMethod();
+    String[] path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+    String name = endpointName(method, path);
+    long start = CommandMetrics.begin(name);
+    boolean failed = true;
+    try {
+        switch (name) {
+            case "GET /api/books/{id}":
+                String bookID = id(path[1], "bookID");
+                streamRows(exchange, (work, renderer) -> App.renderBookDetails(work, renderer, bookID));
+                break;
+            case "GET /api/books":
+                searchBooks(exchange);
+                break;
+            case "GET /api/members/{id}/history":
+                history(exchange, "getMemberHistory", id(path[1], "memberID"));
+                break;
+            case "GET /api/books/{id}/history":
+                history(exchange, "getBookHistory", id(path[1], "bookID"));
+                break;
+            case "GET /api/members/{id}/loans":
+            case "GET /api/members/{id}/holds":
+                String procedure = path[2].equals("loans") ? "getLoans" : "getHolds";
+                String[] parameters = {id(path[1], "memberID")};
+                streamRows(exchange, (work, renderer) -> App.renderProcedure(work, renderer, procedure, parameters, App.MEMBER_COPY_COLUMNS));
+                break;
+            case "POST /api/checkouts":
+            case "POST /api/holds":
+                borrow(exchange, path[0].equals("checkouts"));
+                break;
+            case "POST /api/returns":
+                Map<?, ?> body = readBody(exchange);
+                int heldForMemberID = executeForOutput("returnCopy", new String[] {field(body, "copyID")});
+                sendJson(exchange, 200, "{\"returned\":true,\"heldForMemberID\":" + (heldForMemberID > 0 ? heldForMemberID : "null") + "}");
+                break;
+            case "GET /api/metrics":
+                sendJson(exchange, 200, metricsJson());
+                break;
+            default:
+                throw new ApiException(404, "No such endpoint");
+        }
+        failed = false;
+    } catch (ApiException e) {
+        sendError(exchange, e.status, e.getMessage());
+    } catch (SQLException e) {
+        sendError(exchange, e.getErrorCode() == NO_COPY_AVAILABLE || e.getErrorCode() == ALREADY_QUEUED ? 409 : 500, e.getMessage());
+    } catch (IOException | RuntimeException e) {
+        sendError(exchange, 500, String.valueOf(e.getMessage()));
+    } finally {
+        exchange.close();
+        CommandMetrics.end(start, !failed);
+        Endpoint endpoint = endpoints.computeIfAbsent(name, key -> new Endpoint());
+        endpoint.latency.record(System.nanoTime() - start);
+        if (failed) {
+            synchronized (endpoint) {
+                endpoint.errors++;
+            }
+        }
+    }
+}
+
+// Method to name the endpoint a request is for, anything else is counted together so bad paths can't add metrics without limit
+private static String endpointName(String method, String[] path) {
+    if (method.equals("GET") && path.length == 2 && path[0].equals("books")) {
+        return "GET /api/books/{id}";
+    } else if (method.equals("GET") && path.length == 1 && (path[0].equals("books") || path[0].equals("metrics"))) {
+        return "GET /api/" + path[0];
+    } else if (method.equals("GET") && path.length == 3 && path[2].equals("history")
+            && (path[0].equals("members") || path[0].equals("books"))) {
+        return "GET /api/" + path[0] + "/{id}/history";
+    } else if (method.equals("GET") && path.length == 3 && path[0].equals("members")
+            && (path[2].equals("loans") || path[2].equals("holds"))) {
+        return "GET /api/members/{id}/" + path[2];
+    } else if (method.equals("POST") && path.length == 1
+            && (path[0].equals("checkouts") || path[0].equals("holds") || path[0].equals("returns"))) {
+        return "POST /api/" + path[0];
+    }
+    return "unknown";
+}
+
+// Searches are paged like the console and use the in-memory indexes when they are loaded, ISBN lookups aren't paged
+private void searchBooks(HttpExchange exchange) throws ApiException, SQLException, IOException {
+    Map<String, String> query = query(exchange);
+    int after = Integer.parseInt(id(query.getOrDefault("after", "0"), "after"));
+    int limit = limit(query);
+    for (String by : new String[] {"title", "author", "keywords", "genres"}) {
+        if (query.containsKey(by)) {
+            SearchPage search = App.bookSearch(by, query.get(by), limit);
+            search.startAfter(after);
+            streamRows(exchange, (work, renderer) -> App.renderPage(work, renderer, search));
+            return;
+        }
+    }
+    if (query.containsKey("isbn")) {
+        String isbn = query.get("isbn");
+        streamRows(exchange, (work, renderer) -> App.renderISBN(work, renderer, isbn));
+        return;
+    }
+    throw new ApiException(400, "Search by one of title, author, keywords, genres or isbn");
+}
+
+// Loan history is paged newest first: pass the last historyID of a page as after= to get the older entries
+private void history(HttpExchange exchange, String procedureName, String id) throws ApiException, SQLException, IOException {
+    Map<String, String> query = query(exchange);
+    int after = Integer.parseInt(id(query.getOrDefault("after", "0"), "after"));
+    SearchPage history = new SearchPage(procedureName, id, "historyID", App.HISTORY_COLUMNS, limit(query));
+    history.startAfter(after);
+    streamRows(exchange, (work, renderer) -> App.renderPage(work, renderer, history));
+}
+
+// Method to read the page size, which is capped so one request can't stream the whole catalog
+private static int limit(Map<String, String> query) throws ApiException {
+    int limit = Integer.parseInt(id(query.getOrDefault("limit", Integer.toString(SearchPage.DEFAULT_PAGE_SIZE)), "limit"));
+    if (limit > MAX_PAGE_SIZE) {
+        throw new ApiException(400, "limit can be at most " + MAX_PAGE_SIZE);
+    }
+    return limit;
+}
+
+// Checkouts and holds of a book or of a specific copy
+// A hold on a book with every copy taken joins the book's queue, answered with 202 and the place in the queue
+private void borrow(HttpExchange exchange, boolean checkout) throws ApiException, SQLException, IOException {
+    Map<?, ?> body = readBody(exchange);
+    String memberID = field(body, "memberID");
+    if (body.containsKey("copyID")) {
+        execute(checkout ? "checkoutCopy" : "holdCopy", new String[] {memberID, field(body, "copyID")});
+    } else if (checkout) {
+        execute("checkOutBook", new String[] {memberID, field(body, "bookID")});
+    } else {
+        int queuePosition = executeForOutput("holdBook", new String[] {memberID, field(body, "bookID")});
+        if (queuePosition > 0) {
+            sendJson(exchange, 202, "{\"held\":false,\"queuePosition\":" + queuePosition + "}");
+            return;
+        }
+    }
+    sendJson(exchange, 201, checkout ? "{\"checkedOut\":true}" : "{\"held\":true}");
+}
+
+// Method to open a unit of work and record how long it waited for a connection against the endpoint
+private UnitOfWork unitOfWork() throws SQLException {
+    UnitOfWork work = new UnitOfWork(pool);
+    CommandMetrics.recordAcquire(work.takeAcquireNanos());
+    return work;
+}
+
+// Method to run a query and stream its rows to the client as JSON Lines
+// The status is only sent once the first rows are written, so errors the procedure raises still become error responses
+private void streamRows(HttpExchange exchange, Query query) throws SQLException, IOException {
+    try (UnitOfWork work = unitOfWork()) {
+        ResponseBody body = new ResponseBody(exchange);
+        ResultRenderer renderer = new ResultRenderer(body);
+        renderer.setFormat(ResultRenderer.Format.JSON);
+        query.render(work, renderer);
+        work.commit();
+        body.close();
+    }
+}
+
+private void execute(String procedureName, String[] parameters) throws SQLException {
+    try (UnitOfWork work = unitOfWork()) {
+        App.callProcedure(work, procedureName, parameters);
+        work.commit();
+    }
+}
+
+// Method to run a procedure whose last parameter is an int OUTPUT and return it
+private int executeForOutput(String procedureName, String[] parameters) throws SQLException {
+    try (UnitOfWork work = unitOfWork()) {
+        int output = App.callProcedureForOutput(work, procedureName, parameters);
+        work.commit();
+        return output;
+    }
+}
+
+// Method to check that an ID is a non-negative whole number before it reaches the database
+private static String id(String value, String name) throws ApiException {
+    if (value == null || value.isEmpty() || value.length() > 9 || !value.chars().allMatch(Character::isDigit)) {
+        throw new ApiException(400, name + " must be a number");
+    }
+    return value;
+}
+
+private static String field(Map<?, ?> body, String name) throws ApiException {
+    Object value = body.get(name);
+    return id(value == null ? null : value.toString(), name);
+}
+
+private static Map<?, ?> readBody(HttpExchange exchange) throws ApiException, IOException {
+    byte[] bytes;
+    try (InputStream in = exchange.getRequestBody()) {
+        bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+    }
+    if (bytes.length > MAX_BODY_BYTES) {
+        throw new ApiException(413, "Request body is too large");
+    }
+    Object body;
+    try {
+        body = Json.parse(new String(bytes, StandardCharsets.UTF_8));
+    } catch (IllegalArgumentException e) {
+        throw new ApiException(400, "Invalid JSON: " + e.getMessage());
+    }
+    if (!(body instanceof Map)) {
+        throw new ApiException(400, "Expected a JSON object");
+    }
+    return (Map<?, ?>) body;
+}
+
+private static Map<String, String> query(HttpExchange exchange) {
+    Map<String, String> query = new HashMap<>();
+    String raw = exchange.getRequestURI().getRawQuery();
+    if (raw == null) {
+        return query;
+    }
+    for (String pair : raw.split("&")) {
+        int equals = pair.indexOf('=');
+        String key = equals < 0 ? pair : pair.substring(0, equals);
+        String value = equals < 0 ? "" : pair.substring(equals + 1);
+        query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return query;
+}
+
+private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", JSON);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+        body.write(bytes);
+    }
+}
+
+// Method to answer with an error, unless the response was already started by a stream that failed part way
+private static void sendError(HttpExchange exchange, int status, String message) {
+    if (exchange.getResponseCode() != -1) {
+        return;
+    }
+    try {
+        sendJson(exchange, status, "{\"error\":" + Json.quote(message) + "}");
+    } catch (IOException e) {
+        // The client went away
+    }
+}
+
+// Method to describe every endpoint's request count, error count and latency percentiles as JSON
+public String metricsJson() {
+    StringBuilder json = new StringBuilder("{");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+        LatencyHistogram latency = entry.getValue().latency;
+        long errors;
+        synchronized (entry.getValue()) {
+            errors = entry.getValue().errors;
+        }
+        if (json.length() > 1) {
+            json.append(',');
+        }
+        Json.quote(json, entry.getKey());
+        json.append(String.format(":{\"requests\":%d,\"errors\":%d,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}",
+                latency.count(), errors, latency.meanNanos() / 1e6, latency.percentileNanos(0.50) / 1e6,
+                latency.percentileNanos(0.90) / 1e6, latency.percentileNanos(0.99) / 1e6, latency.maxNanos() / 1e6));
+    }
+    return json.append('}').toString();
+}
+
+public String getStats() {
+    StringBuilder stats = new StringBuilder("HTTP API:");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+        stats.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue().latency.summary());
+    }
+    return stats.toString();
+}
+
+@Override
+public void close() {
+    server.stop(1);
+    executor.shutdown();
+}
+}
@@ -1,9 +1,15 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.sql.*;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.function.BooleanSupplier;
 
 public class App {
-private enum USER_TYPE { // User type, determined on login
+enum USER_TYPE { // User type, determined on login
     MEMBER,
     EMPLOYEE,
     CURATOR
@@ -11,1050 +17,1941 @@ private enum USER_TYPE { // User type, determined on login
 // Primary URL used to make a connection to the database, requires credentials to be inserted
 private static final String BASE_CONNECTION_URL = "jdbc:sqlserver://cxp-sql-03\\whc44;database=Library;encrypt=true;trustServerCertificate=true;loginTimeout=15";
 // Columns for all attributes we want to retrieve from our queries per table
-private static final List<String> BOOK_COLUMNS = List.of("bookID","title", "ISBN", "edition", "publicationDate", "publisher", "copyrightYear");
+static final List<String> BOOK_COLUMNS = List.of("bookID","title", "ISBN", "edition", "publicationDate", "publisher", "copyrightYear");
 private static final List<String> MEMBER_COLUMNS = List.of("memberID", "memFirstName", "memLastName", "memdob", "memdor");
-private static final List<String> MEMBER_COPY_COLUMNS = List.of("memberID", "copyID", "memCopyStatus", "createdDate", "expiryDate");
+static final List<String> MEMBER_COPY_COLUMNS = List.of("memberID", "copyID", "memCopyStatus", "createdDate", "expiryDate");
+static final List<String> HISTORY_COLUMNS = List.of("historyID", "memberID", "copyID", "bookID", "title", "memCopyStatus",
+        "createdDate", "expiryDate", "endedDate", "endReason");
+private static final List<String> TOP_BOOK_COLUMNS = List.of("bookID", "title", "loans", "holds");
+private static final List<String> GENRE_LOAN_COLUMNS = List.of("genreID", "genreName", "loans", "holds");
+private static final List<String> ACTIVE_MEMBER_COLUMNS = List.of("membersWithLoansOrHolds", "recentlyActiveMembers", "activeLoans", "activeHolds");
+// Books listed in the most borrowed part of 'stats circulation'
+private static final int TOP_BOOKS = 10;
+private static final List<String> HOLD_QUEUE_COLUMNS = List.of("bookID", "title", "queuedDate", "queuePosition");
 private static final List<String> AUTHOR_COLUMNS = List.of("authorID", "firstName", "lastName", "dob", "status");
-private static int memberID = -1; // Member ID, set on login
-private static USER_TYPE userType = USER_TYPE.MEMBER;
+// Shared pool every command borrows its connections from, created on login
+private static ConnectionPool connectionPool = null;
+// The session server while --server is running, so stats can show its sessions
+private static volatile SessionServer sessionServer = null;
+// Number of connections opened up front when the pool is created, and kept open while idle
+private static final int POOL_WARM_UP_SIZE = 2;
+// Optional in-memory keyword index, loaded at startup when the app is run with --keyword-index
+private static KeywordIndex keywordIndex = null;
+// Optional in-memory trigram indexes for substring searches, loaded at startup when the app is run with --search-index
+static TrigramIndex titleIndex = null;
+private static TrigramIndex authorIndex = null;
+private static TrigramIndex memberIndex = null;
+// Optional in-memory prefix indexes for autocompletion, loaded at startup when the app is run with --prefix-index
+static PrefixIndex titlePrefixes = null;
+private static PrefixIndex authorPrefixes = null;
+private static PrefixIndex genrePrefixes = null;
+// What a session prints before reading each command, and after a command that failed, which is how a client of the
+// session server (e.g. LoadGenerator's server load test) tells where one command's output ends and if it failed
+static final String COMMAND_PROMPT = "Enter command:";
+static final String FAILED_COMMAND_MESSAGE = "This transaction failed and was rolled back.";
+// Number of completions the complete command lists
+private static final int COMPLETIONS = 10;
+// Highest command number, the numbers are listed by printAvailableCommands
+private static final int COMMAND_COUNT = 32;
+// Number of batch mode commands committed in one transaction, unless --batch-size is given
+private static final int DEFAULT_BATCH_SIZE = 500;
+// Read-through caches for point reads of catalog data, entries live for --cache-ttl seconds (0 turns them off)
+private static final int CACHE_SIZE = 10_000;
+private static final long DEFAULT_CACHE_TTL_SECONDS = 60;
+static CatalogCache<Integer, ResultRenderer.Rows> bookCache;
+static CatalogCache<String, ResultRenderer.Rows> isbnCache;
+private static CatalogCache<Integer, ResultRenderer.Rows> authorCache;
+private static CatalogCache<Integer, ResultRenderer.Rows> memberCache;
+// Genre IDs by lower-cased name
+private static CatalogCache<String, Integer> genreCache;
+// In-memory citation graph over the reference table, loaded the first time a citation command needs it
+private static CitationGraph citationGraph = null;
+private static final List<String> CITATION_COMMANDS = List.of("cites", "citedby", "cocited", "mostcited", "addreference");
+// Number of hops cites and citedby follow unless told otherwise, and the most they will follow
+private static final int DEFAULT_CITATION_DEPTH = 1;
+private static final int MAX_CITATION_DEPTH = 4;
+// Optional log of statements slower than --slow-query-ms, turned on with --slow-query-log
+private static SlowQueryLog slowQueryLog = null;
 
 // Method to create a connection URL with an inserted user and password
 private static String getConnectionUrl(String user, String password) {
     return BASE_CONNECTION_URL + ";user=" + user + ";password=" + password;
 }
 
+// Method to check whether a command line flag was passed to the application
+private static boolean hasOption(String[] args, String option) {
+    for (String arg : args) {
+        if (arg.equals(option)) {
+            return true;
+        }
+    }
+    return false;
+}
+
+// Method to get the value following a command line flag, or null if the flag wasn't passed
+private static String optionValue(String[] args, String option) {
+    for (int i = 0; i + 1 < args.length; i++) {
+        if (args[i].equals(option)) {
+            return args[i + 1];
+        }
+    }
+    return null;
+}
+
+// Method to create the catalog caches with the given time to live
+private static void createCaches(long ttlSeconds) {
+    long ttlMillis = ttlSeconds * 1000;
+    bookCache = new CatalogCache<>("books by ID", CACHE_SIZE, ttlMillis);
+    isbnCache = new CatalogCache<>("books by ISBN", CACHE_SIZE, ttlMillis);
+    authorCache = new CatalogCache<>("authors by ID", CACHE_SIZE, ttlMillis);
+    memberCache = new CatalogCache<>("members by ID", CACHE_SIZE, ttlMillis);
+    genreCache = new CatalogCache<>("genres by name", CACHE_SIZE, ttlMillis);
+}
+
+// Method to print the command, connection pool, statement cache and catalog cache metrics
+private static void printStats(Session session) {
+    session.out.println(CommandMetrics.getStats());
+    session.out.println(connectionPool.getStats());
+    SessionServer server = sessionServer;
+    if (server != null) {
+        session.out.println(server.getStats());
+    }
+    session.out.println(StatementCache.getStats());
+    session.out.println(bookCache.getStats());
+    session.out.println(isbnCache.getStats());
+    session.out.println(authorCache.getStats());
+    session.out.println(memberCache.getStats());
+    session.out.println(genreCache.getStats());
+    synchronized (App.class) {
+        if (citationGraph != null) {
+            session.out.println(citationGraph.getStats());
+        }
+    }
+    if (titlePrefixes != null) {
+        session.out.println(titlePrefixes.getStats());
+        session.out.println(authorPrefixes.getStats());
+        session.out.println(genrePrefixes.getStats());
+    }
+    if (slowQueryLog != null) {
+        session.out.println(slowQueryLog.getStats());
+    }
+}
+
 // Utility method to print a line to the console, used for UI formatting
-public static void printLine() {
-    System.out.println("------------------------------");
+public static void printLine(Session session) {
+    session.out.println("------------------------------");
 }
 
 // Main method to run the application
 public static void main(String[] args) throws Exception {
     // Prompt user for database login
-    Scanner scanner = new Scanner(System.in);
+    Scanner console = new Scanner(System.in);
     System.out.println("Enter database login:");
-    String user = scanner.nextLine();
+    String user = console.nextLine();
     System.out.println("Enter database password:");
-    String password = scanner.nextLine();
+    String password = console.nextLine();
     String connectionUrl = getConnectionUrl(user, password);
     // Determine what type of user is logging in
     // Because each login is given separate permissions in the database, this ensures they can only run commands they have access to
+    USER_TYPE userType = USER_TYPE.MEMBER;
+    int memberID = -1;
+    boolean server = optionValue(args, "--server") != null;
     if (user.equals("member_login")) {
         // Right now, creating individual logins for users was not in our use cases, so we just prompt for member ID
-        System.out.println("Enter member ID:");
-        memberID = Integer.parseInt(scanner.nextLine());
+        // The session server asks each client for theirs instead
+        if (!server) {
+            System.out.println("Enter member ID:");
+            memberID = Integer.parseInt(console.nextLine());
+        }
     } else if (user.equals("employee_login")) {
         userType = USER_TYPE.EMPLOYEE;
     } else if (user.equals("curator_login")) {
         userType = USER_TYPE.CURATOR;
     }
-    // Connect to database
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-    ) {
-        // This allows us to rollback uncommitted transactions if an error occurs
-        // parseCommand will return a boolean indicating the success status of the command
-        // If the command is successful, we commit the transaction with connection.commit()
-        // Otherwise, we rollback the transaction with connection.rollback()
-        connection.setAutoCommit(false);
+    // Connect to database, warming up the pool so the first commands don't pay for the handshake
+    String poolSize = optionValue(args, "--pool-size");
+    int maxPoolSize = poolSize == null ? ConnectionPool.DEFAULT_MAX_SIZE : Integer.parseInt(poolSize);
+    ConnectionPool pool = new ConnectionPool(connectionUrl, Math.min(POOL_WARM_UP_SIZE, maxPoolSize), maxPoolSize,
+            ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS);
+    connectionPool = pool;
+    try (pool) {
+        pool.warmUp(POOL_WARM_UP_SIZE);
         System.out.println("Successfully connected!");
-        while (true) { // Main loop for user input
-            System.out.println("Enter command:");
-            printLine();
-            printAvailableCommands();
-            printLine();
-            String command = scanner.nextLine();
-            // Exit command to log out of the database
-            if (command.equals("exit") || command.equals("logout")) {
-                System.out.println("Logged out of library database");
-                break;
+        String metricsLog = optionValue(args, "--metrics-log");
+        if (metricsLog != null) {
+            CommandMetrics.startLogging(Long.parseLong(metricsLog));
+        }
+        String metricsPort = optionValue(args, "--metrics-port");
+        if (metricsPort != null) {
+            CommandMetrics.startEndpoint(Integer.parseInt(metricsPort));
+        }
+        String slowQueryFile = optionValue(args, "--slow-query-log");
+        if (slowQueryFile != null) {
+            String slowQueryMillis = optionValue(args, "--slow-query-ms");
+            slowQueryLog = new SlowQueryLog(Path.of(slowQueryFile),
+                    slowQueryMillis == null ? SlowQueryLog.DEFAULT_THRESHOLD_MILLIS : Long.parseLong(slowQueryMillis),
+                    hasOption(args, "--slow-query-plans") ? pool : null);
+        }
+        String cacheTtl = optionValue(args, "--cache-ttl");
+        createCaches(cacheTtl == null ? DEFAULT_CACHE_TTL_SECONDS : Long.parseLong(cacheTtl));
+        String loadFile = optionValue(args, "--load");
+        if (loadFile != null) {
+            // Bulk load a catalog export and exit, the in-memory indexes aren't needed for this
+            String chunkSize = optionValue(args, "--load-chunk");
+            new BulkLoader(pool, chunkSize == null ? BulkLoader.DEFAULT_CHUNK_SIZE : Integer.parseInt(chunkSize))
+                    .load(Path.of(loadFile));
+            return;
+        }
+        String seedBooks = optionValue(args, "--seed-books");
+        String seedMembers = optionValue(args, "--seed-members");
+        if (seedBooks != null || seedMembers != null) {
+            // Add a synthetic catalog and member population to run the load test against
+            if (!LoadGenerator.seed(pool, seedBooks == null ? 0 : Integer.parseInt(seedBooks),
+                    seedMembers == null ? 0 : Integer.parseInt(seedMembers))) {
+                return;
             }
-            // Commit or rollback transaction based on command success
-            if (parseCommand(command, connectionUrl)) {
-                connection.commit();
-            } else {
-                connection.rollback();
-                System.out.println("This transaction failed and was rolled back.");
+        }
+        if (hasOption(args, "--keyword-index")) {
+            // Load the keyword table into memory so keyword searches don't need to scan it on the server
+            try (UnitOfWork work = new UnitOfWork(pool)) {
+                keywordIndex = KeywordIndex.load(work);
+                work.commit();
+            }
+            System.out.println(keywordIndex.getStats());
+        }
+        if (hasOption(args, "--search-index")) {
+            // Load titles and names into trigram indexes so substring searches don't scan the whole table
+            try (UnitOfWork work = new UnitOfWork(pool)) {
+                titleIndex = TrigramIndex.load("titles", work, "SELECT bookID, title FROM book");
+                authorIndex = TrigramIndex.load("authors", work, "SELECT authorID, firstName, lastName FROM author");
+                System.out.println(titleIndex.getStats());
+                System.out.println(authorIndex.getStats());
+                // Members can't search for other members, so only staff logins need their names in memory
+                if (userType != USER_TYPE.MEMBER) {
+                    memberIndex = TrigramIndex.load("members", work, "SELECT memberID, memFirstName, memLastName FROM member");
+                    System.out.println(memberIndex.getStats());
+                }
+                work.commit();
             }
         }
+        if (hasOption(args, "--prefix-index")) {
+            // Load titles, author names and genre names into prefix indexes for the complete command
+            try (UnitOfWork work = new UnitOfWork(pool)) {
+                titlePrefixes = PrefixIndex.load("titles", work, "SELECT bookID, title FROM book");
+                authorPrefixes = PrefixIndex.load("authors", work, "SELECT authorID, firstName, lastName FROM author");
+                genrePrefixes = PrefixIndex.load("genres", work, "SELECT genreID, genreName FROM genre");
+                System.out.println(titlePrefixes.getStats());
+                System.out.println(authorPrefixes.getStats());
+                System.out.println(genrePrefixes.getStats());
+                work.commit();
+            }
+        }
+        String loadTestWorkers = optionValue(args, "--load-test");
+        if (loadTestWorkers != null) {
+            // Replay synthetic circulation traffic from many workers and report latency per operation
+            String duration = optionValue(args, "--duration");
+            String rate = optionValue(args, "--rate");
+            String mix = optionValue(args, "--mix");
+            new LoadGenerator(pool, userType, Integer.parseInt(loadTestWorkers),
+                    duration == null ? LoadGenerator.DEFAULT_DURATION_SECONDS : Integer.parseInt(duration),
+                    rate == null ? 0 : Double.parseDouble(rate), mix == null ? LoadGenerator.DEFAULT_MIX : mix).run();
+            return;
+        }
+        String serverLoadTestClients = optionValue(args, "--server-load-test");
+        if (serverLoadTestClients != null) {
+            // Same traffic as --load-test, sent by loopback clients through a session server in this process
+            String duration = optionValue(args, "--duration");
+            String rate = optionValue(args, "--rate");
+            String mix = optionValue(args, "--mix");
+            new LoadGenerator(pool, userType, Integer.parseInt(serverLoadTestClients),
+                    duration == null ? LoadGenerator.DEFAULT_DURATION_SECONDS : Integer.parseInt(duration),
+                    rate == null ? 0 : Double.parseDouble(rate), mix == null ? LoadGenerator.DEFAULT_MIX : mix).runThroughServer();
+            return;
+        }
+        String holdTestWorkers = optionValue(args, "--hold-test");
+        if (holdTestWorkers != null) {
+            // Hold and return one book from many workers at once, then check the hold queue is still consistent
+            String duration = optionValue(args, "--duration");
+            LoadGenerator.holdTest(pool, userType, Integer.parseInt(holdTestWorkers),
+                    duration == null ? LoadGenerator.DEFAULT_HOLD_TEST_SECONDS : Integer.parseInt(duration));
+            return;
+        }
+        String checkoutTestWorkers = optionValue(args, "--checkout-test");
+        if (checkoutTestWorkers != null) {
+            // Check out one book from many workers at once, then check no copy was given out twice
+            String copies = optionValue(args, "--copies");
+            LoadGenerator.checkoutTest(pool, userType, Integer.parseInt(checkoutTestWorkers),
+                    copies == null ? LoadGenerator.DEFAULT_CHECKOUT_TEST_COPIES : Integer.parseInt(copies));
+            return;
+        }
+        String reconcilePeriod = optionValue(args, "--reconcile-stats");
+        if (reconcilePeriod != null) {
+            // Rebuild the circulation counters every so often in the background, in case they drift from the loans
+            new CirculationStats(pool).scheduleEvery(Long.parseLong(reconcilePeriod));
+        }
+        String overdueReport = optionValue(args, "--overdue-report");
+        if (overdueReport != null) {
+            // Write the overdue report every night while the app is running
+            String runTime = optionValue(args, "--overdue-report-at");
+            new OverdueReport(pool).scheduleDaily(Path.of(overdueReport),
+                    runTime == null ? OverdueReport.DEFAULT_RUN_TIME : LocalTime.parse(runTime));
+        }
+        String httpPort = optionValue(args, "--http");
+        if (httpPort != null) {
+            // Serve the JSON API until the console says to stop
+            try (ApiServer api = new ApiServer(pool, Integer.parseInt(httpPort))) {
+                api.start();
+                System.out.println("Type 'exit' to stop the server.");
+                while (console.hasNextLine() && !console.nextLine().trim().equals("exit")) {
+                    System.out.println(api.getStats());
+                }
+                System.out.println(api.getStats());
+            }
+            return;
+        }
+        if (server) {
+            // Serve many desks from this one process, each client gets its own session on the shared pool
+            try (SessionServer listener = new SessionServer(Integer.parseInt(optionValue(args, "--server")), userType)) {
+                sessionServer = listener;
+                listener.serve();
+            } finally {
+                sessionServer = null;
+            }
+            return;
+        }
+        Session session = new Session(userType, memberID, console, System.out);
+        String batchFile = optionValue(args, "--batch");
+        if (batchFile != null) {
+            // Run a script of commands instead of prompting for them, "-" reads the script from standard input
+            String batchSize = optionValue(args, "--batch-size");
+            if (!batchFile.equals("-")) {
+                session.input = new Scanner(Path.of(batchFile), StandardCharsets.UTF_8);
+            }
+            session.interactive = false;
+            runBatch(session, batchSize == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(batchSize));
+            return;
+        }
+        runSession(session);
+    } finally {
+        CommandMetrics.stopEndpoint();
+        if (slowQueryLog != null) {
+            slowQueryLog.close();
+        }
     }
 }
 
-// Method to execute a stored procedure with the given parameter and procedure name
-private static ResultSet executeProcedure(String procedureName, String parameter, String connectionUrl, List<String> columns) {
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         CallableStatement callableStatement = connection.prepareCall("{call " + procedureName + "(?)}")) {
-        callableStatement.setString(1, parameter);
-        boolean hasResultSet = callableStatement.execute();
-        if (hasResultSet) {
-            try (ResultSet resultSet = callableStatement.getResultSet()) {
-                int count = 1;
-                while (resultSet.next()) {
-                    System.out.println("Result " + count + ":");
-                    printLine();
-                    for (String column : columns) {
-                        try {
-                            System.out.println(column + ": " + resultSet.getString(column));
-                        } catch (SQLException e) {
-                            System.out.println(column + ": N/A");
-                        }
-                        if (column.equals("expiryDate")) { // Handle overdue checking at query time
-                            try {
-                                Date expiryDate = resultSet.getDate(column);
-                                if (expiryDate.before(new Date(System.currentTimeMillis()))) {
-                                    System.out.println("(OVERDUE!)");
-                                }
-                            } catch (SQLException e) {
-                                System.out.println(e.getMessage());
-                            }
-                        }
-                    }
-                    count++;
-                    printLine();
-                }
-                return resultSet;
+// Method to point the app at a pool without the login, for code that runs commands against a stand-in database
+// such as the JMH round trips and the tests
+static void setUp(ConnectionPool pool, long cacheTtlSeconds) {
+    connectionPool = pool;
+    createCaches(cacheTtlSeconds);
+}
+
+// Method to run one user's commands until they log out or their input ends
+static void runSession(Session session) {
+    while (true) { // Main loop for user input
+        session.out.println(COMMAND_PROMPT);
+        printLine(session);
+        printAvailableCommands(session);
+        printLine(session);
+        if (!session.input.hasNextLine()) {
+            break;
+        }
+        String command = session.readLine();
+        // Exit command to log out of the database
+        if (command.equals("exit") || command.equals("logout")) {
+            session.out.println("Logged out of library database");
+            printStats(session);
+            break;
+        }
+        if (runSettingCommand(session, command)) {
+            continue;
+        }
+        if (!runCommand(session, command)) {
+            session.out.println(FAILED_COMMAND_MESSAGE);
+        }
+    }
+}
+
+// Method to run one command as its own unit of work, so all of its statements share one connection and transaction
+// parseCommand will return a boolean indicating the success status of the command
+// If the command is successful, we commit the transaction with work.commit()
+// Otherwise, we rollback the transaction with work.rollback(), and this returns false
+static boolean runCommand(Session session, String command) {
+    String line = command.trim();
+    if (line.equals("complete") || line.startsWith("complete ")) {
+        // complete only reads the prefix indexes, so it runs without borrowing a connection or opening a transaction
+        String[] parts = splitCommand(line);
+        return runComplete(session, Arrays.copyOfRange(parts, 1, parts.length));
+    }
+    try (UnitOfWork work = new UnitOfWork(connectionPool)) {
+        try {
+            if (parseCommand(session, command, work)) {
+                work.commit();
+                return true;
             }
+        } catch (RuntimeException e) {
+            // Input the command can't use, e.g. too few answers to a prompt or an ID that isn't a number
+            session.error(e);
         }
+        work.rollback();
+        return false;
     } catch (SQLException e) {
-        System.out.println(e.getMessage());
-        return null;
+        session.error(e);
+        return false;
     }
-    return null;
 }
 
-// Same as above but takes an arbitrary amount of parameters
-private static ResultSet executeProcedure(String procedureName, String[] parameters, String connectionUrl, List<String> columns) {
-    StringBuilder callStatement = new StringBuilder("{call " + procedureName + "(");
-    for (int i = 0; i < parameters.length; i++) {
-        callStatement.append("?");
-        if (i < parameters.length - 1) {
-            callStatement.append(", ");
-        }
+// Method to run the commands that only change console settings or print stats, returns false for commands that need the database
+private static boolean runSettingCommand(Session session, String command) {
+    // Change how query results are printed, this doesn't touch the database
+    if (command.startsWith("format")) {
+        setOutputFormat(session, command.substring("format".length()));
+        return true;
     }
-    callStatement.append(")}");
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         CallableStatement callableStatement = connection.prepareCall(callStatement.toString())) {
-        for (int i = 0; i < parameters.length; i++) {
-            callableStatement.setString(i + 1, parameters[i]);
-        }
-        boolean hasResultSet = callableStatement.execute();
-        if (hasResultSet) {
-            try (ResultSet resultSet = callableStatement.getResultSet()) {
-                int count = 1;
-                while (resultSet.next()) {
-                    System.out.println("Result " + count + ":");
-                    printLine();
-                    for (String column : columns) {
-                        try {
-                            System.out.println(column + ": " + resultSet.getString(column));
-                        } catch (SQLException e) {
-                            System.out.println(column + ": N/A");
-                        }
-                    }
-                    count++;
-                    printLine();
+    if (command.startsWith("pagesize")) {
+        setPageSize(session, command.substring("pagesize".length()));
+        return true;
+    }
+    if (command.equals("stats")) {
+        printStats(session);
+        return true;
+    }
+    return false;
+}
+
+// Method to run every command in the batch input, committing them in transactions of batchSize commands
+// Each line is a command followed by its arguments (e.g. "11 42 7"), commands that prompt for more input
+// read the answers from the lines after it, blank lines and lines starting with # are skipped
+// If anything in a transaction fails, it is rolled back and its commands are replayed one at a time,
+// so only the commands that actually fail are lost
+static void runBatch(Session session, int batchSize) {
+    long start = System.nanoTime();
+    int succeeded = 0;
+    int failed = 0;
+    boolean exit = false;
+    while (!exit && session.input.hasNextLine()) {
+        List<String> lines = new ArrayList<>();
+        session.batchLines = lines;
+        int commands = 0;
+        boolean committed = false;
+        try (UnitOfWork work = new UnitOfWork(connectionPool)) {
+            // Consecutive calls to the same procedure are sent to the server together
+            work.setBatching(true);
+            boolean ok = true;
+            while (ok && commands < batchSize && session.input.hasNextLine()) {
+                String command = session.readLine().trim();
+                if (command.isEmpty() || command.startsWith("#") || runSettingCommand(session, command)) {
+                    continue;
+                }
+                if (command.equals("exit") || command.equals("logout")) {
+                    lines.remove(lines.size() - 1);
+                    exit = true;
+                    break;
                 }
-                return resultSet;
+                commands++;
+                try {
+                    ok = parseCommand(session, command, work);
+                } catch (RuntimeException e) {
+                    // The batch is replayed one command at a time, where this command fails on its own
+                    session.error(e);
+                    ok = false;
+                }
+            }
+            if (ok) {
+                work.commit();
+                committed = true;
             }
+        } catch (SQLException e) {
+            session.error(e);
+        }
+        session.batchLines = null;
+        if (committed) {
+            succeeded += commands;
+        } else {
+            session.out.println("A batch of " + commands + " commands was rolled back, running them one at a time.");
+            int replayFailed = replayBatch(session, lines);
+            succeeded += commands - replayFailed;
+            failed += replayFailed;
         }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    session.out.printf("Batch finished: %d commands succeeded, %d failed in %.2f s (%.0f commands/s)%n",
+            succeeded, failed, seconds, (succeeded + failed) / Math.max(seconds, 1e-9));
+    printStats(session);
+}
+
+// Method to run the commands of a rolled back batch again, each in its own transaction, returns how many failed
+private static int replayBatch(Session session, List<String> lines) {
+    Scanner batchInput = session.input;
+    session.input = new Scanner(String.join("\n", lines));
+    int failed = 0;
+    try {
+        while (session.input.hasNextLine()) {
+            String command = session.readLine().trim();
+            if (command.isEmpty() || command.startsWith("#") || runSettingCommand(session, command)) {
+                continue;
+            }
+            if (!runCommand(session, command)) {
+                failed++;
+                session.out.println("Command failed: " + command);
+            }
+        }
+    } finally {
+        session.input = batchInput;
+    }
+    return failed;
+}
+
+// Method to switch the output format used for query results
+private static void setOutputFormat(Session session, String name) {
+    ResultRenderer.Format format = ResultRenderer.parseFormat(name);
+    if (format == null) {
+        session.out.println("Unknown format. Please enter 'records', 'table', 'csv', or 'json'.");
+        return;
+    }
+    session.renderer.setFormat(format);
+    session.out.println("Results will be printed as " + format.name().toLowerCase() + ".");
+}
+
+// Method to execute a stored procedure with the given parameter and procedure name
+private static boolean executeProcedure(Session session, String procedureName, String parameter, UnitOfWork work, List<String> columns) {
+    return executeProcedure(session, procedureName, new String[] {parameter}, work, columns);
+}
+
+// Same as above but takes an arbitrary amount of parameters, returns false if it failed or returned no result set
+private static boolean executeProcedure(Session session, String procedureName, String[] parameters, UnitOfWork work, List<String> columns) {
+    try {
+        return renderProcedure(work, session.renderer, procedureName, parameters, columns) >= 0;
     } catch (SQLException e) {
-        System.out.println(e.getMessage());
-        return null;
+        session.error(e);
+        return false;
     }
-    return null;
 }
 
-// Method to run a stored procedure with an arbitrary amount of parameters and no result set
-private static boolean executeProcedureNoResult(String procedureName, String[] parameters, String connectionUrl) {
-    StringBuilder callStatement = new StringBuilder("{call " + procedureName + "(");
+// Method to run a stored procedure and print its result set with a renderer, the execute path the console commands
+// share with the HTTP API, so both are timed in the command metrics and reach the slow query log
+// Returns the number of rows printed, or -1 if the procedure returned no result set
+static int renderProcedure(UnitOfWork work, ResultRenderer renderer, String procedureName, String[] parameters, List<String> columns)
+        throws SQLException {
+    long start = System.nanoTime();
+    CallableStatement callableStatement = work.prepareCall(procedureName, parameters.length);
     for (int i = 0; i < parameters.length; i++) {
-        callStatement.append("?");
-        if (i < parameters.length - 1) {
-            callStatement.append(", ");
-        }
+        callableStatement.setString(i + 1, parameters[i]);
     }
-    callStatement.append(")}");
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         CallableStatement callableStatement = connection.prepareCall(callStatement.toString())) {
-        for (int i = 0; i < parameters.length; i++) {
-            callableStatement.setString(i + 1, parameters[i]);
+    callableStatement.setFetchSize(ResultRenderer.FETCH_SIZE);
+    boolean hasResultSet = callableStatement.execute();
+    CommandMetrics.recordExecute(System.nanoTime() - start);
+    int rows = -1;
+    if (hasResultSet) {
+        try (ResultSet resultSet = callableStatement.getResultSet()) {
+            rows = renderMeasured(renderer, resultSet, columns);
         }
-        callableStatement.execute();
+    }
+    logIfSlow(procedureName, null, parameters, start, Math.max(rows, 0));
+    return rows;
+}
+
+// Method to run a stored procedure with an arbitrary amount of parameters and no result set
+private static boolean executeProcedureNoResult(Session session, String procedureName, String[] parameters, UnitOfWork work) {
+    try {
+        callProcedure(work, procedureName, parameters);
         return true;
     } catch (SQLException e) {
-        System.out.println(e.getMessage());
+        session.error(e);
+        return false;
+    }
+}
+
+// Method to run a stored procedure that returns nothing, shared with the HTTP API
+// In batch mode the call is queued and sent to the server together with the calls after it
+static void callProcedure(UnitOfWork work, String procedureName, String[] parameters) throws SQLException {
+    long start = System.nanoTime();
+    CallableStatement callableStatement = work.prepareCall(procedureName, parameters.length);
+    for (int i = 0; i < parameters.length; i++) {
+        callableStatement.setString(i + 1, parameters[i]);
+    }
+    if (work.isBatching()) {
+        work.addBatch(callableStatement);
+        CommandMetrics.recordExecute(System.nanoTime() - start);
+        return;
+    }
+    callableStatement.execute();
+    CommandMetrics.recordExecute(System.nanoTime() - start);
+    logIfSlow(procedureName, null, parameters, start, 0);
+}
+
+// Method to print the result of a one-parameter procedure through a cache, the database is only called on a miss
+// A null key (e.g. an ID that isn't a number) bypasses the cache
+private static <K> boolean executeCachedProcedure(Session session, CatalogCache<K, ResultRenderer.Rows> cache, K key, String procedureName,
+        String parameter, UnitOfWork work, List<String> columns) {
+    try {
+        return renderCached(work, session.renderer, cache, key, procedureName, parameter, columns);
+    } catch (SQLException e) {
+        session.error(e);
         return false;
     }
 }
 
+// Method behind executeCachedProcedure, returns false if the procedure returned no result set
+private static <K> boolean renderCached(UnitOfWork work, ResultRenderer renderer, CatalogCache<K, ResultRenderer.Rows> cache, K key,
+        String procedureName, String parameter, List<String> columns) throws SQLException {
+    if (key == null || !cache.isEnabled()) {
+        return renderProcedure(work, renderer, procedureName, new String[] {parameter}, columns) >= 0;
+    }
+    ResultRenderer.Rows rows = cache.get(key);
+    if (rows == null) {
+        long stamp = cache.stamp();
+        long start = System.nanoTime();
+        CallableStatement callableStatement = work.prepareCall(procedureName, 1);
+        callableStatement.setString(1, parameter);
+        boolean hasResultSet = callableStatement.execute();
+        CommandMetrics.recordExecute(System.nanoTime() - start);
+        if (!hasResultSet) {
+            return false;
+        }
+        try (ResultSet resultSet = callableStatement.getResultSet()) {
+            rows = ResultRenderer.read(resultSet, columns);
+        }
+        logIfSlow(procedureName, null, new String[] {parameter}, start, rows.size());
+        // Misses are cached too, so repeated lookups of an ISBN that isn't in the catalog don't reach the database
+        cache.put(key, rows, stamp);
+    }
+    long start = System.nanoTime();
+    int printed = renderer.render(rows);
+    CommandMetrics.recordRender(System.nanoTime() - start, printed);
+    return true;
+}
+
+// Method to print a book's details through the book cache, shared with the HTTP API
+static boolean renderBookDetails(UnitOfWork work, ResultRenderer renderer, String bookID) throws SQLException {
+    return renderCached(work, renderer, bookCache, idKey(bookID), "bookDetails", bookID, BOOK_COLUMNS);
+}
+
+// Method to print the books with an ISBN through the ISBN cache, shared with the HTTP API
+static boolean renderISBN(UnitOfWork work, ResultRenderer renderer, String isbn) throws SQLException {
+    return renderCached(work, renderer, isbnCache, isbn.trim(), "searchISBN", isbn, BOOK_COLUMNS);
+}
+
+// Method to print a result set and record how long it took, which includes fetching rows past the first fetch
+// Returns the number of rows printed
+private static int renderMeasured(ResultRenderer renderer, ResultSet resultSet, List<String> columns) throws SQLException {
+    long start = System.nanoTime();
+    int printed = renderer.render(resultSet, columns);
+    CommandMetrics.recordRender(System.nanoTime() - start, printed);
+    return printed;
+}
+
+// Method to pass a statement that started at start to the slow query log, if there is one
+private static void logIfSlow(String name, String sql, String[] parameters, long start, int rows) {
+    if (slowQueryLog != null) {
+        slowQueryLog.record(name, sql, parameters, System.nanoTime() - start, rows);
+    }
+}
+
+// The value executeQuery binds for a parameter, numbers as they are and anything else as a LIKE pattern
+private static String boundParameter(String parameter) {
+    try {
+        return Integer.toString(Integer.parseInt(parameter));
+    } catch (NumberFormatException e) {
+        return "%" + parameter + "%";
+    }
+}
+
+// Method to turn an ID argument into a cache key, returns null if it isn't a number
+private static Integer idKey(String id) {
+    try {
+        return Integer.valueOf(id.trim());
+    } catch (NumberFormatException e) {
+        return null;
+    }
+}
+
+// Method to run a procedure whose last parameter is an int OUTPUT, e.g. an insert setting it to the new row's ID
+// Returns the output, or -1 if the procedure failed
+private static int executeProcedureForOutput(Session session, String procedureName, String[] parameters, UnitOfWork work) {
+    try {
+        return callProcedureForOutput(work, procedureName, parameters);
+    } catch (SQLException e) {
+        session.error(e);
+        return -1;
+    }
+}
+
+// Method behind executeProcedureForOutput, shared with the HTTP API
+static int callProcedureForOutput(UnitOfWork work, String procedureName, String[] parameters) throws SQLException {
+    long start = System.nanoTime();
+    CallableStatement callableStatement = work.prepareCall(procedureName, parameters.length + 1);
+    for (int i = 0; i < parameters.length; i++) {
+        callableStatement.setString(i + 1, parameters[i]);
+    }
+    callableStatement.registerOutParameter(parameters.length + 1, Types.INTEGER);
+    // Output parameters can't be read from a batch, so inserts always run right away
+    callableStatement.execute();
+    CommandMetrics.recordExecute(System.nanoTime() - start);
+    logIfSlow(procedureName, null, parameters, start, 0);
+    return callableStatement.getInt(parameters.length + 1);
+}
+
 // Method to run simple queries that take one parameter
 // This method is used for the more simple commands to avoid duplicate code
 // Requires a list of columns to retrieve and print from the query
-private static boolean executeQuery(String query, String parameter, String connectionUrl, List<String> columns) {
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+private static boolean executeQuery(Session session, String query, String parameter, UnitOfWork work, List<String> columns) {
+    try {
+        long start = System.nanoTime();
+        PreparedStatement preparedStatement = work.prepareStatement(query);
         // If parameter is integer, set as int, otherwise set as string
         try {
             preparedStatement.setInt(1, Integer.parseInt(parameter));
         } catch (NumberFormatException e) {
             preparedStatement.setString(1, "%" + parameter + "%");
         }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        int count = 1;
-        while (resultSet.next()) {
-            System.out.println("Result " + count + ":");
-            printLine();
-            for (String column : columns) {
-                // Check if column exists in result set
-                try {
-                    System.out.println(column + ": " + resultSet.getString(column));
-                } catch (SQLException e) {
-                    System.out.println(column + ": N/A");
-                }
-                if (column.equals("expiryDate")) { // Handle overdue checking at query time
-                    try {
-                        Date expiryDate = resultSet.getDate(column);
-                        if (expiryDate.before(new Date(System.currentTimeMillis()))) {
-                            System.out.println("(OVERDUE!)");
-                        }
-                    } catch (SQLException e) {
-                        System.out.println(e.getMessage());
-                    }
-                }
-            }
-            count++;
-            printLine();
+        preparedStatement.setFetchSize(ResultRenderer.FETCH_SIZE);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            CommandMetrics.recordExecute(System.nanoTime() - start);
+            int rows = renderMeasured(session.renderer, resultSet, columns);
+            logIfSlow("query", query, new String[] {boundParameter(parameter)}, start, rows);
         }
-        resultSet.close();
         return true;
     } catch (SQLException e) {
-        System.out.println(e.getMessage());
+        session.error(e);
         return false;
     }
 }
 
 // Method to check out a book by its given ID (this finds a copy of the book that is available)
-private static boolean checkoutBook(String[] tokens, String connectionUrl, int id) {
+private static boolean checkoutBook(Session session, String[] tokens, UnitOfWork work, int id) {
     String bookID = tokens[0];
     String memberID = Integer.toString(id); // Can pass in a member ID to check out a book for them
     // Call the stored procedure to check out a book (first parameter is member ID, second is book ID)
     String[] array = {memberID, bookID};
-    if (executeProcedureNoResult("checkOutBook", array, connectionUrl)) {
-        System.out.println("Book checked out successfully.");
+    if (executeProcedureNoResult(session, "checkOutBook", array, work)) {
+        session.out.println("Book checked out successfully.");
         return true;
     } else {
-        System.out.println("Error checking out book.");
+        session.out.println("Error checking out book.");
         return false;
     }
 }
 
 // Method to check out a specific copy of a book, which is similar to checkoutBook but uses the copy ID directly
-private static boolean checkoutCopy(String[] tokens, String connectionUrl, int id) {
+// The copy has to be free or held by the member, in which case their hold becomes the loan
+private static boolean checkoutCopy(Session session, String[] tokens, UnitOfWork work, int id) {
     String copyID = tokens[0];
     String memberID = Integer.toString(id);
     // Call the stored procedure to check out a copy (first parameter is member ID, second is copy ID)
     String[] array = {memberID, copyID};
-    if (executeProcedureNoResult("checkoutCopy", array, connectionUrl)) {
-        System.out.println("Copy checked out successfully.");
+    if (executeProcedureNoResult(session, "checkoutCopy", array, work)) {
+        session.out.println("Copy checked out successfully.");
         return true;
     } else {
-        System.out.println("Error checking out copy.");
+        session.out.println("Error checking out copy.");
         return false;
     }
 }
 
 // This method places a hold on a book by its ID and is similar to checkoutBook but the MemberCopy created is 'held' instead of 'checkedOut'
-private static boolean holdBook(String[] tokens, String connectionUrl, int id) {
+// If every copy is taken the member joins the book's hold queue instead, and the next copy returned is held for them
+private static boolean holdBook(Session session, String[] tokens, UnitOfWork work, int id) {
     String bookID = tokens[0];
     String memberID = Integer.toString(id);
-    // Call the stored procedure to hold a book (first parameter is member ID, second is book ID)
+    // Call the stored procedure to hold a book (first parameter is member ID, second is book ID, third is the queue position)
     String[] array = {memberID, bookID};
-    if (executeProcedureNoResult("holdBook", array, connectionUrl)) {
-        System.out.println("Book held successfully.");
+    if (work.isBatching()) {
+        // Output parameters can't be read from a batch, so a batched hold leaves @queuePosition to its default and
+        // doesn't report where in the queue the member is
+        if (executeProcedureNoResult(session, "holdBook", array, work)) {
+            session.out.println("Book held successfully.");
+            return true;
+        }
+        session.out.println("Error holding book.");
+        return false;
+    }
+    int queuePosition = executeProcedureForOutput(session, "holdBook", array, work);
+    if (queuePosition == 0) {
+        session.out.println("Book held successfully.");
+        return true;
+    } else if (queuePosition > 0) {
+        session.out.println("Every copy is taken, so this is number " + queuePosition + " in the queue for the book."
+                + " The next copy returned will be held for it.");
         return true;
     } else {
-        System.out.println("Error holding book.");
+        session.out.println("Error holding book.");
+        return false;
+    }
+}
+
+// Method to stop waiting in the hold queue for a book
+private static boolean leaveHoldQueue(Session session, String[] tokens, UnitOfWork work, int id) {
+    String[] array = {Integer.toString(id), tokens[0]};
+    if (executeProcedureNoResult(session, "leaveHoldQueue", array, work)) {
+        session.out.println("Left the hold queue successfully.");
+        return true;
+    } else {
+        session.out.println("Error leaving the hold queue.");
         return false;
     }
 }
 
 // This method places a hold on a specific copy of a book, which is similar to holdBook but uses the copy ID directly
-private static boolean holdCopy(String[] tokens, String connectionUrl, int id) {
+private static boolean holdCopy(Session session, String[] tokens, UnitOfWork work, int id) {
     String copyID = tokens[0];
     String memberID = Integer.toString(id);
     // Call the stored procedure to hold a copy (first parameter is member ID, second is copy ID)
     String[] array = {memberID, copyID};
-    if (executeProcedureNoResult("holdCopy", array, connectionUrl)) {
-        System.out.println("Copy held successfully.");
+    if (executeProcedureNoResult(session, "holdCopy", array, work)) {
+        session.out.println("Copy held successfully.");
         return true;
     } else {
-        System.out.println("Error holding copy.");
+        session.out.println("Error holding copy.");
         return false;
     }
 }
 
 // Method to return a checked out copy of a book by its copyID, removing the row from MemberCopy
-private static boolean returnCopy(String[] tokens, String connectionUrl, int id) {
+private static boolean returnCopy(Session session, String[] tokens, UnitOfWork work, int id) {
     String copyID = tokens[0];
-    // Call the stored procedure to return a copy by its ID
+    // Call the stored procedure to return a copy by its ID, it holds the copy for the next member waiting for the book
     String[] array = {copyID};
-    if (executeProcedureNoResult("returnCopy", array, connectionUrl)) {
-        System.out.println("Copy returned successfully.");
+    if (work.isBatching()) {
+        // Output parameters can't be read from a batch, so a batched return leaves @heldForMemberID to its default and
+        // doesn't report who the copy went to; the hand-off still happens in the procedure
+        if (executeProcedureNoResult(session, "returnCopy", array, work)) {
+            session.out.println("Copy returned successfully.");
+            return true;
+        }
+        session.out.println("Error returning copy.");
+        return false;
+    }
+    int heldForMemberID = executeProcedureForOutput(session, "returnCopy", array, work);
+    if (heldForMemberID == 0) {
+        session.out.println("Copy returned successfully.");
+        return true;
+    } else if (heldForMemberID > 0) {
+        session.out.println("Copy returned successfully. It is now held for member " + heldForMemberID + ", who was next in the queue.");
         return true;
     } else {
-        System.out.println("Error returning copy.");
+        session.out.println("Error returning copy.");
         return false;
     }
 }
 
 // Method to print all loans for a member
-private static boolean printLoans(String[] tokens, String connectionUrl, int id) {
+private static boolean printLoans(Session session, String[] tokens, UnitOfWork work, int id) {
     String memberID = Integer.toString(id);
     // Call stored procedure to view all loans for a member
-    return executeProcedure("getLoans", memberID, connectionUrl, MEMBER_COPY_COLUMNS) != null;
+    return executeProcedure(session, "getLoans", memberID, work, MEMBER_COPY_COLUMNS);
+}
+
+// Method to print the longest overdue loans, or write every overdue loan to a report file if a file is given
+private static boolean printOverdue(Session session, String file, UnitOfWork work) {
+    if (!file.isEmpty()) {
+        // The report runs its own chunked transactions, so it doesn't hold this command's connection for the whole pass
+        long loans = new OverdueReport(connectionPool).write(Path.of(file));
+        if (loans < 0) {
+            return false;
+        }
+        session.out.println(loans + " overdue loans written to " + file + ".");
+        return true;
+    }
+    String[] parameters = {"19000101", "0", "0", Integer.toString(session.pageSize)};
+    if (!executeProcedure(session, "getOverdueLoans", parameters, work, OverdueReport.COLUMNS)) {
+        return false;
+    }
+    if (session.renderer.getLastRowCount() == session.pageSize) {
+        session.out.println("Showing the " + session.pageSize + " longest overdue loans, type 'overdue <file>' to write all of them to a file.");
+    }
+    return true;
+}
+
+// Method to print the circulation dashboards, these only read the counters and never aggregate loans
+private static boolean printCirculationStats(Session session, UnitOfWork work) {
+    session.out.println("Most borrowed books this month:");
+    if (!executeProcedure(session, "getTopBooksThisMonth", Integer.toString(TOP_BOOKS), work, TOP_BOOK_COLUMNS)) {
+        return false;
+    }
+    session.out.println("Loans per genre this month:");
+    if (!executeProcedure(session, "getGenreLoansThisMonth", new String[0], work, GENRE_LOAN_COLUMNS)) {
+        return false;
+    }
+    session.out.println("Active members (recently active means in the last 30 days):");
+    return executeProcedure(session, "getActiveMembers", new String[0], work, ACTIVE_MEMBER_COLUMNS);
+}
+
+// Method to list the titles, author names or genre names with a word starting with a prefix, from the prefix indexes
+// The prefix is everything after the kind, so it can run on into a second word ("complete author jane au")
+private static boolean complete(Session session, String[] args) {
+    if (titlePrefixes == null) {
+        session.out.println("Completion needs the prefix indexes, start the app with --prefix-index.");
+        return false;
+    }
+    PrefixIndex index = null;
+    if (args.length >= 2) {
+        switch (args[0]) {
+            case "title":
+                index = titlePrefixes;
+                break;
+            case "author":
+                index = authorPrefixes;
+                break;
+            case "genre":
+                index = genrePrefixes;
+                break;
+        }
+    }
+    if (index == null) {
+        session.out.println("Usage: complete <title|author|genre> <prefix>");
+        return false;
+    }
+    List<PrefixIndex.Completion> completions = index.complete(String.join(" ", Arrays.copyOfRange(args, 1, args.length)), COMPLETIONS);
+    if (completions.isEmpty()) {
+        session.out.println("No completions found.");
+    }
+    for (PrefixIndex.Completion completion : completions) {
+        session.out.println(completion.id + ": " + completion.text);
+    }
+    return true;
+}
+
+// Method to get the citation graph, loading it with this unit of work the first time
+private static synchronized CitationGraph citationGraph(UnitOfWork work) throws SQLException {
+    if (citationGraph == null) {
+        citationGraph = CitationGraph.load(work);
+    }
+    return citationGraph;
+}
+
+// Method to run the citation commands: cites and citedby <bookID> [depth], cocited <bookID>, mostcited,
+// and addreference <bookID> <cited bookID> for curators
+private static boolean runCitationCommand(Session session, String command, String[] args, UnitOfWork work) {
+    try {
+        if (command.equals("addreference")) {
+            if (session.userType != USER_TYPE.CURATOR || args.length != 2) {
+                session.out.println(session.userType != USER_TYPE.CURATOR ? "Only curators can add references."
+                        : "Usage: addreference <bookID> <cited bookID>");
+                return false;
+            }
+            return addReference(session, Integer.parseInt(args[0]), Integer.parseInt(args[1]), work);
+        }
+        CitationGraph graph = citationGraph(work);
+        if (command.equals("mostcited")) {
+            return printRanked(session, graph.mostCited(session.pageSize), "most cited books", "cited by", work);
+        }
+        if (args.length < 1) {
+            session.out.println("Usage: " + command + " <bookID>" + (command.equals("cocited") ? "" : " [depth]"));
+            return false;
+        }
+        int bookID = Integer.parseInt(args[0]);
+        if (command.equals("cocited")) {
+            return printRanked(session, graph.coCited(bookID, session.pageSize), "books most often cited with book " + bookID,
+                    "cited together by", work);
+        }
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CITATION_DEPTH;
+        if (depth < 1 || depth > MAX_CITATION_DEPTH) {
+            session.out.println("The depth must be between 1 and " + MAX_CITATION_DEPTH + ".");
+            return false;
+        }
+        boolean cites = command.equals("cites");
+        CitationGraph.Reached reached = cites ? graph.cites(bookID, depth) : graph.citedBy(bookID, depth);
+        int[] perHop = new int[depth + 1];
+        for (int hop : reached.hops) {
+            perHop[hop]++;
+        }
+        for (int hop = 1; hop <= depth; hop++) {
+            session.out.println(perHop[hop] + (cites ? " books cited by book " + bookID : " books citing book " + bookID)
+                    + (hop == 1 ? " directly" : " " + hop + " hops away"));
+        }
+        // Pages list books by ID, the in-memory search pages need them sorted
+        int[] bookIDs = reached.bookIDs.clone();
+        Arrays.sort(bookIDs);
+        return startSearch(session, new SearchPage("booksByIDs", bookIDs, "bookID", BOOK_COLUMNS, session.pageSize), work);
+    } catch (NumberFormatException e) {
+        session.out.println("Invalid book ID or depth. Please enter a number.");
+        return false;
+    } catch (SQLException e) {
+        session.error(e);
+        return false;
+    }
+}
+
+// Method to print a ranking of books and then their details, in the same order
+private static boolean printRanked(Session session, CitationGraph.Ranked ranked, String title, String scoreLabel, UnitOfWork work) {
+    session.out.println("The " + ranked.bookIDs.length + " " + title + ":");
+    for (int i = 0; i < ranked.bookIDs.length; i++) {
+        session.out.println((i + 1) + ". Book " + ranked.bookIDs[i] + ", " + scoreLabel + " " + ranked.scores[i] + " books");
+    }
+    return executeProcedureForIDs(session, "rankedBooksByIDs", ranked.bookIDs, work, BOOK_COLUMNS);
+}
+
+// Method to record that one book cites another, the graph is updated once the reference is committed
+private static boolean addReference(Session session, int referencingBookID, int referencedBookID, UnitOfWork work) {
+    String[] array = {Integer.toString(referencingBookID), Integer.toString(referencedBookID)};
+    if (!executeProcedureNoResult(session, "addReference", array, work)) {
+        session.out.println("Error adding reference.");
+        return false;
+    }
+    // A graph loaded after the insert committed already has the reference, add skips it then
+    work.afterCommit(() -> {
+        synchronized (App.class) {
+            if (citationGraph != null) {
+                citationGraph.add(referencingBookID, referencedBookID);
+            }
+        }
+    });
+    session.out.println("Reference added successfully.");
+    return true;
 }
 
 // Method to print all holds for a member
-private static boolean printHolds(String[] tokens, String connectionUrl, int id) {
+private static boolean printHolds(Session session, String[] tokens, UnitOfWork work, int id) {
+    String memberID = Integer.toString(id);
+    // Call stored procedure to view all holds for a member, then the books they are still waiting for
+    if (!executeProcedure(session, "getHolds", memberID, work, MEMBER_COPY_COLUMNS)) {
+        return false;
+    }
+    session.out.println("Waiting for:");
+    return executeProcedure(session, "getQueuedHolds", memberID, work, HOLD_QUEUE_COLUMNS);
+}
+
+// Method to page through a member's past loans and holds, newest first
+private static boolean printMemberHistory(Session session, String[] tokens, UnitOfWork work, int id) {
     String memberID = Integer.toString(id);
-    // Call stored procedure to view all holds for a member
-    return executeProcedure("getHolds", memberID, connectionUrl, MEMBER_COPY_COLUMNS) != null;
+    return startSearch(session, new SearchPage("getMemberHistory", memberID, "historyID", HISTORY_COLUMNS, session.pageSize), work);
+}
+
+// Method to page through everyone who has had a copy of a book, newest first
+private static boolean printBookHistory(Session session, String[] tokens, UnitOfWork work) {
+    String bookID = tokens[0];
+    return startSearch(session, new SearchPage("getBookHistory", bookID, "historyID", HISTORY_COLUMNS, session.pageSize), work);
 }
 
 // Method to search for a book by its title
-private static boolean searchTitle(String[] tokens, String connectionUrl) {
-    String title = tokens[0];
-    // Call stored procedure to search for a book by its title
-    return executeProcedure("searchTitle", title, connectionUrl, BOOK_COLUMNS) != null;
+private static boolean searchTitle(Session session, String[] tokens, UnitOfWork work) {
+    return startSearch(session, bookSearch("title", tokens[0], session.pageSize), work);
 }
 
 // Method to search for a book by its author
-public static boolean searchAuthor(String[] tokens, String connectionUrl) {
-    String author = tokens[0];
-    // Call stored procedure to search for a book by its author
-    return executeProcedure("searchAuthor", author, connectionUrl, BOOK_COLUMNS) != null;
+public static boolean searchAuthor(Session session, String[] tokens, UnitOfWork work) {
+    return startSearch(session, bookSearch("author", tokens[0], session.pageSize), work);
 }
 
 // Method to search for a book by its keywords (comma separated, AND's them)
-private static boolean searchKeywords(String[] tokens, String connectionUrl) {
-    // Special case--this was too complicated for us to find a way to do with a stored procedure
-    String[] keywords = tokens[0].split(",");
-    // This statement selects all rows from Book where there exists a Keyword row with the given word
-    StringBuilder selectStatement = new StringBuilder("SELECT * FROM Book b WHERE ");
-    for (int i = 0; i < keywords.length; i++) { // Add AND [exists keyword] for each keyword
-        if (i > 0) {
-            selectStatement.append(" AND ");
-        }
-        selectStatement.append("EXISTS (SELECT 1 FROM Keyword k WHERE k.bookID = b.bookID AND k.word = ?)");
-    }
+private static boolean searchKeywords(Session session, String[] tokens, UnitOfWork work) {
+    return startSearch(session, bookSearch("keywords", tokens[0], session.pageSize), work);
+}
 
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         PreparedStatement preparedStatement = connection.prepareStatement(selectStatement.toString())) {
-        for (int i = 0; i < keywords.length; i++) {
-            preparedStatement.setString(i + 1, keywords[i].trim());
-        }
-        // Print results as done in executeQuery
-        ResultSet resultSet = preparedStatement.executeQuery();
-        int count = 1;
-        while (resultSet.next()) {
-            System.out.println("Result " + count + ":");
-            printLine();
-            for (String column : BOOK_COLUMNS) {
-                try {
-                    System.out.println(column + ": " + resultSet.getString(column));
-                } catch (SQLException e) {
-                    System.out.println(column + ": N/A");
-                }
+// Method to set up a paged book search by title, author, keywords or genres, shared with the HTTP API
+// Uses the in-memory indexes when they are loaded, returns null for any other kind of search
+static SearchPage bookSearch(String by, String terms, int pageSize) {
+    switch (by) {
+        case "title":
+            int[] bookIDs = indexSearch(titleIndex, terms);
+            if (bookIDs != null) {
+                return new SearchPage("booksByIDs", bookIDs, "bookID", BOOK_COLUMNS, pageSize);
             }
-            count++;
-            printLine();
+            // Call stored procedure to search for a book by its title
+            return new SearchPage("searchTitle", terms, "bookID", BOOK_COLUMNS, pageSize);
+        case "author":
+            int[] authorIDs = indexSearch(authorIndex, terms);
+            if (authorIDs != null) {
+                // The matching books aren't known until the database joins the authors to them, so this is paged by the procedure
+                return new SearchPage("booksByAuthorIDs", joinIDs(authorIDs), "bookID", BOOK_COLUMNS, pageSize);
+            }
+            // Call stored procedure to search for a book by its author
+            return new SearchPage("searchAuthor", terms, "bookID", BOOK_COLUMNS, pageSize);
+        case "keywords":
+            if (keywordIndex != null) {
+                // Intersect the keyword bitmaps in memory and only fetch the matching books
+                return new SearchPage("booksByIDs", keywordIndex.search(terms.split(",")), "bookID", BOOK_COLUMNS, pageSize);
+            }
+            // The whole comma separated list is one parameter, so every search shares the same statement and plan
+            // no matter how many keywords are given
+            return new SearchPage("searchKeywords", terms, "bookID", BOOK_COLUMNS, pageSize);
+        case "genres":
+            // Same as keywords, genre names are matched case-insensitively by the database collation
+            return new SearchPage("searchGenres", terms, "bookID", BOOK_COLUMNS, pageSize);
+        default:
+            return null;
+    }
+}
+
+// Method to run a new paged search and print its first page
+private static boolean startSearch(Session session, SearchPage search, UnitOfWork work) {
+    session.currentSearch = search;
+    return showPage(session, work);
+}
+
+// Method to fetch and print the current page of the current search, only that one page is fetched
+private static boolean showPage(Session session, UnitOfWork work) {
+    SearchPage search = session.currentSearch;
+    try {
+        if (renderPage(work, session.renderer, search) < 0) {
+            return false;
         }
-        resultSet.close();
-        return true;
     } catch (SQLException e) {
-        System.out.println(e.getMessage());
+        session.error(e);
         return false;
     }
+    session.out.println("Page " + search.pageNumber()
+            + (search.hasNext() ? " (type 'next' for more results)" : " (end of results)")
+            + (search.hasPrevious() ? ", type 'prev' to go back" : ""));
+    return true;
 }
 
-// Method to search for a book by its genre(s) (comma separated, AND's them)
-public static boolean searchGenre(String[] tokens, String connectionUrl) {
-    // Special case--this was too complicated for us to find a way to do with a stored procedure
-    String[] genres = tokens[0].split(",");
-    // This statement selects all rows from Book where there exists a BookGenre row with the given genre
-    StringBuilder selectStatement = new StringBuilder("SELECT * FROM Book b WHERE ");
-    for (int i = 0; i < genres.length; i++) { // Add AND [exists genre] for each genre
-        if (i > 0) {
-            selectStatement.append(" AND ");
+// Method to fetch and print the current page of a search and record where the next page starts, shared with the HTTP API
+// Returns the number of rows printed, or -1 if the procedure returned no result set
+static int renderPage(UnitOfWork work, ResultRenderer renderer, SearchPage search) throws SQLException {
+    if (search.isInMemory()) {
+        int[] ids = search.currentIDs();
+        if (ids.length == 0) {
+            search.pageLoaded(0, null);
+            return 0;
         }
-        selectStatement.append("EXISTS (SELECT 1 FROM BookGenre bg JOIN Genre g ON bg.genreID = g.genreID WHERE bg.bookID = b.bookID AND UPPER(g.genreName) = ?)");
+        int rows = renderProcedure(work, renderer, search.procedureName(), new String[] {joinIDs(ids)}, search.columns());
+        search.pageLoaded(ids.length, Integer.toString(ids[ids.length - 1]));
+        return rows;
     }
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         PreparedStatement preparedStatement = connection.prepareStatement(selectStatement.toString())) {
-        for (int i = 0; i < genres.length; i++) {
-            preparedStatement.setString(i + 1, genres[i].trim().toUpperCase());
-        }
-        // Print results as done in executeQuery
-        ResultSet resultSet = preparedStatement.executeQuery();
-        int count = 1;
-        while (resultSet.next()) {
-            System.out.println("Result " + count + ":");
-            printLine();
-            for (String column : BOOK_COLUMNS) {
-                try {
-                    System.out.println(column + ": " + resultSet.getString(column));
-                } catch (SQLException e) {
-                    System.out.println(column + ": N/A");
-                }
-            }
-            count++;
-            printLine();
+    String[] parameters = {search.parameter(), Integer.toString(search.start()), Integer.toString(search.pageSize())};
+    int rows = renderProcedure(work, renderer, search.procedureName(), parameters, search.columns());
+    search.pageLoaded(renderer.getLastRowCount(), renderer.getLastValue(search.keyColumn()));
+    return rows;
+}
+
+// Method to move to the next or previous page of the current search
+private static boolean turnPage(Session session, boolean forward, UnitOfWork work) {
+    if (session.currentSearch == null) {
+        session.out.println("There is no search to page through.");
+        return true;
+    }
+    if (forward ? !session.currentSearch.next() : !session.currentSearch.previous()) {
+        session.out.println(forward ? "Already on the last page." : "Already on the first page.");
+        return true;
+    }
+    return showPage(session, work);
+}
+
+// Method to change how many results each search page shows
+private static void setPageSize(Session session, String value) {
+    try {
+        int size = Integer.parseInt(value.trim());
+        if (size < 1) {
+            throw new NumberFormatException();
         }
-        resultSet.close();
+        session.pageSize = size;
+        session.out.println("Searches will show " + session.pageSize + " results per page.");
+    } catch (NumberFormatException e) {
+        session.out.println("Invalid page size. Please enter a positive number.");
+    }
+}
+
+// Method to look up a substring in a trigram index, returns null when there is no index or the index can't answer the
+// query (too short, or a LIKE pattern), and the caller runs the search procedure instead
+private static int[] indexSearch(TrigramIndex index, String query) {
+    return index == null ? null : index.search(query);
+}
+
+// Method to fetch and print the rows for IDs that were already matched in memory
+private static boolean executeProcedureForIDs(Session session, String procedureName, int[] ids, UnitOfWork work, List<String> columns) {
+    if (ids.length == 0) {
         return true;
-    } catch (SQLException e) {
-        System.out.println(e.getMessage());
-        return false;
     }
+    return executeProcedure(session, procedureName, joinIDs(ids), work, columns);
+}
+
+// Method to join IDs into the comma separated list the ...ByIDs procedures take
+private static String joinIDs(int[] ids) {
+    StringBuilder list = new StringBuilder(ids.length * 7);
+    for (int i = 0; i < ids.length; i++) {
+        if (i > 0) {
+            list.append(',');
+        }
+        list.append(ids[i]);
+    }
+    return list.toString();
+}
+
+// Method to search for a book by its genre(s) (comma separated, AND's them)
+public static boolean searchGenre(Session session, String[] tokens, UnitOfWork work) {
+    return startSearch(session, bookSearch("genres", tokens[0], session.pageSize), work);
 }
 
 // Method to search for a book by its ISBN
-private static boolean searchISBN(String[] tokens, String connectionUrl) {
+private static boolean searchISBN(Session session, String[] tokens, UnitOfWork work) {
     String isbn = tokens[0];
     // Call stored procedure to search for a book by its ISBN
-    return executeProcedure("searchISBN", isbn, connectionUrl, BOOK_COLUMNS) != null;
+    return executeCachedProcedure(session, isbnCache, isbn.trim(), "searchISBN", isbn, work, BOOK_COLUMNS);
 }
 
 // Method to retrieve all details of a book by its ID
-private static boolean bookDetails(String[] tokens, String connectionUrl) {
+private static boolean bookDetails(Session session, String[] tokens, UnitOfWork work) {
     String bookID = tokens[0];
     // Call stored procedure to find a book by its ID
-    return executeProcedure("bookDetails", bookID, connectionUrl, BOOK_COLUMNS) != null;
+    return executeCachedProcedure(session, bookCache, idKey(bookID), "bookDetails", bookID, work, BOOK_COLUMNS);
 }
 
 // Method to find a member by their name
-private static boolean findMemberByName(String[] tokens, String connectionUrl) {
+private static boolean findMemberByName(Session session, String[] tokens, UnitOfWork work) {
     String name = tokens[0];
+    int[] memberIDs = indexSearch(memberIndex, name);
+    if (memberIDs != null) {
+        return startSearch(session, new SearchPage("membersByIDs", memberIDs, "memberID", MEMBER_COLUMNS, session.pageSize), work);
+    }
     // Call stored procedure to find a member by their name
-    return executeProcedure("findMemberByName", name, connectionUrl, MEMBER_COLUMNS) != null;
+    return startSearch(session, new SearchPage("findMemberByName", name, "memberID", MEMBER_COLUMNS, session.pageSize), work);
 }
 
 // Method to find a member by their ID
-private static boolean findMemberByID(String[] tokens, String connectionUrl) {
+private static boolean findMemberByID(Session session, String[] tokens, UnitOfWork work) {
     String memberID = tokens[0];
     // Call stored procedure to find a member by their ID
-    return executeProcedure("findMemberByID", memberID, connectionUrl, MEMBER_COLUMNS) != null;
+    return executeCachedProcedure(session, memberCache, idKey(memberID), "findMemberByID", memberID, work, MEMBER_COLUMNS);
 }
 
 // Method to add a member to the database with the given name, date of birth, and date of registration
-private static boolean addMember(String[] tokens, String connectionUrl) {
+private static boolean addMember(Session session, String[] tokens, UnitOfWork work) {
     String firstName = tokens[0];
     String lastName = tokens[1];
     String dob = tokens[2];
-    // Call stored procedure to add a member
+    // Call stored procedure to add a member, it returns the new member's ID
     String[] array = {firstName, lastName, dob};
-    if (executeProcedureNoResult("addMember", array, connectionUrl)) {
-        // This statement selects a single member's ID by their first and last name
-        String selectIDStatement = "SELECT TOP 1 memberID FROM Member WHERE memFirstName = ? AND memLastName = ?";
-        try (Connection connection = DriverManager.getConnection(connectionUrl);
-             PreparedStatement selectStmt = connection.prepareStatement(selectIDStatement)) {
-            selectStmt.setString(1, firstName);
-            selectStmt.setString(2, lastName);
-            ResultSet resultSet = selectStmt.executeQuery();
-            if (resultSet.next()) {
-                System.out.println("Member " + firstName + " " + lastName + " added successfully with ID " + resultSet.getInt("memberID") + ".");
-            } else {
-                System.out.println("Error adding member.");
-                return false;
-            }
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
-            return false;
-        }
-        return true;
-    } else {
-        System.out.println("Error adding member.");
+    int newMemberID = executeProcedureForOutput(session, "addMember", array, work);
+    if (newMemberID == -1) {
+        session.out.println("Error adding member.");
         return false;
     }
-
+    if (memberIndex != null) {
+        work.afterCommit(() -> memberIndex.put(newMemberID, firstName, lastName));
+    }
+    // A lookup of this ID before it existed may have cached an empty result
+    work.afterCommit(() -> memberCache.invalidate(newMemberID));
+    session.out.println("Member " + firstName + " " + lastName + " added successfully with ID " + newMemberID + ".");
+    return true;
 }
 
 // Method to remove a member from the database by their ID
-private static boolean removeMember(String[] tokens, String connectionUrl) {
+private static boolean removeMember(Session session, String[] tokens, UnitOfWork work) {
     // Call stored procedure to remove a member by their ID
-    return executeProcedureNoResult("removeMember", tokens, connectionUrl);
+    if (!executeProcedureNoResult(session, "removeMember", tokens, work)) {
+        return false;
+    }
+    int removedMemberID = Integer.parseInt(tokens[0]);
+    if (memberIndex != null) {
+        work.afterCommit(() -> memberIndex.remove(removedMemberID));
+    }
+    work.afterCommit(() -> memberCache.invalidate(removedMemberID));
+    return true;
 }
 
 // Method to add a new author to the database
-public static int createAuthorPrompt(String connectionUrl, String firstName, String lastName) {
-    Scanner scanner = new Scanner(System.in);
+public static int createAuthorPrompt(Session session, UnitOfWork work, String firstName, String lastName) {
     if (firstName != null && lastName != null) {
-        System.out.println("Please fill out all available information for " + firstName + " " + lastName + ":");
+        session.prompt("Please fill out all available information for " + firstName + " " + lastName + ":");
     }
     // If first name and last name are not provided, prompt for them
     if (firstName == null) {
-        System.out.println("Enter author's first name:");
-        firstName = scanner.nextLine();
+        session.prompt("Enter author's first name:");
+        firstName = session.readLine();
     }
     if (lastName == null) {
-        System.out.println("Enter author's last name:");
-        lastName = scanner.nextLine();
+        session.prompt("Enter author's last name:");
+        lastName = session.readLine();
     }
     // Prompt for DOB and status
-    System.out.println("Enter author's date of birth:");
-    String dob = scanner.nextLine();
-    System.out.println("Enter author's status (active, inactive, or unknown)");
-    String status = scanner.nextLine();
-    // Call stored procedure to add an author
+    session.prompt("Enter author's date of birth:");
+    String dob = session.readLine();
+    session.prompt("Enter author's status (active, inactive, or unknown)");
+    String status = session.readLine();
+    // Call stored procedure to add an author, it returns the new author's ID
     String[] array = {firstName, lastName, dob, status};
-    if (executeProcedureNoResult("addAuthor", array, connectionUrl)) {
-        // Continue to find the author's ID and return it
-    } else {
-        System.out.println("Error adding author.");
+    int authorID = executeProcedureForOutput(session, "addAuthor", array, work);
+    if (authorID == -1) {
+        session.out.println("Error adding author.");
         return -1;
     }
-    // This statement selects a single author by their first and last name
-    String selectIDStatement = "SELECT TOP 1 authorID FROM Author WHERE firstName = ? AND lastName = ?";
-    // Find and return author ID
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         PreparedStatement selectStmt = connection.prepareStatement(selectIDStatement)) {
-        selectStmt.setString(1, firstName);
-        selectStmt.setString(2, lastName);
-        ResultSet resultSet = selectStmt.executeQuery();
-        if (resultSet.next()) {
-            System.out.println("Author " + firstName + " " + lastName + " added successfully with ID " + resultSet.getInt("authorID") + ".");
-            return resultSet.getInt("authorID");
-        } else {
-            System.out.println("Error adding author.");
-            return -1;
-        }
-    } catch (SQLException e) {
-        System.out.println(e.getMessage());
-        return -1;
+    if (authorIndex != null) {
+        String[] names = {firstName, lastName};
+        work.afterCommit(() -> authorIndex.put(authorID, names));
     }
+    if (authorPrefixes != null) {
+        String[] names = {firstName, lastName};
+        work.afterCommit(() -> authorPrefixes.put(authorID, names));
+    }
+    work.afterCommit(() -> authorCache.invalidate(authorID));
+    session.out.println("Author " + firstName + " " + lastName + " added successfully with ID " + authorID + ".");
+    return authorID;
 }
 
 // Method to add a new genre to the database
-private static int createGenrePrompt(String connectionUrl, String genre) {
-    Scanner scanner = new Scanner(System.in);
+private static int createGenrePrompt(Session session, UnitOfWork work, String genre) {
     if (genre != null) {
-        System.out.println("Please fill out all available information for " + genre + ":");
+        session.prompt("Please fill out all available information for " + genre + ":");
     } else {
-        System.out.println("Enter genre name:");
-        genre = scanner.nextLine();
+        session.prompt("Enter genre name:");
+        genre = session.readLine();
     }
-    System.out.println("Enter genre description:");
-    String description = scanner.nextLine();
-    // Call stored procedure to add a genre
+    session.prompt("Enter genre description:");
+    String description = session.readLine();
+    // Call stored procedure to add a genre, it returns the new genre's ID
     String[] array = {genre, description};
-    if (executeProcedureNoResult("addGenre", array, connectionUrl)) {
-        // Continue to find the genre's ID and return it
-    } else {
-        System.out.println("Error adding genre.");
+    int genreID = executeProcedureForOutput(session, "addGenre", array, work);
+    if (genreID == -1) {
+        session.out.println("Error adding genre.");
         return -1;
     }
-    // This statement selects a single genre by its name
-    String selectIDStatement = "SELECT TOP 1 genreID FROM Genre WHERE genreName = ?";
-    // Find and return genre ID
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         PreparedStatement selectStmt = connection.prepareStatement(selectIDStatement)) {
-        selectStmt.setString(1, genre);
-        ResultSet resultSet = selectStmt.executeQuery();
-        if (resultSet.next()) {
-            System.out.println("Genre " + genre + " added successfully with ID " + resultSet.getInt("genreID") + ".");
-            return resultSet.getInt("genreID");
-        } else {
-            System.out.println("Error adding genre.");
-            return -1;
-        }
-    } catch (SQLException e) {
-        System.out.println(e.getMessage());
-        return -1;
+    String genreKey = genre.toLowerCase();
+    work.afterCommit(() -> genreCache.invalidate(genreKey));
+    if (genrePrefixes != null) {
+        String genreName = genre;
+        work.afterCommit(() -> genrePrefixes.put(genreID, genreName));
     }
+    session.out.println("Genre " + genre + " added successfully with ID " + genreID + ".");
+    return genreID;
 }
 
 // This method attempts to add a genre (by name, argument 3) to a book (by ID, argument 2)
-private static boolean addGenreToBook(String[] tokens, String connectionUrl) {
+private static boolean addGenreToBook(Session session, String[] tokens, UnitOfWork work) {
     String bookID = tokens[0];
     String genreName = tokens[1];
-    // Determine if the genre exists
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         PreparedStatement preparedStatement = connection.prepareStatement("SELECT * FROM Genre WHERE genreName = ?")) {
-        preparedStatement.setString(1, genreName);
-        ResultSet resultSet = preparedStatement.executeQuery();
-        if (!resultSet.next()) { // If the genre does not exist, prompt to create it
-            System.out.println("Genre not found, opening new genre prompt!");
-            // Call createGenrePrompt to add new genre
-            int genreID = createGenrePrompt(connectionUrl, genreName);
-            if (genreID == -1) {
-                return false;
+    // Determine if the genre exists, genres the cache knows about don't need to be looked up again
+    String genreKey = genreName.toLowerCase();
+    if (genreCache.get(genreKey) == null) {
+        long stamp = genreCache.stamp();
+        try {
+            PreparedStatement preparedStatement = work.prepareStatement("SELECT genreID FROM Genre WHERE genreName = ?");
+            preparedStatement.setString(1, genreName);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    genreCache.put(genreKey, resultSet.getInt("genreID"), stamp);
+                } else { // If the genre does not exist, prompt to create it
+                    session.out.println("Genre not found, opening new genre prompt!");
+                    // Call createGenrePrompt to add new genre
+                    int genreID = createGenrePrompt(session, work, genreName);
+                    if (genreID == -1) {
+                        return false;
+                    }
+                }
             }
+        } catch (SQLException e) {
+            session.error(e);
+            return false;
         }
-    } catch (SQLException e) {
-        System.out.println(e.getMessage());
-        return false;
     }
     // Call stored procedure to add the genre with this name to the book with this ID
     String[] array = {bookID, genreName};
-    if (executeProcedureNoResult("addBookGenre", array, connectionUrl)) {
-        System.out.println("Genre added to book successfully.");
+    if (executeProcedureNoResult(session, "addBookGenre", array, work)) {
+        session.out.println("Genre added to book successfully.");
         return true;
     } else {
-        System.out.println("Error adding genre to book.");
+        session.out.println("Error adding genre to book.");
         return false;
     }
 }
 
 // Method to remove a genre (by name, argument 3) from a book (by ID, argument 2)
-private static boolean removeGenreFromBook(String[] tokens, String connectionUrl) {
+private static boolean removeGenreFromBook(Session session, String[] tokens, UnitOfWork work) {
     String bookID = tokens[0];
     String genreName = tokens[1];
     // Call stored procedure to remove the genre with this name from the book with this ID
     String[] array = {bookID, genreName};
-    if (executeProcedureNoResult("removeBookGenre", array, connectionUrl)) {
-        System.out.println("Genre removed from book successfully.");
+    if (executeProcedureNoResult(session, "removeBookGenre", array, work)) {
+        session.out.println("Genre removed from book successfully.");
         return true;
     } else {
-        System.out.println("Error removing genre from book.");
+        session.out.println("Error removing genre from book.");
         return false;
     }
 }
 
 // Method to add a keyword (argument 3) to a book (by ID, argument 2)
-private static boolean addKeywordToBook(String[] tokens, String connectionUrl) {
+private static boolean addKeywordToBook(Session session, String[] tokens, UnitOfWork work) {
     String bookID = tokens[0];
     String keyword = tokens[1];
     // Call stored procedure to add the keyword with this name to the book with this ID
     String[] array = {bookID, keyword};
-    if (executeProcedureNoResult("addKeyword", array, connectionUrl)) {
-        System.out.println("Keyword added to book successfully.");
+    if (executeProcedureNoResult(session, "addKeyword", array, work)) {
+        if (keywordIndex != null) {
+            work.afterCommit(() -> keywordIndex.add(Integer.parseInt(bookID), keyword));
+        }
+        session.out.println("Keyword added to book successfully.");
         return true;
     } else {
-        System.out.println("Error adding keyword to book.");
+        session.out.println("Error adding keyword to book.");
         return false;
     }
 }
 
 // Method to remove a keyword (argument 3) from a book (by ID, argument 2)
-private static boolean removeKeywordFromBook(String[] tokens, String connectionUrl) {
+private static boolean removeKeywordFromBook(Session session, String[] tokens, UnitOfWork work) {
     String bookID = tokens[0];
     String keyword = tokens[1];
     // Call stored procedure to remove the keyword with this name from the book with this ID
     String[] array = {bookID, keyword};
-    if (executeProcedureNoResult("removeKeyword", array, connectionUrl)) {
-        System.out.println("Keyword removed from book successfully.");
+    if (executeProcedureNoResult(session, "removeKeyword", array, work)) {
+        if (keywordIndex != null) {
+            work.afterCommit(() -> keywordIndex.remove(Integer.parseInt(bookID), keyword));
+        }
+        session.out.println("Keyword removed from book successfully.");
         return true;
     } else {
-        System.out.println("Error removing keyword from book.");
+        session.out.println("Error removing keyword from book.");
         return false;
     }
 }
 
 /// Method to update an author's information by their ID
-private static boolean updateAuthor(String[] tokens, String connectionUrl) {
+private static boolean updateAuthor(Session session, String[] tokens, UnitOfWork work) {
     // Similar to createAuthorPrompt, but takes an author ID as an argument
     int authorID = Integer.parseInt(tokens[0]);
-    Scanner scanner = new Scanner(System.in);
-    System.out.println("Enter author's first name:");
-    String firstName = scanner.nextLine();
-    System.out.println("Enter author's last name:");
-    String lastName = scanner.nextLine();
-    System.out.println("Enter author's date of birth:");
-    String dob = scanner.nextLine();
-    System.out.println("Enter author's status (active, inactive, or unknown):");
-    String status = scanner.nextLine();
+    session.prompt("Enter author's first name:");
+    String firstName = session.readLine();
+    session.prompt("Enter author's last name:");
+    String lastName = session.readLine();
+    session.prompt("Enter author's date of birth:");
+    String dob = session.readLine();
+    session.prompt("Enter author's status (active, inactive, or unknown):");
+    String status = session.readLine();
     // Call stored procedure to update an author by their ID
     String[] array = {Integer.toString(authorID), firstName, lastName, dob, status};
-    if (executeProcedureNoResult("updateAuthor", array, connectionUrl)) {
-        System.out.println("Author updated successfully.");
+    if (executeProcedureNoResult(session, "updateAuthor", array, work)) {
+        if ((authorIndex != null || authorPrefixes != null) && !reindexAuthor(session, authorID, work)) {
+            return false;
+        }
+        work.afterCommit(() -> authorCache.invalidate(authorID));
+        session.out.println("Author updated successfully.");
         return true;
     } else {
-        System.out.println("Error updating author.");
+        session.out.println("Error updating author.");
+        return false;
+    }
+}
+
+// Method to refresh an author's names in the trigram and prefix indexes after an update
+// Blank fields keep their old values in the updateAuthor procedure, so the stored names are read back
+private static boolean reindexAuthor(Session session, int authorID, UnitOfWork work) {
+    try {
+        PreparedStatement selectStmt = work.prepareStatement("SELECT firstName, lastName FROM Author WHERE authorID = ?");
+        selectStmt.setInt(1, authorID);
+        try (ResultSet resultSet = selectStmt.executeQuery()) {
+            if (resultSet.next()) {
+                String[] names = {resultSet.getString("firstName"), resultSet.getString("lastName")};
+                if (authorIndex != null) {
+                    work.afterCommit(() -> authorIndex.put(authorID, names));
+                }
+                if (authorPrefixes != null) {
+                    work.afterCommit(() -> authorPrefixes.put(authorID, names));
+                }
+            }
+        }
+        return true;
+    } catch (SQLException e) {
+        session.error(e);
         return false;
     }
 }
 
 // Method to prompt the user to add a book to the database
-private static boolean addBook(String connectionUrl) {
+private static boolean addBook(Session session, UnitOfWork work) {
     // Prompt user for book details
-    Scanner scanner = new Scanner(System.in);
-    System.out.println("Enter book title:");
-    String title = scanner.nextLine();
-    System.out.println("ISBN, enter for N/A:");
-    String isbn = scanner.nextLine();
-    System.out.println("Edition, enter for N/A:");
-    String edition = scanner.nextLine();
-    System.out.println("Publication date, enter for N/A:");
-    String publicationDate = scanner.nextLine();
-    System.out.println("Publisher, enter for N/A:");
-    String publisher = scanner.nextLine();
-    System.out.println("Copyright year, enter for N/A:");
-    String copyYear = scanner.nextLine();
-    System.out.println("Authors (firstName lastName), primary author first, comma separated:");
-    String authors = scanner.nextLine();
-    // Call stored procedure to add a book
+    session.prompt("Enter book title:");
+    String title = session.readLine();
+    session.prompt("ISBN, enter for N/A:");
+    String isbn = session.readLine();
+    session.prompt("Edition, enter for N/A:");
+    String edition = session.readLine();
+    session.prompt("Publication date, enter for N/A:");
+    String publicationDate = session.readLine();
+    session.prompt("Publisher, enter for N/A:");
+    String publisher = session.readLine();
+    session.prompt("Copyright year, enter for N/A:");
+    String copyYear = session.readLine();
+    session.prompt("Authors (firstName lastName), primary author first, comma separated:");
+    String authors = session.readLine();
+    // Call stored procedure to add a book, it returns the new book's ID
     String[] array = {title, isbn, edition, publicationDate, publisher, copyYear};
-    if (executeProcedureNoResult("addBook", array, connectionUrl)) {
-        // Continue to add authors to the book
-    } else {
-        System.out.println("Error adding book.");
+    int bookID = executeProcedureForOutput(session, "addBook", array, work);
+    if (bookID == -1) {
+        session.out.println("Error adding book.");
         return false;
     }
-    // This statement selects the author ID of the newly inserted author(s)
+    if (titleIndex != null) {
+        work.afterCommit(() -> titleIndex.put(bookID, title));
+    }
+    if (titlePrefixes != null) {
+        work.afterCommit(() -> titlePrefixes.put(bookID, title));
+    }
+    // Lookups of this ID or ISBN before the book existed may have cached empty results
+    String isbnKey = isbn.trim();
+    work.afterCommit(() -> {
+        bookCache.invalidate(bookID);
+        isbnCache.invalidate(isbnKey);
+    });
+    // This statement selects the author ID of an existing author
     String selectAuthorStatement = "SELECT authorID FROM Author WHERE lastName = ? AND (firstName = ? OR firstName IS NULL)";
     // This statement inserts a new row into BookAuthor with the given book ID and author ID
     String insertBookAuthorStatement = "INSERT INTO BookAuthor (bookID, authorID, isPrimaryAuthor) VALUES (?, ?, ?)";
-    // This statement selects the ID of the added book
-    String selectBookIDStatement = "SELECT TOP 1 bookID FROM Book WHERE title = ? AND ISBN = ? AND edition = ? AND publicationDate = ? AND publisher = ? AND copyrightYear = ?";
-    try (Connection connection = DriverManager.getConnection(connectionUrl);
-         PreparedStatement selectAuthorStmt = connection.prepareStatement(selectAuthorStatement);
-            PreparedStatement selectBookIDStmt = connection.prepareStatement(selectBookIDStatement);
-         PreparedStatement insertBookAuthorStmt = connection.prepareStatement(insertBookAuthorStatement)) {
-        // Populate query arguments
-        selectBookIDStmt.setString(1, title);
-        selectBookIDStmt.setString(2, isbn);
-        selectBookIDStmt.setString(3, edition);
-        selectBookIDStmt.setString(4, publicationDate);
-        selectBookIDStmt.setString(5, publisher);
-        selectBookIDStmt.setString(6, copyYear);
-        ResultSet generatedKeys = selectBookIDStmt.executeQuery();
-        // Get generated bookID
-        if (generatedKeys.next()) {
-            int bookID = generatedKeys.getInt(1);
-            // Process authors
-            String[] authorNames = authors.split(",");
-            for (int i = 0; i < authorNames.length; i++) { // For each author...
-                // Split name into first and last
-                String[] nameParts = authorNames[i].trim().split(" ");
-                String lastName = nameParts[0];
-                String firstName = nameParts.length > 1 ? nameParts[1] : null;
-                // Check if this author already exists
-                selectAuthorStmt.setString(1, firstName);
-                selectAuthorStmt.setString(2, lastName);
-                ResultSet authorResult = selectAuthorStmt.executeQuery();
-                int authorID;
-                if (authorResult.next()) { // If the author is found, use their ID
-                    authorID = authorResult.getInt("authorID");
-                } else { // If the author is not found, prompt to create a new author
-                    System.out.println("Author not found, opening new author prompt!");
-                    // Call createAuthorPrompt to add new author
-                    authorID = createAuthorPrompt(connectionUrl, firstName, lastName);
+    try {
+        PreparedStatement selectAuthorStmt = work.prepareStatement(selectAuthorStatement);
+        // Process authors
+        String[] authorNames = authors.split(",");
+        for (int i = 0; i < authorNames.length; i++) { // For each author...
+            // Split name into first and last, a single name is taken as the last name
+            String[] nameParts = authorNames[i].trim().split(" ");
+            String lastName = nameParts[nameParts.length - 1];
+            String firstName = nameParts.length > 1 ? nameParts[0] : null;
+            // Check if this author already exists
+            selectAuthorStmt.setString(1, lastName);
+            selectAuthorStmt.setString(2, firstName);
+            int authorID;
+            try (ResultSet authorResult = selectAuthorStmt.executeQuery()) {
+                authorID = authorResult.next() ? authorResult.getInt("authorID") : -1;
+            }
+            if (authorID == -1) { // If the author is not found, prompt to create a new author
+                session.out.println("Author not found, opening new author prompt!");
+                // Call createAuthorPrompt to add new author
+                authorID = createAuthorPrompt(session, work, firstName, lastName);
+                if (authorID == -1) {
+                    return false;
                 }
-                // Insert into BookAuthor
-                insertBookAuthorStmt.setInt(1, bookID);
-                insertBookAuthorStmt.setInt(2, authorID);
-                insertBookAuthorStmt.setBoolean(3, i == 0); // First author is primary, others are not
-                insertBookAuthorStmt.executeUpdate();
-                return true;
             }
-        } else {
-            System.out.println("Error adding book.");
-            return false;
+            // Insert into BookAuthor
+            PreparedStatement insertBookAuthorStmt = work.prepareStatement(insertBookAuthorStatement);
+            insertBookAuthorStmt.setInt(1, bookID);
+            insertBookAuthorStmt.setInt(2, authorID);
+            insertBookAuthorStmt.setBoolean(3, i == 0); // First author is primary, others are not
+            insertBookAuthorStmt.executeUpdate();
         }
     } catch (SQLException e) {
-        System.out.println(e.getMessage());
+        session.error(e);
         return false;
     }
-    return false;
+    session.out.println("Book " + title + " added successfully with ID " + bookID + ".");
+    return true;
 }
 
 // Method to find an author by their name or ID
-private static boolean findAuthor(String[] tokens, String connectionUrl, String type) {
+private static boolean findAuthor(Session session, String[] tokens, UnitOfWork work, String type) {
     String lastName = tokens[0];
     String selectStatement = "";
     // Select statement depends on whether the search is by name or ID
     if (type.equals("name")) {
+        int[] authorIDs = indexSearch(authorIndex, lastName);
+        if (authorIDs != null) {
+            return executeProcedureForIDs(session, "authorsByIDs", authorIDs, work, AUTHOR_COLUMNS);
+        }
         // Call stored procedure to find author by name
-        return executeProcedure("findAuthorName", lastName, connectionUrl, AUTHOR_COLUMNS) != null;
+        return executeProcedure(session, "findAuthorName", lastName, work, AUTHOR_COLUMNS);
     } else if (type.equals("id")) {
         // Call stored procedure to find author by ID
-        return executeProcedure("findAuthorID", lastName, connectionUrl, AUTHOR_COLUMNS) != null;
+        return executeCachedProcedure(session, authorCache, idKey(lastName), "findAuthorID", lastName, work, AUTHOR_COLUMNS);
     }
     return false;
 }
 
 // Method to add a copy when given a book ID and condition
-public static boolean addCopy(String[] tokens, String connectionUrl) {
+public static boolean addCopy(Session session, String[] tokens, UnitOfWork work) {
     String bookID = tokens[0];
     String condition = tokens[1];
     if (!condition.equals("good") && !condition.equals("neutral") && !condition.equals("poor")) {
-        System.out.println("Invalid condition. Please enter 'good', 'neutral', or 'poor'.");
+        session.out.println("Invalid condition. Please enter 'good', 'neutral', or 'poor'.");
         return false;
     }
     // Call stored procedure to add a copy of the book with this ID and condition
     String[] array = {bookID, condition};
-    if (executeProcedureNoResult("addCopy", array, connectionUrl)) {
-        System.out.println("Copy added successfully.");
+    if (executeProcedureNoResult(session, "addCopy", array, work)) {
+        session.out.println("Copy added successfully.");
         return true;
     } else {
-        System.out.println("Error adding copy.");
+        session.out.println("Error adding copy.");
         return false;
     }
 }
 
 // Method to remove a copy by its ID
-public static boolean removeCopy(String[] tokens, String connectionUrl) {
+public static boolean removeCopy(Session session, String[] tokens, UnitOfWork work) {
     String copyID = tokens[0];
     // Call stored procedure to remove a copy by its ID
     String[] array = {copyID};
-    if (executeProcedureNoResult("removeCopy", array, connectionUrl)) {
-        System.out.println("Copy removed successfully.");
+    if (executeProcedureNoResult(session, "removeCopy", array, work)) {
+        session.out.println("Copy removed successfully.");
         return true;
     } else {
-        System.out.println("Error removing copy.");
+        session.out.println("Error removing copy.");
         return false;
     }
 }
 
 // Method to return a list of user-defined parameters
-public static String[] promptInput(String arguments) {
+public static String[] promptInput(Session session, String arguments) {
     if (arguments == null || arguments.isEmpty()) {
         return new String[0];
     }
-    System.out.println("Enter the following arguments separated by spaces:");
-    System.out.println(arguments);
-    Scanner scanner = new Scanner(System.in);
-    String input = scanner.nextLine();
-    return input.split(" ");
-}
-
-private static void printAvailableCommands() {
-    System.out.println("Available commands:");
-    System.out.println("1. View details about a book <bookID>");
-    System.out.println("2. Search for books by <title>");
-    System.out.println("3. Search for books by author <author>");
-    System.out.println("4. Search for books with all keywords <keyword1, keyword2, ...>");
-    System.out.println("5. Search for books by ISBN <isbn>");
-    System.out.println("6. Search for books with all genres <genre1, genre2, ...>");
-
-    if (userType == USER_TYPE.MEMBER) {
-        System.out.println("7. Hold a book <bookID>");
-        System.out.println("8. Hold a copy <copyID>");
-        System.out.println("9. View your loans");
-        System.out.println("10. View your holds");
-        System.out.println("11. Return a copy you've checked out <copyID>");
-        System.out.println("12. Check out an available copy of a book <bookID>");
-        System.out.println("13. Check out a specific copy <copyID>");
-    }
-    if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-        System.out.println("7. Hold a book for a member <bookID> <memberID>");
-        System.out.println("8. Hold a copy for a member <copyID> <memberID>");
-        System.out.println("9. Check out a book for a member <bookID> <memberID>");
-        System.out.println("10. Check out a copy for a member <copyID> <memberID>");
-        System.out.println("11. Return a copy for a member <copyID> <memberID>");
-        System.out.println("12. Find a member by name <name>");
-        System.out.println("13. Find a member by ID <memberID>");
-        System.out.println("14. Add a new member <firstName> <lastName> <date of birth>");
-        System.out.println("15. Remove a member <memberID>");
-        System.out.println("16. View a member's loans <memberID>");
-        System.out.println("17. View a member's holds <memberID>");
-    }
-    if (userType == USER_TYPE.CURATOR) {
-        System.out.println("18. Add a new book");
-        System.out.println("19. Add a new author");
-        System.out.println("20. Find an author by name <name>");
-        System.out.println("21. Find an author by ID <authorID>");
-        System.out.println("22. Update an author by ID <authorID>");
-        System.out.println("23. Add a new genre");
-        System.out.println("24. Add a genre to a book <bookID> <genreName>");
-        System.out.println("25. Remove a genre from a book <bookID> <genreName>");
-        System.out.println("26. Add a keyword to a book <bookID> <keyword>");
-        System.out.println("27. Remove a keyword from a book <bookID> <keyword>");
-        System.out.println("28. Add a copy of a book <bookID> <condition>");
-        System.out.println("29. Remove a copy of a book <copyID>");
-    }
-    System.out.println("(Type 'exit' to quit.)");
-}
-
-// Method to handle all command parsing logic
-private static boolean parseCommand(String command, String connectionUrl) {
-    printLine();
+    if (session.inlineArgs != null) {
+        String[] args = session.inlineArgs;
+        session.inlineArgs = null;
+        return args;
+    }
+    session.prompt("Enter the following arguments separated by spaces:");
+    session.prompt(arguments);
+    return session.readLine().split(" ");
+}
+
+private static void printAvailableCommands(Session session) {
+    session.out.println("Available commands:");
+    session.out.println("1. View details about a book <bookID>");
+    session.out.println("2. Search for books by <title>");
+    session.out.println("3. Search for books by author <author>");
+    session.out.println("4. Search for books with all keywords <keyword1, keyword2, ...>");
+    session.out.println("5. Search for books by ISBN <isbn>");
+    session.out.println("6. Search for books with all genres <genre1, genre2, ...>");
+
+    if (session.userType == USER_TYPE.MEMBER) {
+        session.out.println("7. Hold a book <bookID>");
+        session.out.println("8. Hold a copy <copyID>");
+        session.out.println("9. View your loans");
+        session.out.println("10. View your holds");
+        session.out.println("11. Return a copy you've checked out <copyID>");
+        session.out.println("12. Check out an available copy of a book <bookID>");
+        session.out.println("13. Check out a specific copy <copyID>");
+        session.out.println("14. Stop waiting for a book you're in the hold queue for <bookID>");
+        session.out.println("15. View your loan history");
+    }
+    if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+        session.out.println("7. Hold a book for a member <bookID> <memberID>");
+        session.out.println("8. Hold a copy for a member <copyID> <memberID>");
+        session.out.println("9. Check out a book for a member <bookID> <memberID>");
+        session.out.println("10. Check out a copy for a member <copyID> <memberID>");
+        session.out.println("11. Return a copy for a member <copyID> <memberID>");
+        session.out.println("12. Find a member by name <name>");
+        session.out.println("13. Find a member by ID <memberID>");
+        session.out.println("14. Add a new member <firstName> <lastName> <date of birth>");
+        session.out.println("15. Remove a member <memberID>");
+        session.out.println("16. View a member's loans <memberID>");
+        session.out.println("17. View a member's holds <memberID>");
+        session.out.println("30. Take a member out of a book's hold queue <bookID> <memberID>");
+        session.out.println("31. View a member's loan history <memberID>");
+        session.out.println("32. View a book's loan history <bookID>");
+        session.out.println("(Type 'overdue' to see the longest overdue loans, 'overdue <file>' to write them all to a file.)");
+        session.out.println("(Type 'stats circulation' to see this month's most borrowed books, loans per genre and active members.)");
+    }
+    if (session.userType == USER_TYPE.CURATOR) {
+        session.out.println("18. Add a new book");
+        session.out.println("19. Add a new author");
+        session.out.println("20. Find an author by name <name>");
+        session.out.println("21. Find an author by ID <authorID>");
+        session.out.println("22. Update an author by ID <authorID>");
+        session.out.println("23. Add a new genre");
+        session.out.println("24. Add a genre to a book <bookID> <genreName>");
+        session.out.println("25. Remove a genre from a book <bookID> <genreName>");
+        session.out.println("26. Add a keyword to a book <bookID> <keyword>");
+        session.out.println("27. Remove a keyword from a book <bookID> <keyword>");
+        session.out.println("28. Add a copy of a book <bookID> <condition>");
+        session.out.println("29. Remove a copy of a book <copyID>");
+    }
+    session.out.println("(Type 'complete <title|author|genre> <prefix>' to list titles or names with a word starting with the prefix.)");
+    session.out.println("(Type 'cites <bookID> [depth]', 'citedby <bookID> [depth]', 'cocited <bookID>' or 'mostcited' to explore citations.)");
+    if (session.userType == USER_TYPE.CURATOR) {
+        session.out.println("(Type 'addreference <bookID> <cited bookID>' to record that a book cites another.)");
+    }
+    session.out.println("(Type 'next' or 'prev' to page through search results, 'pagesize <n>' to change the page size.)");
+    session.out.println("(Type 'format <records|table|csv|json>' to change how results are printed.)");
+    session.out.println("(Type 'stats' to see how long each command has been taking.)");
+    session.out.println("(Type 'exit' to quit.)");
+}
+
+// Method to split a command line into the command and its arguments
+// The command ends at the first run of whitespace and the arguments are separated by single spaces, like promptInput
+// Splits by hand rather than with a regex, this runs for every line of a batch
+static String[] splitCommand(String command) {
+    int end = 0;
+    while (end < command.length() && !Character.isWhitespace(command.charAt(end))) {
+        end++;
+    }
+    int start = end;
+    while (start < command.length() && Character.isWhitespace(command.charAt(start))) {
+        start++;
+    }
+    if (start == command.length()) {
+        return new String[] {command.substring(0, end)};
+    }
+    String[] args = command.substring(start).split(" ");
+    String[] parts = new String[args.length + 1];
+    parts[0] = command.substring(0, end);
+    System.arraycopy(args, 0, parts, 1, args.length);
+    return parts;
+}
+
+// Method to handle all command parsing logic, timing the command for the metrics
+private static boolean parseCommand(Session session, String command, UnitOfWork work) {
+    if (session.interactive) {
+        printLine(session);
+    }
+    String line = command.trim();
+    // Paging through the last search's results
+    if (line.equals("next") || line.equals("prev")) {
+        return runTimed(line, work, () -> turnPage(session, line.equals("next"), work));
+    }
+    // Anything after the command is taken as its arguments
+    String[] parts = splitCommand(line);
+    String[] args = parts.length > 1 ? Arrays.copyOfRange(parts, 1, parts.length) : new String[0];
+    // Overdue loans across the whole library, for staff
+    if (parts[0].equals("overdue") && session.userType != USER_TYPE.MEMBER) {
+        return runTimed("overdue", work, () -> printOverdue(session, String.join(" ", args), work));
+    }
+    // Circulation dashboards for staff, read from the counters the circulation procedures keep
+    if (line.equals("stats circulation") && session.userType != USER_TYPE.MEMBER) {
+        return runTimed("stats circulation", work, () -> printCirculationStats(session, work));
+    }
+    if (parts[0].equals("complete")) {
+        return runComplete(session, args);
+    }
+    if (CITATION_COMMANDS.contains(parts[0])) {
+        return runTimed(parts[0], work, () -> runCitationCommand(session, parts[0], args, work));
+    }
+    session.inlineArgs = args.length > 0 ? args : null;
     int number = -1;
     try {
-        number = Integer.parseInt(command);
+        number = Integer.parseInt(parts[0]);
     } catch (NumberFormatException e) {
-        System.out.println("Invalid command. Please enter a number.");
+        session.out.println("Invalid command. Please enter a number.");
         return false;
     }
+    int commandNumber = number;
+    // Anything that isn't a command is counted together, so typos can't add metrics without limit
+    return runTimed(number >= 1 && number <= COMMAND_COUNT ? Integer.toString(number) : "invalid", work,
+            () -> runNumberedCommand(session, commandNumber, work));
+}
+
+// Method to run a command and record how long it took, and how long its unit of work waited for a connection
+private static boolean runTimed(String name, UnitOfWork work, BooleanSupplier command) {
+    long start = CommandMetrics.begin(name);
+    boolean succeeded = false;
+    try {
+        CommandMetrics.recordAcquire(work.takeAcquireNanos());
+        succeeded = command.getAsBoolean();
+        return succeeded;
+    } finally {
+        CommandMetrics.end(start, succeeded);
+    }
+}
+
+// Method to run the complete command and record how long it took, it has no unit of work to wait for
+private static boolean runComplete(Session session, String[] args) {
+    long start = CommandMetrics.begin("complete");
+    boolean succeeded = false;
+    try {
+        succeeded = complete(session, args);
+        return succeeded;
+    } finally {
+        CommandMetrics.end(start, succeeded);
+    }
+}
+
+// Method to run a numbered command, the numbers mean different commands depending on the user type
+private static boolean runNumberedCommand(Session session, int number, UnitOfWork work) {
     switch (number) {
         case 1:
-            String[] bookDetailsArgs = promptInput("bookID");
-            return bookDetails(bookDetailsArgs, connectionUrl);
+            String[] bookDetailsArgs = promptInput(session, "bookID");
+            return bookDetails(session, bookDetailsArgs, work);
         case 2:
-            String[] searchTitleArgs = promptInput("title");
-            return searchTitle(searchTitleArgs, connectionUrl);
+            String[] searchTitleArgs = promptInput(session, "title");
+            return searchTitle(session, searchTitleArgs, work);
         case 3:
-            String[] searchAuthorArgs = promptInput("author");
-            return searchAuthor(searchAuthorArgs, connectionUrl);
+            String[] searchAuthorArgs = promptInput(session, "author");
+            return searchAuthor(session, searchAuthorArgs, work);
         case 4:
-            String[] searchKeywordsArgs = promptInput("keywords (comma separated, not space separated)");
-            return searchKeywords(searchKeywordsArgs, connectionUrl);
+            String[] searchKeywordsArgs = promptInput(session, "keywords (comma separated, not space separated)");
+            return searchKeywords(session, searchKeywordsArgs, work);
         case 5:
-            String[] searchISBNArgs = promptInput("isbn");
-            return searchISBN(searchISBNArgs, connectionUrl);
+            String[] searchISBNArgs = promptInput(session, "isbn");
+            return searchISBN(session, searchISBNArgs, work);
         case 6:
-            String[] searchGenreArgs = promptInput("genres (comma separated, not space separated)");
-            return searchGenre(searchGenreArgs, connectionUrl);
+            String[] searchGenreArgs = promptInput(session, "genres (comma separated, not space separated)");
+            return searchGenre(session, searchGenreArgs, work);
         case 7:
-            if (userType == USER_TYPE.MEMBER) {
-                String[] holdBookArgs = promptInput("bookID");
-                return holdBook(holdBookArgs, connectionUrl, memberID);
-            } else if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] holdForBookArgs = promptInput("bookID memberID");
-                return holdBook(holdForBookArgs, connectionUrl, Integer.parseInt(holdForBookArgs[1]));
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] holdBookArgs = promptInput(session, "bookID");
+                return holdBook(session, holdBookArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] holdForBookArgs = promptInput(session, "bookID memberID");
+                return holdBook(session, holdForBookArgs, work, Integer.parseInt(holdForBookArgs[1]));
             }
             break;
         case 8:
-            if (userType == USER_TYPE.MEMBER) {
-                String[] holdCopyArgs = promptInput("copyID");
-                return holdCopy(holdCopyArgs, connectionUrl, memberID);
-            } else if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] holdForCopyArgs = promptInput("copyID memberID");
-                return holdCopy(holdForCopyArgs, connectionUrl, Integer.parseInt(holdForCopyArgs[1]));
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] holdCopyArgs = promptInput(session, "copyID");
+                return holdCopy(session, holdCopyArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] holdForCopyArgs = promptInput(session, "copyID memberID");
+                return holdCopy(session, holdForCopyArgs, work, Integer.parseInt(holdForCopyArgs[1]));
             }
             break;
         case 9:
-            if (userType == USER_TYPE.MEMBER) {
-                String[] loansArgs = promptInput("");
-                return printLoans(loansArgs, connectionUrl, memberID);
-            } else if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] checkOutForBookArgs = promptInput("bookID memberID");
-                return checkoutBook(checkOutForBookArgs, connectionUrl, Integer.parseInt(checkOutForBookArgs[1]));
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] loansArgs = promptInput(session, "");
+                return printLoans(session, loansArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] checkOutForBookArgs = promptInput(session, "bookID memberID");
+                return checkoutBook(session, checkOutForBookArgs, work, Integer.parseInt(checkOutForBookArgs[1]));
             }
             break;
         case 10:
-            if (userType == USER_TYPE.MEMBER) {
-                String[] holdsArgs = promptInput("");
-                return printHolds(holdsArgs, connectionUrl, memberID);
-            } else if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] checkOutForCopyArgs = promptInput("copyID memberID");
-                return checkoutCopy(checkOutForCopyArgs, connectionUrl, Integer.parseInt(checkOutForCopyArgs[1]));
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] holdsArgs = promptInput(session, "");
+                return printHolds(session, holdsArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] checkOutForCopyArgs = promptInput(session, "copyID memberID");
+                return checkoutCopy(session, checkOutForCopyArgs, work, Integer.parseInt(checkOutForCopyArgs[1]));
             }
             break;
         case 11:
-            if (userType == USER_TYPE.MEMBER) {
-                String[] returnCopyArgs = promptInput("copyID");
-                return returnCopy(returnCopyArgs, connectionUrl, memberID);
-            } else if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] returnForCopyArgs = promptInput("copyID memberID");
-                return returnCopy(returnForCopyArgs, connectionUrl, Integer.parseInt(returnForCopyArgs[1]));
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] returnCopyArgs = promptInput(session, "copyID");
+                return returnCopy(session, returnCopyArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] returnForCopyArgs = promptInput(session, "copyID memberID");
+                return returnCopy(session, returnForCopyArgs, work, Integer.parseInt(returnForCopyArgs[1]));
             }
             break;
         case 12:
-            if (userType == USER_TYPE.MEMBER) {
-                String[] checkOutBookArgs = promptInput("bookID");
-                return checkoutBook(checkOutBookArgs, connectionUrl, memberID);
-            } else if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] findMemberArgs = promptInput("name");
-                return findMemberByName(findMemberArgs, connectionUrl);
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] checkOutBookArgs = promptInput(session, "bookID");
+                return checkoutBook(session, checkOutBookArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] findMemberArgs = promptInput(session, "name");
+                return findMemberByName(session, findMemberArgs, work);
             }
             break;
         case 13:
-            if (userType == USER_TYPE.MEMBER) {
-                String[] checkOutCopyArgs = promptInput("copyID");
-                return checkoutCopy(checkOutCopyArgs, connectionUrl, memberID);
-            } else if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] findMemberArgs = promptInput("ID");
-                return findMemberByID(findMemberArgs, connectionUrl);
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] checkOutCopyArgs = promptInput(session, "copyID");
+                return checkoutCopy(session, checkOutCopyArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] findMemberArgs = promptInput(session, "ID");
+                return findMemberByID(session, findMemberArgs, work);
             }
             break;
         case 14:
-            if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] addMemberArgs = promptInput("firstName lastName dob");
-                return addMember(addMemberArgs, connectionUrl);
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] leaveQueueArgs = promptInput(session, "bookID");
+                return leaveHoldQueue(session, leaveQueueArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] addMemberArgs = promptInput(session, "firstName lastName dob");
+                return addMember(session, addMemberArgs, work);
             }
             break;
         case 15:
-            if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] removeMemberArgs = promptInput("memberID");
-                return removeMember(removeMemberArgs, connectionUrl);
+            if (session.userType == USER_TYPE.MEMBER) {
+                String[] historyArgs = promptInput(session, "");
+                return printMemberHistory(session, historyArgs, work, session.memberID);
+            } else if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] removeMemberArgs = promptInput(session, "memberID");
+                return removeMember(session, removeMemberArgs, work);
             }
             break;
         case 16:
-            if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] loansArgs = promptInput("memberID");
-                return printLoans(loansArgs, connectionUrl, Integer.parseInt(loansArgs[0]));
+            if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] loansArgs = promptInput(session, "memberID");
+                return printLoans(session, loansArgs, work, Integer.parseInt(loansArgs[0]));
             }
             break;
         case 17:
-            if (userType == USER_TYPE.EMPLOYEE || userType == USER_TYPE.CURATOR) {
-                String[] holdsArgs = promptInput("memberID");
-                return printHolds(holdsArgs, connectionUrl, Integer.parseInt(holdsArgs[0]));
+            if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] holdsArgs = promptInput(session, "memberID");
+                return printHolds(session, holdsArgs, work, Integer.parseInt(holdsArgs[0]));
             }
             break;
         case 18:
-            if (userType == USER_TYPE.CURATOR) {
-                return addBook(connectionUrl);
+            if (session.userType == USER_TYPE.CURATOR) {
+                return addBook(session, work);
             }
             break;
         case 19:
-            if (userType == USER_TYPE.CURATOR) {
-                createAuthorPrompt(connectionUrl, null,  null);
+            if (session.userType == USER_TYPE.CURATOR) {
+                createAuthorPrompt(session, work, null,  null);
                 return true;
             }
             break;
         case 20:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] findAuthorArgs = promptInput("name");
-                return findAuthor(findAuthorArgs, connectionUrl, "name");
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] findAuthorArgs = promptInput(session, "name");
+                return findAuthor(session, findAuthorArgs, work, "name");
             }
             break;
         case 21:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] findAuthorArgs = promptInput("ID");
-                return findAuthor(findAuthorArgs, connectionUrl, "id");
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] findAuthorArgs = promptInput(session, "ID");
+                return findAuthor(session, findAuthorArgs, work, "id");
             }
             break;
         case 22:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] updateAuthorArgs = promptInput("authorID");
-                return updateAuthor(updateAuthorArgs, connectionUrl);
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] updateAuthorArgs = promptInput(session, "authorID");
+                return updateAuthor(session, updateAuthorArgs, work);
             }
             break;
         case 23:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] addGenreArgs = promptInput("genreName");
-                createGenrePrompt(connectionUrl, addGenreArgs[0]);
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] addGenreArgs = promptInput(session, "genreName");
+                createGenrePrompt(session, work, addGenreArgs[0]);
                 return true;
             }
             break;
         case 24:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] addGenreToBookArgs = promptInput("bookID genreName");
-                return addGenreToBook(addGenreToBookArgs, connectionUrl);
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] addGenreToBookArgs = promptInput(session, "bookID genreName");
+                return addGenreToBook(session, addGenreToBookArgs, work);
             }
             break;
         case 25:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] removeGenreFromBookArgs = promptInput("bookID genreName");
-                return removeGenreFromBook(removeGenreFromBookArgs, connectionUrl);
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] removeGenreFromBookArgs = promptInput(session, "bookID genreName");
+                return removeGenreFromBook(session, removeGenreFromBookArgs, work);
             }
             break;
         case 26:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] addKeywordToBookArgs = promptInput("bookID keyword");
-                return addKeywordToBook(addKeywordToBookArgs, connectionUrl);
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] addKeywordToBookArgs = promptInput(session, "bookID keyword");
+                return addKeywordToBook(session, addKeywordToBookArgs, work);
             }
             break;
         case 27:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] removeKeywordFromBookArgs = promptInput("bookID keyword");
-                return removeKeywordFromBook(removeKeywordFromBookArgs, connectionUrl);
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] removeKeywordFromBookArgs = promptInput(session, "bookID keyword");
+                return removeKeywordFromBook(session, removeKeywordFromBookArgs, work);
             }
             break;
         case 28:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] addCopyArgs = promptInput("bookID condition");
-                return addCopy(addCopyArgs, connectionUrl);
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] addCopyArgs = promptInput(session, "bookID condition");
+                return addCopy(session, addCopyArgs, work);
             }
             break;
         case 29:
-            if (userType == USER_TYPE.CURATOR) {
-                String[] removeCopyArgs = promptInput("copyID");
-                return removeCopy(removeCopyArgs, connectionUrl);
+            if (session.userType == USER_TYPE.CURATOR) {
+                String[] removeCopyArgs = promptInput(session, "copyID");
+                return removeCopy(session, removeCopyArgs, work);
+            }
+            break;
+        case 30:
+            if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] leaveQueueForArgs = promptInput(session, "bookID memberID");
+                return leaveHoldQueue(session, leaveQueueForArgs, work, Integer.parseInt(leaveQueueForArgs[1]));
+            }
+            break;
+        case 31:
+            if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] memberHistoryArgs = promptInput(session, "memberID");
+                return printMemberHistory(session, memberHistoryArgs, work, Integer.parseInt(memberHistoryArgs[0]));
+            }
+            break;
+        case 32:
+            if (session.userType == USER_TYPE.EMPLOYEE || session.userType == USER_TYPE.CURATOR) {
+                String[] bookHistoryArgs = promptInput(session, "bookID");
+                return printBookHistory(session, bookHistoryArgs, work);
             }
             break;
         default:
-            System.out.println("Invalid command.");
+            session.out.println("Invalid command.");
             break;
     }
     return false;
@@ -0,0 +1,510 @@
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+// Standalone benchmarks for the app's hot paths, run with: java Benchmark [benchmark] [size] [queries]
+// benchmark is titleSearch (the default), parse, render, statements, citations, complete, or all to run every one at 10k, 100k and 1M
+// Uses a synthetic catalog and stand-in JDBC objects, so it doesn't need a database connection; the numbers are
+// for the app's own work, not for round trips to the server
+// The same cases run under JMH from LibraryDBApp/jmh, which calls operation for one item of a case at a time
+public class Benchmark {
+private static final int DEFAULT_BOOKS = 1_000_000;
+private static final int DEFAULT_QUERIES = 2_000;
+private static final int WARM_UP_QUERIES = 200;
+private static final long SEED = 341;
+// References per book in the synthetic citation graph, 1M books gives 10M edges
+private static final int REFERENCES_PER_BOOK = 10;
+// Fixed sizes so results can be compared between releases
+private static final int[] SUITE_SIZES = {10_000, 100_000, 1_000_000};
+// The full scan is slow at 1M, so the suite runs fewer title searches than a single run does
+private static final int SUITE_QUERIES = 300;
+private static final int WARM_UP_ROUNDS = 3;
+private static final int MEASURED_ROUNDS = 5;
+// Items in the workload an operation cycles through
+private static final int OPERATION_WORKLOAD = 4_096;
+// Procedures and parameter counts the statements benchmark asks the cache for
+private static final String[] PROCEDURES = {"bookDetails", "searchTitle", "checkOutBook", "holdBook", "returnCopy", "getLoans", "getHolds", "searchISBN"};
+private static final int[] ARITIES = {1, 3, 2, 2, 1, 1, 1, 1};
+
+public static void main(String[] args) {
+    String benchmark = args.length > 0 && !Character.isDigit(args[0].charAt(0)) ? args[0] : "titleSearch";
+    int offset = benchmark.equals(args.length > 0 ? args[0] : "") ? 1 : 0;
+    int size = args.length > offset ? Integer.parseInt(args[offset]) : DEFAULT_BOOKS;
+    int queries = args.length > offset + 1 ? Integer.parseInt(args[offset + 1]) : DEFAULT_QUERIES;
+    if (benchmark.equals("all")) {
+        for (int suiteSize : SUITE_SIZES) {
+            System.out.printf("%n== %,d ==%n", suiteSize);
+            run("parse", suiteSize, SUITE_QUERIES);
+            run("render", suiteSize, SUITE_QUERIES);
+            run("statements", suiteSize, SUITE_QUERIES);
+            run("titleSearch", suiteSize, SUITE_QUERIES);
+            run("citations", suiteSize, SUITE_QUERIES);
+            run("complete", suiteSize, SUITE_QUERIES);
+        }
+        return;
+    }
+    run(benchmark, size, queries);
+}
+
+private static void run(String benchmark, int size, int queries) {
+    switch (benchmark) {
+        case "titleSearch":
+            titleSearch(size, queries);
+            break;
+        case "parse":
+            parse(size);
+            break;
+        case "render":
+            render(size);
+            break;
+        case "statements":
+            statements(size);
+            break;
+        case "citations":
+            citations(size, queries);
+            break;
+        case "complete":
+            complete(size, queries);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown benchmark " + benchmark);
+    }
+}
+
+// Method to set up one case and return a single operation of it, each call runs the next item of the case's workload
+// variant picks what is timed within the case, e.g. scan or index for titleSearch, see LibraryBenchmarks for the list
+public static IntSupplier operation(String benchmark, String variant, int size) {
+    Random random = new Random(SEED);
+    switch (benchmark) {
+        case "titleSearch": {
+            String[] titles = titles(random, size);
+            String[] workload = titleQueries(random, titles, OPERATION_WORKLOAD);
+            if (variant.equals("scan")) {
+                return cycle(workload, query -> scan(titles, query));
+            }
+            TrigramIndex index = titleIndex(titles);
+            return cycle(workload, query -> index.search(query).length);
+        }
+        case "complete": {
+            String[] titles = titles(random, size);
+            PrefixIndex index = prefixIndex(titles);
+            return cycle(prefixes(random, titles, Integer.parseInt(variant), OPERATION_WORKLOAD), query -> index.complete(query, 10).size());
+        }
+        case "citations": {
+            CitationGraph graph = citationGraph(random, size);
+            String[] workload = bookIDs(random, size, OPERATION_WORKLOAD);
+            int hops = Integer.parseInt(variant.substring(variant.length() - 1));
+            if (variant.startsWith("citedBy")) {
+                return cycle(workload, query -> graph.citedBy(Integer.parseInt(query), hops).bookIDs.length);
+            }
+            return cycle(workload, query -> graph.cites(Integer.parseInt(query), hops).bookIDs.length);
+        }
+        case "parse": {
+            String[] lines = commandLines(random, OPERATION_WORKLOAD);
+            return variant.equals("regex") ? cycle(lines, Benchmark::regexParts) : cycle(lines, line -> App.splitCommand(line).length);
+        }
+        case "render": {
+            String[][] values = bookRows(random, size);
+            ResultRenderer renderer = new ResultRenderer(Writer.nullWriter());
+            renderer.setFormat(ResultRenderer.parseFormat(variant));
+            return () -> render(renderer, values);
+        }
+        case "statements": {
+            StatementCache cache = new StatementCache(connection(), StatementCache.DEFAULT_CAPACITY);
+            int[] next = {0};
+            if (variant.equals("build")) {
+                return () -> buildCall(next[0]++ & 7).length();
+            }
+            return () -> prepareCached(cache, next[0]++ & 7);
+        }
+        default:
+            throw new IllegalArgumentException("Unknown benchmark " + benchmark);
+    }
+}
+
+// Method to run a query over a workload one item per call, starting over at the end
+private static IntSupplier cycle(String[] workload, Query query) {
+    int[] next = {0};
+    return () -> {
+        int i = next[0];
+        next[0] = i + 1 == workload.length ? 0 : i + 1;
+        return query.run(workload[i]);
+    };
+}
+
+// Method to compare a LIKE '%x%' style scan of every title against the trigram index
+private static void titleSearch(int books, int queries) {
+    Random random = new Random(SEED);
+    String[] titles = titles(random, books);
+    long start = System.nanoTime();
+    TrigramIndex index = titleIndex(titles);
+    System.out.printf("Built trigram index over %,d titles in %.1f s%n", books, (System.nanoTime() - start) / 1e9);
+    System.out.println(index.getStats());
+
+    String[] workload = titleQueries(random, titles, queries + WARM_UP_QUERIES);
+    long[] scan = measure(workload, query -> scan(titles, query));
+    long[] indexed = measure(workload, query -> index.search(query).length);
+    report("title search, full scan", scan);
+    report("title search, trigram index", indexed);
+}
+
+// Synthetic titles indexed by bookID, titles[0] is unused
+static String[] titles(Random random, int books) {
+    String[] vocabulary = vocabulary(random, 20_000);
+    String[] titles = new String[books + 1];
+    titles[0] = "";
+    for (int bookID = 1; bookID <= books; bookID++) {
+        titles[bookID] = title(random, vocabulary);
+    }
+    return titles;
+}
+
+private static TrigramIndex titleIndex(String[] titles) {
+    TrigramIndex index = new TrigramIndex("titles");
+    for (int bookID = 1; bookID < titles.length; bookID++) {
+        index.put(bookID, titles[bookID]);
+    }
+    return index;
+}
+
+static String[] titleQueries(Random random, String[] titles, int queries) {
+    String[] workload = new String[queries];
+    for (int i = 0; i < workload.length; i++) {
+        workload[i] = substring(random, titles[1 + random.nextInt(titles.length - 1)]);
+    }
+    return workload;
+}
+
+// The scan stands in for the searchTitle procedure, which has to check every row of book
+private static int scan(String[] titles, String query) {
+    String pattern = query.toLowerCase(Locale.ROOT);
+    int matches = 0;
+    for (int bookID = 1; bookID < titles.length; bookID++) {
+        if (titles[bookID].toLowerCase(Locale.ROOT).contains(pattern)) {
+            matches++;
+        }
+    }
+    return matches;
+}
+
+// Method to time cites and citedby at depths 1 to 4 over a graph with REFERENCES_PER_BOOK references per book
+// Cited books are skewed towards low IDs, like real citations a few books collect most of them
+private static void citations(int books, int queries) {
+    Random random = new Random(SEED);
+    long start = System.nanoTime();
+    CitationGraph graph = citationGraph(random, books);
+    System.out.printf("Built citation graph with %,d references in %.1f s%n", (long) books * REFERENCES_PER_BOOK, (System.nanoTime() - start) / 1e9);
+    System.out.println(graph.getStats());
+
+    String[] workload = bookIDs(random, books, queries + WARM_UP_QUERIES);
+    for (int depth = 1; depth <= 4; depth++) {
+        int hops = depth;
+        report("cites, depth " + depth, measure(workload, query -> graph.cites(Integer.parseInt(query), hops).bookIDs.length));
+        report("citedby, depth " + depth, measure(workload, query -> graph.citedBy(Integer.parseInt(query), hops).bookIDs.length));
+    }
+}
+
+private static CitationGraph citationGraph(Random random, int books) {
+    int edges = books * REFERENCES_PER_BOOK;
+    int[] referencing = new int[edges];
+    int[] referenced = new int[edges];
+    for (int i = 0; i < edges; i++) {
+        referencing[i] = 1 + i / REFERENCES_PER_BOOK;
+        double skewed = random.nextDouble();
+        referenced[i] = 1 + (int) (skewed * skewed * skewed * books);
+    }
+    return new CitationGraph(referencing, referenced, edges);
+}
+
+private static String[] bookIDs(Random random, int books, int count) {
+    String[] ids = new String[count];
+    for (int i = 0; i < ids.length; i++) {
+        ids[i] = Integer.toString(1 + random.nextInt(books));
+    }
+    return ids;
+}
+
+// Method to time top 10 completions of title prefixes of one to six characters, like a kiosk user typing
+private static void complete(int books, int queries) {
+    Random random = new Random(SEED);
+    String[] titles = titles(random, books);
+    long start = System.nanoTime();
+    PrefixIndex index = prefixIndex(titles);
+    System.out.printf("Built prefix index over %,d titles in %.1f s%n", books, (System.nanoTime() - start) / 1e9);
+    System.out.println(index.getStats());
+
+    for (int length = 1; length <= 6; length += 5) {
+        String[] workload = prefixes(random, titles, length, queries + WARM_UP_QUERIES);
+        report("complete, " + length + " character prefix", measure(workload, query -> index.complete(query, 10).size()));
+    }
+}
+
+private static PrefixIndex prefixIndex(String[] titles) {
+    PrefixIndex index = new PrefixIndex("titles");
+    for (int bookID = 1; bookID < titles.length; bookID++) {
+        index.set(bookID, titles[bookID]);
+    }
+    index.build();
+    return index;
+}
+
+// The first length characters of a word from a random title
+private static String[] prefixes(Random random, String[] titles, int length, int count) {
+    String[] workload = new String[count];
+    for (int i = 0; i < workload.length; i++) {
+        String[] words = titles[1 + random.nextInt(titles.length - 1)].split(" ");
+        String word = words[random.nextInt(words.length)];
+        workload[i] = word.substring(0, Math.min(length, word.length()));
+    }
+    return workload;
+}
+
+// Method to time splitting command lines, the first step of parseCommand for every console and batch command
+private static void parse(int commands) {
+    String[] lines = commandLines(new Random(SEED), commands);
+    throughput("parse, split command lines", commands, () -> {
+        int parts = 0;
+        for (String line : lines) {
+            parts += App.splitCommand(line).length;
+        }
+        return parts;
+    });
+    throughput("parse, regex split (before)", commands, () -> {
+        int parts = 0;
+        for (String line : lines) {
+            parts += regexParts(line);
+        }
+        return parts;
+    });
+}
+
+private static String[] commandLines(Random random, int commands) {
+    String[] lines = new String[commands];
+    for (int i = 0; i < commands; i++) {
+        int command = 1 + random.nextInt(29);
+        lines[i] = random.nextBoolean() ? Integer.toString(command)
+                : command + " " + (1 + random.nextInt(1_000_000)) + " " + (1 + random.nextInt(50_000));
+    }
+    return lines;
+}
+
+// How parseCommand split lines before splitCommand
+private static int regexParts(String line) {
+    String[] split = line.split("\\s+", 2);
+    return split.length > 1 ? split[1].split(" ").length + 1 : 1;
+}
+
+// Method to time printing a result set in every output format, to a writer that discards the output
+private static void render(int rows) {
+    String[][] values = bookRows(new Random(SEED), rows);
+    for (ResultRenderer.Format format : ResultRenderer.Format.values()) {
+        ResultRenderer renderer = new ResultRenderer(Writer.nullWriter());
+        renderer.setFormat(format);
+        throughput("render, " + format.name().toLowerCase(Locale.ROOT), rows, () -> render(renderer, values));
+    }
+}
+
+private static String[][] bookRows(Random random, int rows) {
+    String[] vocabulary = vocabulary(random, 20_000);
+    String[][] values = new String[rows][];
+    for (int i = 0; i < rows; i++) {
+        values[i] = new String[] {Integer.toString(i + 1), title(random, vocabulary), "978" + (1_000_000_000L + random.nextInt(900_000_000)),
+                Integer.toString(1 + random.nextInt(5)), "2001-01-01", vocabulary[random.nextInt(vocabulary.length)] + " Press",
+                Integer.toString(1900 + random.nextInt(125))};
+    }
+    return values;
+}
+
+private static int render(ResultRenderer renderer, String[][] values) {
+    try {
+        return renderer.render(resultSet(values), App.BOOK_COLUMNS);
+    } catch (SQLException e) {
+        throw new IllegalStateException(e);
+    }
+}
+
+// Method to time getting a statement for executeProcedure from the statement cache, against building a new call each time
+private static void statements(int calls) {
+    StatementCache cache = new StatementCache(connection(), StatementCache.DEFAULT_CAPACITY);
+    throughput("statements, cached prepareCall", calls, () -> {
+        int found = 0;
+        for (int i = 0; i < calls; i++) {
+            found += prepareCached(cache, i & 7);
+        }
+        return found;
+    });
+    throughput("statements, build call string (before)", calls, () -> {
+        int length = 0;
+        for (int i = 0; i < calls; i++) {
+            length += buildCall(i & 7).length();
+        }
+        return length;
+    });
+}
+
+private static int prepareCached(StatementCache cache, int procedure) {
+    try {
+        return cache.prepareCall(PROCEDURES[procedure], ARITIES[procedure]) != null ? 1 : 0;
+    } catch (SQLException e) {
+        throw new IllegalStateException(e);
+    }
+}
+
+// How executeProcedure built the call before the statement cache
+private static String buildCall(int procedure) {
+    StringBuilder call = new StringBuilder("{call " + PROCEDURES[procedure] + "(");
+    for (int p = 0; p < ARITIES[procedure]; p++) {
+        call.append(p > 0 ? ", ?" : "?");
+    }
+    return call.append(")}").toString();
+}
+
+// Method to time a whole pass over a workload a few times after warming up, reports the best and median time per item
+private static void throughput(String name, int items, Pass pass) {
+    long checksum = 0;
+    for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+        checksum += pass.run();
+    }
+    long[] rounds = new long[MEASURED_ROUNDS];
+    for (int i = 0; i < rounds.length; i++) {
+        long start = System.nanoTime();
+        checksum += pass.run();
+        rounds[i] = System.nanoTime() - start;
+    }
+    if (checksum == Long.MIN_VALUE) {
+        System.out.println(); // Keeps the results live so the JIT can't drop the work
+    }
+    Arrays.sort(rounds);
+    System.out.printf("%-40s %,10d items   best %8.1f ns/item   median %8.1f ns/item%n", name, items,
+            (double) rounds[0] / items, (double) rounds[rounds.length / 2] / items);
+}
+
+// A forward-only result set over rows held in memory, standing in for the driver's
+private static ResultSet resultSet(String[][] rows) {
+    ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(Benchmark.class.getClassLoader(),
+            new Class<?>[] {ResultSetMetaData.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getColumnCount":
+                        return App.BOOK_COLUMNS.size();
+                    case "getColumnLabel":
+                    case "getColumnName":
+                        return App.BOOK_COLUMNS.get((Integer) args[0] - 1);
+                    case "getColumnDisplaySize":
+                        return 30;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    int[] row = {-1};
+    return (ResultSet) Proxy.newProxyInstance(Benchmark.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "next":
+                        return ++row[0] < rows.length;
+                    case "getString":
+                        return rows[row[0]][(Integer) args[0] - 1];
+                    case "getMetaData":
+                        return metaData;
+                    case "close":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+}
+
+// A connection whose prepareCall hands back a stand-in statement, so only the cache's own work is timed
+private static Connection connection() {
+    CallableStatement statement = (CallableStatement) Proxy.newProxyInstance(Benchmark.class.getClassLoader(),
+            new Class<?>[] {CallableStatement.class}, (proxy, method, args) -> null);
+    return (Connection) Proxy.newProxyInstance(Benchmark.class.getClassLoader(), new Class<?>[] {Connection.class},
+            (proxy, method, args) -> method.getName().startsWith("prepare") ? statement : null);
+}
+
+// Method to time each query after a warm-up, returns the sorted latencies in nanoseconds
+static long[] measure(String[] workload, Query query) {
+    long checksum = 0;
+    for (int i = 0; i < WARM_UP_QUERIES; i++) {
+        checksum += query.run(workload[i]);
+    }
+    long[] latencies = new long[workload.length - WARM_UP_QUERIES];
+    for (int i = 0; i < latencies.length; i++) {
+        long start = System.nanoTime();
+        checksum += query.run(workload[WARM_UP_QUERIES + i]);
+        latencies[i] = System.nanoTime() - start;
+    }
+    if (checksum == Long.MIN_VALUE) {
+        System.out.println(); // Keeps the results live so the JIT can't drop the work
+    }
+    Arrays.sort(latencies);
+    return latencies;
+}
+
+static void report(String name, long[] sortedLatencies) {
+    System.out.printf("%-40s p50 %10.1f us   p99 %10.1f us   max %10.1f us%n", name,
+            percentile(sortedLatencies, 0.50) / 1e3, percentile(sortedLatencies, 0.99) / 1e3,
+            sortedLatencies[sortedLatencies.length - 1] / 1e3);
+}
+
+static long percentile(long[] sortedLatencies, double quantile) {
+    int index = (int) Math.ceil(quantile * sortedLatencies.length) - 1;
+    return sortedLatencies[Math.max(0, Math.min(sortedLatencies.length - 1, index))];
+}
+
+// Random pronounceable words, so titles share realistic trigrams
+static String[] vocabulary(Random random, int size) {
+    String consonants = "bcdfghjklmnprstvwz";
+    String vowels = "aeiou";
+    String[] words = new String[size];
+    for (int i = 0; i < size; i++) {
+        StringBuilder word = new StringBuilder();
+        int syllables = 1 + random.nextInt(3);
+        for (int s = 0; s < syllables; s++) {
+            word.append(consonants.charAt(random.nextInt(consonants.length())));
+            word.append(vowels.charAt(random.nextInt(vowels.length())));
+            if (random.nextBoolean()) {
+                word.append(consonants.charAt(random.nextInt(consonants.length())));
+            }
+        }
+        word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+        words[i] = word.toString();
+    }
+    return words;
+}
+
+static String title(Random random, String[] vocabulary) {
+    StringBuilder title = new StringBuilder();
+    int words = 2 + random.nextInt(5);
+    for (int w = 0; w < words; w++) {
+        if (w > 0) {
+            title.append(' ');
+        }
+        title.append(vocabulary[random.nextInt(vocabulary.length)]);
+    }
+    return title.toString();
+}
+
+// A search term as a user would type it: part of a real title, 3 to 10 characters long
+static String substring(Random random, String text) {
+    while (true) {
+        int length = Math.min(text.length(), 3 + random.nextInt(8));
+        int start = random.nextInt(text.length() - length + 1);
+        String query = text.substring(start, start + length).trim();
+        if (query.length() >= 3) {
+            return query;
+        }
+    }
+}
+
+interface Query {
+    int run(String query);
+}
+
+interface Pass {
+    long run();
+}
+}
@@ -0,0 +1,509 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Streams a catalog export (CSV or JSON Lines) into the database in chunks, one transaction per chunk
+// Authors and genres are resolved through in-memory name to ID maps instead of one lookup per name,
+// books are inserted a few hundred rows per statement, and bookAuthor, keyword, bookGenre and copy rows are sent with
+// JDBC batching, so a chunk costs a handful of round trips no matter how many rows are in it
+// Only one chunk of records is held in memory at a time, plus the author and genre maps
+//
+// Every record has a title and optionally isbn, edition, publicationDate, publisher, copyrightYear, authors, genres,
+// keywords and copies. In CSV these are the header names, lists are separated by ';' and copies is either a number of
+// copies in good condition or a list of conditions. In JSON Lines lists can also be arrays.
+// Authors are written "firstName lastName", a single name is taken as the last name
+public class BulkLoader {
+public static final int DEFAULT_CHUNK_SIZE = 1000;
+// SQL Server allows 2100 parameters per statement, books take 7 each
+private static final int ROWS_PER_INSERT = 250;
+private static final int MAX_ISBN_LENGTH = 13;
+private static final int LOAD_FETCH_SIZE = 10_000;
+private static final String LIST_SEPARATOR = ";";
+private static final String DEFAULT_CONDITION = "good";
+// Most copies a record can ask for by number, anything more is taken to be a mistake in the export
+private static final int MAX_COPIES = 1000;
+private static final String NEW_AUTHOR_STATUS = "unknown";
+
+private final ConnectionPool pool;
+private final int chunkSize;
+// Name keys are lower-cased like the database collation compares them
+private final Map<String, Integer> authorIDs = new HashMap<>();
+private final Map<String, Integer> genreIDs = new HashMap<>();
+private long books = 0;
+private long linkRows = 0;
+private long rejected = 0;
+private long failed = 0;
+
+// One book from the input and everything attached to it
+private static final class Record {
+    int line;
+    String title;
+    String isbn;
+    String edition;
+    String publicationDate;
+    String publisher;
+    String copyrightYear;
+    List<String[]> authors = new ArrayList<>(); // {firstName, lastName}
+    Set<String> genres = new LinkedHashSet<>();
+    Set<String> keywords = new LinkedHashSet<>();
+    List<String> copies = new ArrayList<>();
+}
+
+public BulkLoader(ConnectionPool pool, int chunkSize) {
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+}
+
+// Method to load a file, .jsonl and .json files are read as JSON Lines and anything else as CSV
+// Returns false if the file couldn't be read, chunks that fail are reported and skipped
+public boolean load(Path file) {
+    long start = System.nanoTime();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        loadMaps();
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".jsonl") || name.endsWith(".json")) {
+            loadJsonLines(reader);
+        } else {
+            loadCsv(reader);
+        }
+    } catch (IOException | SQLException e) {
+        System.out.println(e.getMessage());
+        return false;
+    } finally {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Loaded %,d books and %,d author, genre, keyword and copy rows in %.1f s (%.0f books/s, %.0f rows/s)%n",
+                books, linkRows, seconds, books / Math.max(seconds, 1e-9), (books + linkRows) / Math.max(seconds, 1e-9));
+        System.out.printf("%,d records rejected, %,d records in failed chunks%n", rejected, failed);
+    }
+    return true;
+}
+
+// Method to read the IDs of every existing author and genre
+private void loadMaps() throws SQLException {
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        PreparedStatement authors = work.prepareStatement("SELECT authorID, firstName, lastName FROM author");
+        authors.setFetchSize(LOAD_FETCH_SIZE);
+        try (ResultSet resultSet = authors.executeQuery()) {
+            while (resultSet.next()) {
+                authorIDs.putIfAbsent(authorKey(resultSet.getString(2), resultSet.getString(3)), resultSet.getInt(1));
+            }
+        }
+        PreparedStatement genres = work.prepareStatement("SELECT genreID, genreName FROM genre");
+        try (ResultSet resultSet = genres.executeQuery()) {
+            while (resultSet.next()) {
+                genreIDs.put(genreKey(resultSet.getString(2)), resultSet.getInt(1));
+            }
+        }
+        work.commit();
+    }
+}
+
+private static String authorKey(String firstName, String lastName) {
+    return (firstName == null ? "" : firstName.toLowerCase(Locale.ROOT)) + '\u0001'
+            + (lastName == null ? "" : lastName.toLowerCase(Locale.ROOT));
+}
+
+private static String genreKey(String genreName) {
+    return genreName.toLowerCase(Locale.ROOT);
+}
+
+private void loadCsv(BufferedReader reader) throws IOException {
+    int[] line = {0};
+    List<String> header = readCsvRecord(reader, line);
+    if (header == null) {
+        return;
+    }
+    Map<String, Integer> columns = new HashMap<>();
+    for (int i = 0; i < header.size(); i++) {
+        columns.put(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+    }
+    List<Record> chunk = new ArrayList<>(chunkSize);
+    List<String> fields;
+    while ((fields = readCsvRecord(reader, line)) != null) {
+        if (fields.size() == 1 && fields.get(0).isBlank()) {
+            continue;
+        }
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, Integer> column : columns.entrySet()) {
+            if (column.getValue() < fields.size()) {
+                values.put(column.getKey(), fields.get(column.getValue()));
+            }
+        }
+        addRecord(chunk, toRecord(values, line[0]));
+    }
+    writeChunk(chunk);
+}
+
+private void loadJsonLines(BufferedReader reader) throws IOException {
+    List<Record> chunk = new ArrayList<>(chunkSize);
+    int line = 0;
+    String text;
+    while ((text = reader.readLine()) != null) {
+        line++;
+        if (text.isBlank()) {
+            continue;
+        }
+        Object value;
+        try {
+            value = Json.parse(text);
+        } catch (IllegalArgumentException e) {
+            reject(line, e.getMessage());
+            continue;
+        }
+        if (!(value instanceof Map)) {
+            reject(line, "expected a JSON object");
+            continue;
+        }
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            values.put(entry.getKey().toString().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+        addRecord(chunk, toRecord(values, line));
+    }
+    writeChunk(chunk);
+}
+
+private void addRecord(List<Record> chunk, Record record) {
+    if (record == null) {
+        return;
+    }
+    chunk.add(record);
+    if (chunk.size() >= chunkSize) {
+        writeChunk(chunk);
+        chunk.clear();
+    }
+}
+
+private void reject(int line, String reason) {
+    rejected++;
+    System.out.println("Skipping line " + line + ": " + reason);
+}
+
+// Method to validate one input record, returns null (after reporting it) if it can't be loaded
+private Record toRecord(Map<String, Object> values, int line) {
+    Record record = new Record();
+    record.line = line;
+    record.title = text(values.get("title"));
+    if (record.title == null) {
+        reject(line, "missing title");
+        return null;
+    }
+    record.isbn = text(values.get("isbn"));
+    if (record.isbn != null && record.isbn.length() > MAX_ISBN_LENGTH) {
+        reject(line, "ISBN longer than " + MAX_ISBN_LENGTH + " characters");
+        return null;
+    }
+    record.edition = text(values.get("edition"));
+    record.publicationDate = text(values.get("publicationdate"));
+    record.publisher = text(values.get("publisher"));
+    record.copyrightYear = text(values.get("copyrightyear"));
+    for (String author : list(values.get("authors"))) {
+        String[] names = author.split("\\s+");
+        String lastName = names[names.length - 1];
+        String firstName = names.length > 1 ? author.substring(0, author.length() - lastName.length()).trim() : null;
+        record.authors.add(new String[] {firstName, lastName});
+    }
+    for (String genre : list(values.get("genres"))) {
+        record.genres.add(genre);
+    }
+    for (String keyword : list(values.get("keywords"))) {
+        record.keywords.add(keyword);
+    }
+    String copies = text(values.get("copies"));
+    if (copies != null && copies.chars().allMatch(Character::isDigit)) {
+        // Checked by length first, a number too big for an int would otherwise fail to parse
+        int count = copies.length() <= 4 ? Integer.parseInt(copies) : 0;
+        if (count < 1 || count > MAX_COPIES) {
+            reject(line, "copies must be between 1 and " + MAX_COPIES);
+            return null;
+        }
+        for (int i = count; i > 0; i--) {
+            record.copies.add(DEFAULT_CONDITION);
+        }
+    } else {
+        for (String condition : list(values.get("copies"))) {
+            if (!condition.equals("good") && !condition.equals("neutral") && !condition.equals("poor")) {
+                reject(line, "invalid copy condition '" + condition + "'");
+                return null;
+            }
+            record.copies.add(condition);
+        }
+    }
+    return record;
+}
+
+// Blank values are loaded as NULL
+private static String text(Object value) {
+    if (value == null || value instanceof List || value instanceof Map) {
+        return null;
+    }
+    String text = value.toString().trim();
+    return text.isEmpty() ? null : text;
+}
+
+// A list is either a JSON array or a string separated by ';'
+private static List<String> list(Object value) {
+    List<String> items = new ArrayList<>();
+    if (value instanceof List) {
+        for (Object item : (List<?>) value) {
+            String text = text(item);
+            if (text != null) {
+                items.add(text);
+            }
+        }
+    } else if (value != null) {
+        for (String item : value.toString().split(LIST_SEPARATOR)) {
+            if (!item.isBlank()) {
+                items.add(item.trim());
+            }
+        }
+    }
+    return items;
+}
+
+// Method to write a chunk of records in one transaction, a chunk that fails is rolled back and skipped
+private void writeChunk(List<Record> chunk) {
+    if (chunk.isEmpty()) {
+        return;
+    }
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        Map<String, Integer> newAuthors = insertAuthors(chunk, work);
+        Map<String, Integer> newGenres = insertGenres(chunk, work);
+        int[] bookIDs = insertBooks(chunk, work);
+        long rows = insertLinks(chunk, bookIDs, newAuthors, newGenres, work);
+        // The maps only learn the new IDs once they are committed, a rolled back chunk must not leave them behind
+        work.afterCommit(() -> {
+            authorIDs.putAll(newAuthors);
+            genreIDs.putAll(newGenres);
+        });
+        work.commit();
+        books += chunk.size();
+        linkRows += rows;
+    } catch (SQLException e) {
+        failed += chunk.size();
+        System.out.println("Lines " + chunk.get(0).line + " to " + chunk.get(chunk.size() - 1).line
+                + " were rolled back: " + e.getMessage());
+    }
+}
+
+// Method to insert the authors this chunk needs that don't exist yet, returns their IDs by name key
+private Map<String, Integer> insertAuthors(List<Record> chunk, UnitOfWork work) throws SQLException {
+    Map<String, String[]> missing = new LinkedHashMap<>();
+    for (Record record : chunk) {
+        for (String[] author : record.authors) {
+            String key = authorKey(author[0], author[1]);
+            if (!authorIDs.containsKey(key)) {
+                missing.putIfAbsent(key, new String[] {author[0], author[1], NEW_AUTHOR_STATUS});
+            }
+        }
+    }
+    List<String[]> rows = new ArrayList<>(missing.values());
+    int[] ids = insertRows(work, "author", List.of("firstName", "lastName", "status"), "authorID", rows);
+    Map<String, Integer> inserted = new HashMap<>();
+    int i = 0;
+    for (String key : missing.keySet()) {
+        inserted.put(key, ids[i++]);
+    }
+    return inserted;
+}
+
+// Method to insert the genres this chunk needs that don't exist yet, returns their IDs by name key
+private Map<String, Integer> insertGenres(List<Record> chunk, UnitOfWork work) throws SQLException {
+    Map<String, String[]> missing = new LinkedHashMap<>();
+    for (Record record : chunk) {
+        for (String genre : record.genres) {
+            String key = genreKey(genre);
+            if (!genreIDs.containsKey(key)) {
+                missing.putIfAbsent(key, new String[] {genre});
+            }
+        }
+    }
+    List<String[]> rows = new ArrayList<>(missing.values());
+    int[] ids = insertRows(work, "genre", List.of("genreName"), "genreID", rows);
+    Map<String, Integer> inserted = new HashMap<>();
+    int i = 0;
+    for (String key : missing.keySet()) {
+        inserted.put(key, ids[i++]);
+    }
+    return inserted;
+}
+
+private int[] insertBooks(List<Record> chunk, UnitOfWork work) throws SQLException {
+    List<String[]> rows = new ArrayList<>(chunk.size());
+    for (Record record : chunk) {
+        rows.add(new String[] {record.title, record.isbn, record.edition, record.publicationDate, record.publisher,
+                record.copyrightYear});
+    }
+    return insertRows(work, "book", List.of("title", "ISBN", "edition", "publicationDate", "publisher", "copyrightYear"),
+            "bookID", rows);
+}
+
+// Method to insert rows into a table with an identity column, returns the new IDs in the same order as the rows
+// INSERT ... OUTPUT can't say which row each ID belongs to, so this is a MERGE that never matches, which can
+// output the row's position in the source alongside the new ID
+static int[] insertRows(UnitOfWork work, String table, List<String> columns, String idColumn, List<String[]> rows)
+        throws SQLException {
+    int[] ids = new int[rows.size()];
+    for (int from = 0; from < rows.size(); from += ROWS_PER_INSERT) {
+        int count = Math.min(ROWS_PER_INSERT, rows.size() - from);
+        PreparedStatement statement = work.prepareStatement(mergeStatement(table, columns, idColumn, count));
+        int parameter = 1;
+        for (int r = 0; r < count; r++) {
+            statement.setInt(parameter++, r);
+            for (String value : rows.get(from + r)) {
+                statement.setString(parameter++, value);
+            }
+        }
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                ids[from + resultSet.getInt(1)] = resultSet.getInt(2);
+            }
+        }
+    }
+    return ids;
+}
+
+private static String mergeStatement(String table, List<String> columns, String idColumn, int rows) {
+    String columnList = String.join(", ", columns);
+    StringBuilder sql = new StringBuilder("MERGE INTO ").append(table).append(" AS target USING (VALUES ");
+    for (int r = 0; r < rows; r++) {
+        sql.append(r > 0 ? ", (?" : "(?");
+        for (int c = 0; c < columns.size(); c++) {
+            sql.append(", ?");
+        }
+        sql.append(')');
+    }
+    sql.append(") AS source (ordinal, ").append(columnList).append(") ON 1 = 0 WHEN NOT MATCHED THEN INSERT (")
+            .append(columnList).append(") VALUES (");
+    for (int c = 0; c < columns.size(); c++) {
+        sql.append(c > 0 ? ", source." : "source.").append(columns.get(c));
+    }
+    return sql.append(") OUTPUT source.ordinal, INSERTED.").append(idColumn).append(";").toString();
+}
+
+// Method to batch insert every bookAuthor, keyword, bookGenre and copy row of a chunk, returns the number of rows
+private long insertLinks(List<Record> chunk, int[] bookIDs, Map<String, Integer> newAuthors, Map<String, Integer> newGenres,
+        UnitOfWork work) throws SQLException {
+    PreparedStatement bookAuthor = work.prepareStatement("INSERT INTO bookAuthor (bookID, authorID, isPrimaryAuthor) VALUES (?, ?, ?)");
+    PreparedStatement keyword = work.prepareStatement("INSERT INTO keyword (bookID, word) VALUES (?, ?)");
+    PreparedStatement bookGenre = work.prepareStatement("INSERT INTO bookGenre (bookID, genreID) VALUES (?, ?)");
+    PreparedStatement copy = work.prepareStatement("INSERT INTO copy (bookID, condition) VALUES (?, ?)");
+    long rows = 0;
+    for (int i = 0; i < chunk.size(); i++) {
+        Record record = chunk.get(i);
+        int bookID = bookIDs[i];
+        // The same author or genre can be spelled twice with different case, but the key only allows one row per book
+        Set<Integer> seen = new LinkedHashSet<>();
+        for (String[] author : record.authors) {
+            String key = authorKey(author[0], author[1]);
+            int authorID = authorIDs.containsKey(key) ? authorIDs.get(key) : newAuthors.get(key);
+            if (seen.add(authorID)) {
+                bookAuthor.setInt(1, bookID);
+                bookAuthor.setInt(2, authorID);
+                bookAuthor.setBoolean(3, seen.size() == 1); // First author is primary, others are not
+                bookAuthor.addBatch();
+                rows++;
+            }
+        }
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : record.keywords) {
+            if (words.add(word.toLowerCase(Locale.ROOT))) {
+                keyword.setInt(1, bookID);
+                keyword.setString(2, word);
+                keyword.addBatch();
+                rows++;
+            }
+        }
+        seen.clear();
+        for (String genre : record.genres) {
+            String key = genreKey(genre);
+            int genreID = genreIDs.containsKey(key) ? genreIDs.get(key) : newGenres.get(key);
+            if (seen.add(genreID)) {
+                bookGenre.setInt(1, bookID);
+                bookGenre.setInt(2, genreID);
+                bookGenre.addBatch();
+                rows++;
+            }
+        }
+        for (String condition : record.copies) {
+            copy.setInt(1, bookID);
+            copy.setString(2, condition);
+            copy.addBatch();
+            rows++;
+        }
+    }
+    try {
+        bookAuthor.executeBatch();
+        keyword.executeBatch();
+        bookGenre.executeBatch();
+        copy.executeBatch();
+    } finally {
+        // The statements are cached, so nothing may be left queued on them if a batch fails
+        bookAuthor.clearBatch();
+        keyword.clearBatch();
+        bookGenre.clearBatch();
+        copy.clearBatch();
+    }
+    return rows;
+}
+
+// Method to read one CSV record (RFC 4180, quoted fields can span lines), returns null at the end of the input
+private static List<String> readCsvRecord(BufferedReader reader, int[] line) throws IOException {
+    String text = reader.readLine();
+    if (text == null) {
+        return null;
+    }
+    line[0]++;
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    int i = 0;
+    while (true) {
+        if (i == text.length()) {
+            if (!quoted) {
+                break;
+            }
+            // A line break inside quotes belongs to the field
+            text = reader.readLine();
+            if (text == null) {
+                break;
+            }
+            line[0]++;
+            field.append('\n');
+            i = 0;
+            continue;
+        }
+        char c = text.charAt(i++);
+        if (quoted) {
+            if (c != '"') {
+                field.append(c);
+            } else if (i < text.length() && text.charAt(i) == '"') {
+                field.append('"');
+                i++;
+            } else {
+                quoted = false;
+            }
+        } else if (c == '"') {
+            quoted = true;
+        } else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+        } else {
+            field.append(c);
+        }
+    }
+    fields.add(field.toString());
+    return fields;
+}
+}
@@ -0,0 +1,101 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Size-bounded read-through cache for point reads of slow-changing catalog data (books, authors, members, genres)
+// Entries are dropped least recently used first once the cache is full, and expire after a time to live so changes
+// made by other clients show up eventually. Changes made through this app invalidate their entries once committed.
+public class CatalogCache<K, V> {
+private final String name;
+private final int maxSize;
+private final long ttlNanos;
+private final LinkedHashMap<K, Entry<V>> entries;
+// Bumped on every invalidation, so a value read from the database before an invalidation isn't cached after it
+private long generation = 0;
+private long hits = 0;
+private long misses = 0;
+private long evictions = 0;
+private long expirations = 0;
+private long invalidations = 0;
+
+private static final class Entry<V> {
+    final V value;
+    final long loadedAt;
+
+    Entry(V value, long loadedAt) {
+        this.value = value;
+        this.loadedAt = loadedAt;
+    }
+}
+
+// A time to live of 0 turns the cache off
+public CatalogCache(String name, int maxSize, long ttlMillis) {
+    this.name = name;
+    this.maxSize = maxSize;
+    this.ttlNanos = ttlMillis * 1_000_000L;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() > CatalogCache.this.maxSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+}
+
+public boolean isEnabled() {
+    return ttlNanos > 0 && maxSize > 0;
+}
+
+// Method to get a cached value, returns null if it isn't cached or has expired
+public synchronized V get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry != null && System.nanoTime() - entry.loadedAt > ttlNanos) {
+        entries.remove(key);
+        expirations++;
+        entry = null;
+    }
+    if (entry == null) {
+        misses++;
+        return null;
+    }
+    hits++;
+    return entry.value;
+}
+
+// Method to take a stamp before reading a value from the database, to pass to put afterwards
+public synchronized long stamp() {
+    return generation;
+}
+
+// Method to cache a value read from the database
+// It is dropped if anything was invalidated since the stamp was taken, because the value may already be out of date
+public synchronized void put(K key, V value, long stamp) {
+    if (!isEnabled() || stamp != generation) {
+        return;
+    }
+    entries.put(key, new Entry<>(value, System.nanoTime()));
+}
+
+// Method to drop an entry that a committed change made out of date
+public synchronized void invalidate(K key) {
+    generation++;
+    if (entries.remove(key) != null) {
+        invalidations++;
+    }
+}
+
+public synchronized void clear() {
+    generation++;
+    invalidations += entries.size();
+    entries.clear();
+}
+
+public synchronized String getStats() {
+    long lookups = hits + misses;
+    return String.format("Cache (%s): %d/%d entries, %d hits, %d misses, %.1f%% hit ratio, %d evicted, %d expired, %d invalidated",
+            name, entries.size(), maxSize, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+            evictions, expirations, invalidations);
+}
+}
@@ -0,0 +1,88 @@
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Rebuilds the circulation counters behind 'stats circulation' from memberCopy and loanHistory
+// The checkout, hold and return procedures keep the counters current themselves (countCirculation), this only puts
+// right whatever has drifted, e.g. loans changed by hand or counters lost to a restore. Books and members are rebuilt
+// in ranges of BATCH_SIZE IDs, each in its own short transaction, so desks counting a loan only ever wait for one batch.
+public class CirculationStats {
+public static final int BATCH_SIZE = 1000;
+// SQL Server's error number for a transaction chosen as a deadlock victim, the reconcile batches give way to desks
+private static final int DEADLOCK_ERROR = 1205;
+private static final int ATTEMPTS = 3;
+
+private final ConnectionPool pool;
+
+public CirculationStats(ConnectionPool pool) {
+    this.pool = pool;
+}
+
+// Method to rebuild this month's book and genre counters and every member's counters, returns false if a batch failed
+public boolean reconcile() {
+    long start = System.nanoTime();
+    String month = LocalDate.now().withDayOfMonth(1).toString();
+    try {
+        int books = reconcileInBatches("SELECT MAX(bookID) FROM book", "reconcileBookCirculation", month);
+        runBatch("reconcileGenreCirculation", new String[] {month});
+        int members = reconcileInBatches("SELECT MAX(memberID) FROM member", "reconcileMemberCirculation", null);
+        System.out.printf("Circulation stats reconciled: %d book batches, %d member batches in %.1f s%n", books, members,
+                (System.nanoTime() - start) / 1e9);
+        return true;
+    } catch (SQLException e) {
+        System.out.println("Circulation stats reconcile failed: " + e.getMessage());
+        return false;
+    }
+}
+
+// Method to run a reconcile procedure over (after, to] ranges of IDs up to the highest one, returns the batches run
+private int reconcileInBatches(String maxQuery, String procedureName, String month) throws SQLException {
+    int maxID;
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        try (ResultSet resultSet = work.prepareStatement(maxQuery).executeQuery()) {
+            maxID = resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+        work.commit();
+    }
+    int batches = 0;
+    for (int after = 0; after < maxID; after += BATCH_SIZE) {
+        String from = Integer.toString(after);
+        String to = Integer.toString(after + BATCH_SIZE);
+        runBatch(procedureName, month == null ? new String[] {from, to} : new String[] {month, from, to});
+        batches++;
+    }
+    return batches;
+}
+
+// Method to run one batch in its own transaction, trying again if it lost a deadlock to a desk
+private void runBatch(String procedureName, String[] parameters) throws SQLException {
+    for (int attempt = 1; ; attempt++) {
+        try (UnitOfWork work = new UnitOfWork(pool)) {
+            CallableStatement callableStatement = work.prepareCall(procedureName, parameters.length);
+            for (int i = 0; i < parameters.length; i++) {
+                callableStatement.setString(i + 1, parameters[i]);
+            }
+            callableStatement.execute();
+            work.commit();
+            return;
+        } catch (SQLException e) {
+            if (e.getErrorCode() != DEADLOCK_ERROR || attempt == ATTEMPTS) {
+                throw e;
+            }
+        }
+    }
+}
+
+// Method to reconcile now and then every period, on a background thread that stops when the app exits
+public void scheduleEvery(long periodMinutes) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "circulation-stats");
+        thread.setDaemon(true);
+        return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::reconcile, 0, periodMinutes, TimeUnit.MINUTES);
+    System.out.println("Circulation stats will be reconciled every " + periodMinutes + " minutes");
+}
+}
@@ -0,0 +1,372 @@
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory citation graph over the reference table, so following citations several hops deep doesn't need a round trip
+// per hop. Both directions are stored in compressed sparse row form: the books a book cites (or is cited by) are
+// targets[offsets[bookID]] up to targets[offsets[bookID + 1]], indexed by bookID, so the whole graph is four int arrays.
+// References added after loading go into small per-book side arrays, which are merged into the main arrays once there
+// are enough of them to be worth rebuilding for.
+public class CitationGraph {
+private static final String LOAD_STATEMENT = "SELECT referencingBookID, referencedBookID FROM reference";
+private static final int LOAD_FETCH_SIZE = 10_000;
+// Added references are merged once there are this many, or 1% of the graph if that is more
+private static final int MIN_MERGE_THRESHOLD = 10_000;
+private static final int[] NONE = new int[0];
+
+// cites: referencing book -> referenced books, citedBy: referenced book -> referencing books
+private int[] citesOffsets;
+private int[] citesTargets;
+private int[] citedByOffsets;
+private int[] citedByTargets;
+private final Map<Integer, int[]> addedCites = new HashMap<>();
+private final Map<Integer, int[]> addedCitedBy = new HashMap<>();
+private int addedCount = 0;
+private int maxBookID;
+private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+// Books reached by a traversal, in the order they were reached, and how many hops away each one is
+public static final class Reached {
+    public final int[] bookIDs;
+    public final int[] hops;
+
+    Reached(int[] bookIDs, int[] hops) {
+        this.bookIDs = bookIDs;
+        this.hops = hops;
+    }
+}
+
+// Books ranked by a score, highest first
+public static final class Ranked {
+    public final int[] bookIDs;
+    public final int[] scores;
+
+    Ranked(int[] bookIDs, int[] scores) {
+        this.bookIDs = bookIDs;
+        this.scores = scores;
+    }
+}
+
+// Method to build a graph from parallel arrays of edges, referencing[i] cites referenced[i]
+public CitationGraph(int[] referencing, int[] referenced, int edgeCount) {
+    build(referencing, referenced, edgeCount);
+}
+
+// Method to build the graph by streaming the whole reference table
+public static CitationGraph load(UnitOfWork work) throws SQLException {
+    int[] referencing = new int[1024];
+    int[] referenced = new int[1024];
+    int count = 0;
+    PreparedStatement statement = work.prepareStatement(LOAD_STATEMENT);
+    statement.setFetchSize(LOAD_FETCH_SIZE);
+    try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+            if (count == referencing.length) {
+                referencing = Arrays.copyOf(referencing, count * 2);
+                referenced = Arrays.copyOf(referenced, count * 2);
+            }
+            referencing[count] = resultSet.getInt(1);
+            referenced[count] = resultSet.getInt(2);
+            count++;
+        }
+    }
+    return new CitationGraph(referencing, referenced, count);
+}
+
+private void build(int[] referencing, int[] referenced, int edgeCount) {
+    int max = 0;
+    for (int i = 0; i < edgeCount; i++) {
+        max = Math.max(max, Math.max(referencing[i], referenced[i]));
+    }
+    maxBookID = max;
+    citesOffsets = new int[max + 2];
+    citedByOffsets = new int[max + 2];
+    citesTargets = new int[edgeCount];
+    citedByTargets = new int[edgeCount];
+    fill(referencing, referenced, edgeCount, citesOffsets, citesTargets);
+    fill(referenced, referencing, edgeCount, citedByOffsets, citedByTargets);
+}
+
+// Counting sort of the edges by their source into offsets and targets
+private static void fill(int[] from, int[] to, int edgeCount, int[] offsets, int[] targets) {
+    for (int i = 0; i < edgeCount; i++) {
+        offsets[from[i] + 1]++;
+    }
+    for (int i = 1; i < offsets.length; i++) {
+        offsets[i] += offsets[i - 1];
+    }
+    int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+    for (int i = 0; i < edgeCount; i++) {
+        targets[next[from[i]]++] = to[i];
+    }
+}
+
+// Method to record a reference that was added to the database, unless the graph already has it
+public void add(int referencingBookID, int referencedBookID) {
+    lock.writeLock().lock();
+    try {
+        if (contains(referencingBookID, referencedBookID)) {
+            return;
+        }
+        append(addedCites, referencingBookID, referencedBookID);
+        append(addedCitedBy, referencedBookID, referencingBookID);
+        addedCount++;
+        maxBookID = Math.max(maxBookID, Math.max(referencingBookID, referencedBookID));
+        if (addedCount >= Math.max(MIN_MERGE_THRESHOLD, citesTargets.length / 100)) {
+            merge();
+        }
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+
+// Method to check whether one book cites another, including added references
+public boolean contains(int referencingBookID, int referencedBookID) {
+    lock.readLock().lock();
+    try {
+        for (int target : neighbours(citesOffsets, citesTargets, addedCites, referencingBookID)) {
+            if (target == referencedBookID) {
+                return true;
+            }
+        }
+        return false;
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+
+private static void append(Map<Integer, int[]> added, int from, int to) {
+    int[] targets = added.get(from);
+    if (targets == null) {
+        added.put(from, new int[] {to});
+    } else {
+        int[] grown = Arrays.copyOf(targets, targets.length + 1);
+        grown[targets.length] = to;
+        added.put(from, grown);
+    }
+}
+
+// Method to rebuild the main arrays with the added references in them
+private void merge() {
+    int edgeCount = citesTargets.length + addedCount;
+    int[] referencing = new int[edgeCount];
+    int[] referenced = new int[edgeCount];
+    int e = 0;
+    for (int book = 0; book + 1 < citesOffsets.length; book++) {
+        for (int i = citesOffsets[book]; i < citesOffsets[book + 1]; i++) {
+            referencing[e] = book;
+            referenced[e++] = citesTargets[i];
+        }
+    }
+    for (Map.Entry<Integer, int[]> entry : addedCites.entrySet()) {
+        for (int target : entry.getValue()) {
+            referencing[e] = entry.getKey();
+            referenced[e++] = target;
+        }
+    }
+    build(referencing, referenced, e);
+    addedCites.clear();
+    addedCitedBy.clear();
+    addedCount = 0;
+}
+
+// The books a book cites or is cited by, including added references
+private static int[] neighbours(int[] offsets, int[] targets, Map<Integer, int[]> added, int bookID) {
+    int[] extra = added.isEmpty() ? null : added.get(bookID);
+    boolean loaded = bookID >= 0 && bookID + 1 < offsets.length && offsets[bookID] < offsets[bookID + 1];
+    if (!loaded) {
+        return extra == null ? NONE : extra;
+    }
+    int[] result = Arrays.copyOfRange(targets, offsets[bookID], offsets[bookID + 1] + (extra == null ? 0 : extra.length));
+    if (extra != null) {
+        System.arraycopy(extra, 0, result, offsets[bookID + 1] - offsets[bookID], extra.length);
+    }
+    return result;
+}
+
+// Method to find every book a book cites, directly or through up to depth hops of citations
+public Reached cites(int bookID, int depth) {
+    return traverse(bookID, depth, true);
+}
+
+// Method to find every book that cites a book, directly or through up to depth hops of citations
+public Reached citedBy(int bookID, int depth) {
+    return traverse(bookID, depth, false);
+}
+
+// Breadth first search, so each book is reported at the fewest hops it can be reached in
+private Reached traverse(int start, int depth, boolean forward) {
+    lock.readLock().lock();
+    try {
+        int[] offsets = forward ? citesOffsets : citedByOffsets;
+        int[] targets = forward ? citesTargets : citedByTargets;
+        Map<Integer, int[]> added = forward ? addedCites : addedCitedBy;
+        if (start < 0 || start > maxBookID) {
+            return new Reached(NONE, NONE);
+        }
+        long[] visited = new long[(maxBookID >> 6) + 1];
+        visited[start >> 6] |= 1L << start;
+        int[] reached = new int[16];
+        int[] hops = new int[16];
+        int count = 0;
+        int frontierStart = 0;
+        int frontierEnd = 0;
+        for (int hop = 1; hop <= depth; hop++) {
+            // The first hop expands the start book (as position -1), later ones the books the hop before reached
+            for (int f = hop == 1 ? -1 : frontierStart; f < (hop == 1 ? 0 : frontierEnd); f++) {
+                int book = f < 0 ? start : reached[f];
+                // Reads the loaded references straight from the arrays and then any added ones, without copying them
+                int[] extra = added.isEmpty() ? null : added.get(book);
+                for (int pass = 0; pass < 2; pass++) {
+                    int[] source = pass == 0 ? targets : extra;
+                    int from = pass == 0 ? (book + 1 < offsets.length ? offsets[book] : 0) : 0;
+                    int to = pass == 0 ? (book + 1 < offsets.length ? offsets[book + 1] : 0) : (extra == null ? 0 : extra.length);
+                    for (int i = from; i < to; i++) {
+                        int next = source[i];
+                        if ((visited[next >> 6] & (1L << next)) != 0) {
+                            continue;
+                        }
+                        visited[next >> 6] |= 1L << next;
+                        if (count == reached.length) {
+                            reached = Arrays.copyOf(reached, count * 2);
+                            hops = Arrays.copyOf(hops, count * 2);
+                        }
+                        reached[count] = next;
+                        hops[count++] = hop;
+                    }
+                }
+            }
+            if (count == frontierEnd) {
+                break;
+            }
+            frontierStart = frontierEnd;
+            frontierEnd = count;
+        }
+        return new Reached(Arrays.copyOf(reached, count), Arrays.copyOf(hops, count));
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+
+// Method to rank the books most often cited together with a book, by how many books cite both
+public Ranked coCited(int bookID, int limit) {
+    lock.readLock().lock();
+    try {
+        int[] counts = new int[maxBookID + 1];
+        int[] touched = new int[16];
+        int touchedCount = 0;
+        for (int citing : neighbours(citedByOffsets, citedByTargets, addedCitedBy, bookID)) {
+            for (int other : neighbours(citesOffsets, citesTargets, addedCites, citing)) {
+                if (other == bookID) {
+                    continue;
+                }
+                if (counts[other]++ == 0) {
+                    if (touchedCount == touched.length) {
+                        touched = Arrays.copyOf(touched, touchedCount * 2);
+                    }
+                    touched[touchedCount++] = other;
+                }
+            }
+        }
+        return top(Arrays.copyOf(touched, touchedCount), counts, limit);
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+
+// Method to rank the books cited by the most other books
+public Ranked mostCited(int limit) {
+    lock.readLock().lock();
+    try {
+        int[] counts = new int[maxBookID + 1];
+        int[] candidates = new int[maxBookID + 1];
+        int candidateCount = 0;
+        for (int book = 0; book <= maxBookID; book++) {
+            int count = book + 1 < citedByOffsets.length ? citedByOffsets[book + 1] - citedByOffsets[book] : 0;
+            int[] extra = addedCitedBy.get(book);
+            count += extra == null ? 0 : extra.length;
+            if (count > 0) {
+                counts[book] = count;
+                candidates[candidateCount++] = book;
+            }
+        }
+        return top(Arrays.copyOf(candidates, candidateCount), counts, limit);
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+
+// Method to pick the limit books with the highest counts, ties go to the lower book ID
+// Keeps a min-heap of the best so far, so it is O(n log limit) instead of sorting every candidate
+private static Ranked top(int[] books, int[] counts, int limit) {
+    int size = 0;
+    int[] heap = new int[Math.max(0, Math.min(limit, books.length))];
+    for (int book : books) {
+        if (size < heap.length) {
+            heap[size] = book;
+            siftUp(heap, size++, counts);
+        } else if (size > 0 && better(book, heap[0], counts)) {
+            heap[0] = book;
+            siftDown(heap, size, counts);
+        }
+    }
+    int[] ranked = new int[size];
+    int[] scores = new int[size];
+    for (int i = size - 1; i >= 0; i--) {
+        ranked[i] = heap[0];
+        scores[i] = counts[heap[0]];
+        heap[0] = heap[i];
+        siftDown(heap, i, counts);
+    }
+    return new Ranked(ranked, scores);
+}
+
+private static boolean better(int a, int b, int[] counts) {
+    return counts[a] != counts[b] ? counts[a] > counts[b] : a < b;
+}
+
+private static void siftUp(int[] heap, int i, int[] counts) {
+    while (i > 0 && better(heap[(i - 1) / 2], heap[i], counts)) {
+        int parent = (i - 1) / 2;
+        int swap = heap[i];
+        heap[i] = heap[parent];
+        heap[parent] = swap;
+        i = parent;
+    }
+}
+
+private static void siftDown(int[] heap, int size, int[] counts) {
+    int i = 0;
+    while (true) {
+        int worst = i;
+        int left = 2 * i + 1;
+        if (left < size && better(heap[worst], heap[left], counts)) {
+            worst = left;
+        }
+        if (left + 1 < size && better(heap[worst], heap[left + 1], counts)) {
+            worst = left + 1;
+        }
+        if (worst == i) {
+            return;
+        }
+        int swap = heap[i];
+        heap[i] = heap[worst];
+        heap[worst] = swap;
+        i = worst;
+    }
+}
+
+public String getStats() {
+    lock.readLock().lock();
+    try {
+        return String.format("Citation graph: %d references between books up to ID %d, %d added since loading, %.1f MB",
+                citesTargets.length + addedCount, maxBookID, addedCount,
+                4.0 * (citesOffsets.length + citedByOffsets.length + citesTargets.length + citedByTargets.length) / (1024 * 1024));
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+}
@@ -0,0 +1,215 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Where the time goes in each console command, kept per command number for every session in the process:
+// waiting for a pooled connection, preparing and executing statements, and printing results, plus rows per command
+// A command runs on one thread from start to finish, so the JDBC helpers record into the command running on theirs
+// Available through the stats command, a periodic log line (--metrics-log) and Prometheus text (--metrics-port)
+public class CommandMetrics {
+// Upper bounds of the Prometheus histogram buckets
+private static final double[] SECONDS_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+private static final long[] ROWS_BUCKETS = {0, 1, 10, 50, 100, 500, 1000, 5000, 10_000};
+private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+private static final Map<String, Command> commands = new ConcurrentHashMap<>();
+private static final ThreadLocal<Command> current = new ThreadLocal<>();
+private static HttpServer endpoint = null;
+
+// Histograms for one command number, times are in nanoseconds and rows are a plain count
+static final class Command {
+    final LatencyHistogram total = new LatencyHistogram();
+    final LatencyHistogram acquire = new LatencyHistogram();
+    final LatencyHistogram execute = new LatencyHistogram();
+    final LatencyHistogram render = new LatencyHistogram();
+    final Histogram rows = new Histogram();
+    final AtomicLong errors = new AtomicLong();
+}
+
+// Method to start timing a command on this thread, returns the command's start time to pass to end
+public static long begin(String command) {
+    current.set(commands.computeIfAbsent(command, key -> new Command()));
+    return System.nanoTime();
+}
+
+// Method to finish timing the command running on this thread
+public static void end(long start, boolean succeeded) {
+    Command command = current.get();
+    current.remove();
+    if (command == null) {
+        return;
+    }
+    command.total.record(System.nanoTime() - start);
+    if (!succeeded) {
+        command.errors.incrementAndGet();
+    }
+}
+
+// The recording methods do nothing when no command is running on this thread (e.g. the bulk loader)
+public static void recordAcquire(long nanos) {
+    Command command = current.get();
+    if (command != null && nanos >= 0) {
+        command.acquire.record(nanos);
+    }
+}
+
+public static void recordExecute(long nanos) {
+    Command command = current.get();
+    if (command != null) {
+        command.execute.record(nanos);
+    }
+}
+
+public static void recordRender(long nanos, int rows) {
+    Command command = current.get();
+    if (command != null) {
+        command.render.record(nanos);
+        command.rows.record(rows);
+    }
+}
+
+// Method to summarize every command that has run, one line per command number
+public static String getStats() {
+    StringBuilder stats = new StringBuilder("Commands:");
+    for (Map.Entry<String, Command> entry : sorted().entrySet()) {
+        Command command = entry.getValue();
+        stats.append(String.format("%n  %s: %s, %d errors", entry.getKey(), command.total.summary(), command.errors.get()));
+        stats.append(String.format("%n    connection wait p50 %.3f ms, p99 %.3f ms; %d statements p50 %.3f ms, p99 %.3f ms;"
+                + " printing p50 %.3f ms, p99 %.3f ms; rows p50 %d, p99 %d, max %d",
+                command.acquire.percentileNanos(0.50) / 1e6, command.acquire.percentileNanos(0.99) / 1e6,
+                command.execute.count(), command.execute.percentileNanos(0.50) / 1e6, command.execute.percentileNanos(0.99) / 1e6,
+                command.render.percentileNanos(0.50) / 1e6, command.render.percentileNanos(0.99) / 1e6,
+                command.rows.percentile(0.50), command.rows.percentile(0.99), command.rows.max()));
+    }
+    return stats.toString();
+}
+
+// Method to summarize every command together in one line, for the periodic log
+public static String getLogLine() {
+    LatencyHistogram total = new LatencyHistogram();
+    LatencyHistogram acquire = new LatencyHistogram();
+    long errors = 0;
+    for (Command command : commands.values()) {
+        total.add(command.total);
+        acquire.add(command.acquire);
+        errors += command.errors.get();
+    }
+    return String.format("metrics: %d commands, %d errors, p50 %.2f ms, p99 %.2f ms, max %.2f ms, connection wait p99 %.2f ms",
+            total.count(), errors, total.percentileNanos(0.50) / 1e6, total.percentileNanos(0.99) / 1e6, total.maxNanos() / 1e6,
+            acquire.percentileNanos(0.99) / 1e6);
+}
+
+// Method to start printing the log line to standard error every period, so it stays out of the command output
+public static void startLogging(long periodSeconds) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "metrics-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+    scheduler.scheduleAtFixedRate(() -> System.err.println(getLogLine()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+}
+
+// Method to serve the metrics as Prometheus text on http://127.0.0.1:<port>/metrics until stopEndpoint is called
+public static synchronized void startEndpoint(int port) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", exchange -> {
+        byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    });
+    server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "metrics-http");
+        thread.setDaemon(true);
+        return thread;
+    }));
+    server.start();
+    endpoint = server;
+    System.out.println("Metrics served on http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+}
+
+public static synchronized void stopEndpoint() {
+    if (endpoint != null) {
+        endpoint.stop(0);
+        endpoint = null;
+    }
+}
+
+// Method to write every histogram in the Prometheus text exposition format
+public static String prometheus() {
+    Map<String, Command> sorted = sorted();
+    StringBuilder text = new StringBuilder();
+    secondsHistogram(text, sorted, "library_command_duration_seconds", "Time to run a console command", c -> c.total);
+    secondsHistogram(text, sorted, "library_connection_acquire_seconds", "Time waiting for a pooled connection", c -> c.acquire);
+    secondsHistogram(text, sorted, "library_statement_execute_seconds", "Time to prepare and execute a statement", c -> c.execute);
+    secondsHistogram(text, sorted, "library_result_render_seconds", "Time to read and print a result", c -> c.render);
+    text.append("# HELP library_result_rows Rows printed per result\n# TYPE library_result_rows histogram\n");
+    for (Map.Entry<String, Command> entry : sorted.entrySet()) {
+        Histogram rows = entry.getValue().rows;
+        for (long bound : ROWS_BUCKETS) {
+            bucket(text, "library_result_rows", entry.getKey(), Long.toString(bound), rows.countAtOrBelow(bound));
+        }
+        bucket(text, "library_result_rows", entry.getKey(), "+Inf", rows.count());
+        sample(text, "library_result_rows_sum", entry.getKey(), Long.toString(rows.sum()));
+        sample(text, "library_result_rows_count", entry.getKey(), Long.toString(rows.count()));
+    }
+    text.append("# HELP library_command_errors_total Console commands that failed and were rolled back\n")
+            .append("# TYPE library_command_errors_total counter\n");
+    for (Map.Entry<String, Command> entry : sorted.entrySet()) {
+        sample(text, "library_command_errors_total", entry.getKey(), Long.toString(entry.getValue().errors.get()));
+    }
+    return text.toString();
+}
+
+private static void secondsHistogram(StringBuilder text, Map<String, Command> commands, String name, String help,
+        Function<Command, LatencyHistogram> which) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" histogram\n");
+    for (Map.Entry<String, Command> entry : commands.entrySet()) {
+        LatencyHistogram histogram = which.apply(entry.getValue());
+        for (double bound : SECONDS_BUCKETS) {
+            bucket(text, name, entry.getKey(), BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString(), histogram.countAtOrBelow((long) (bound * 1e9)));
+        }
+        bucket(text, name, entry.getKey(), "+Inf", histogram.count());
+        sample(text, name + "_sum", entry.getKey(), Double.toString(histogram.sumNanos() / 1e9));
+        sample(text, name + "_count", entry.getKey(), Long.toString(histogram.count()));
+    }
+}
+
+private static void bucket(StringBuilder text, String name, String command, String bound, long count) {
+    text.append(name).append("_bucket{command=\"").append(command).append("\",le=\"").append(bound).append("\"} ")
+            .append(count).append('\n');
+}
+
+private static void sample(StringBuilder text, String name, String command, String value) {
+    text.append(name).append("{command=\"").append(command).append("\"} ").append(value).append('\n');
+}
+
+// Commands in number order, with next, prev and invalid commands after them
+private static Map<String, Command> sorted() {
+    Map<String, Command> sorted = new TreeMap<>((a, b) -> {
+        boolean aNumber = Character.isDigit(a.charAt(0));
+        boolean bNumber = Character.isDigit(b.charAt(0));
+        if (aNumber && bNumber) {
+            return Integer.compare(Integer.parseInt(a), Integer.parseInt(b));
+        }
+        return aNumber ? -1 : bNumber ? 1 : a.compareTo(b);
+    });
+    sorted.putAll(commands);
+    return sorted;
+}
+}
@@ -0,0 +1,304 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Compressed bitmap of non-negative ints, used for sets of IDs such as the books that have a keyword
+// Values are split into chunks of 65536 by their high 16 bits, and each chunk is stored either as a sorted
+// array of its low 16 bits (sparse chunks) or as a 65536-bit bitmap (dense chunks), whichever is smaller
+public class CompactBitmap {
+// Array chunks are converted to bitmaps past this size, where the 8 KB bitmap becomes the smaller of the two
+private static final int ARRAY_MAX = 4096;
+private static final int BITMAP_WORDS = 1024;
+
+// High 16 bits of each chunk, sorted
+private int[] keys = new int[4];
+// Either a char[] of sorted low bits or a long[BITMAP_WORDS] bitmap, parallel to keys
+private Object[] chunks = new Object[4];
+private int[] cardinalities = new int[4];
+private int chunkCount = 0;
+private int cardinality = 0;
+
+// Method to build a bitmap from a sorted or unsorted array of values
+public static CompactBitmap of(int... values) {
+    CompactBitmap bitmap = new CompactBitmap();
+    for (int value : values) {
+        bitmap.add(value);
+    }
+    return bitmap;
+}
+
+public int cardinality() {
+    return cardinality;
+}
+
+public boolean isEmpty() {
+    return cardinality == 0;
+}
+
+public boolean contains(int value) {
+    int index = findChunk(value >>> 16);
+    if (index < 0) {
+        return false;
+    }
+    char low = (char) value;
+    if (chunks[index] instanceof char[]) {
+        return Arrays.binarySearch((char[]) chunks[index], 0, cardinalities[index], low) >= 0;
+    }
+    long[] words = (long[]) chunks[index];
+    return (words[low >>> 6] & (1L << low)) != 0;
+}
+
+// Method to add a value, returns false if it was already present
+public boolean add(int value) {
+    if (value < 0) {
+        throw new IllegalArgumentException("Negative values are not supported: " + value);
+    }
+    int key = value >>> 16;
+    char low = (char) value;
+    int index = findChunk(key);
+    if (index < 0) {
+        index = -index - 1;
+        insertChunk(index, key, new char[4], 0);
+    }
+    if (chunks[index] instanceof char[]) {
+        char[] array = (char[]) chunks[index];
+        int size = cardinalities[index];
+        int position = Arrays.binarySearch(array, 0, size, low);
+        if (position >= 0) {
+            return false;
+        }
+        position = -position - 1;
+        if (size == ARRAY_MAX) {
+            // Chunk is too dense for an array, switch it to a bitmap
+            long[] words = toBitmap(array, size);
+            words[low >>> 6] |= 1L << low;
+            chunks[index] = words;
+        } else {
+            if (size == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, size * 2));
+                chunks[index] = array;
+            }
+            System.arraycopy(array, position, array, position + 1, size - position);
+            array[position] = low;
+        }
+    } else {
+        long[] words = (long[]) chunks[index];
+        long mask = 1L << low;
+        if ((words[low >>> 6] & mask) != 0) {
+            return false;
+        }
+        words[low >>> 6] |= mask;
+    }
+    cardinalities[index]++;
+    cardinality++;
+    return true;
+}
+
+// Method to remove a value, returns false if it wasn't present
+public boolean remove(int value) {
+    int index = findChunk(value >>> 16);
+    if (index < 0) {
+        return false;
+    }
+    char low = (char) value;
+    if (chunks[index] instanceof char[]) {
+        char[] array = (char[]) chunks[index];
+        int size = cardinalities[index];
+        int position = Arrays.binarySearch(array, 0, size, low);
+        if (position < 0) {
+            return false;
+        }
+        System.arraycopy(array, position + 1, array, position, size - position - 1);
+    } else {
+        long[] words = (long[]) chunks[index];
+        long mask = 1L << low;
+        if ((words[low >>> 6] & mask) == 0) {
+            return false;
+        }
+        words[low >>> 6] &= ~mask;
+        if (cardinalities[index] - 1 <= ARRAY_MAX) {
+            chunks[index] = toArray(words, cardinalities[index] - 1);
+        }
+    }
+    cardinalities[index]--;
+    cardinality--;
+    if (cardinalities[index] == 0) {
+        removeChunk(index);
+    }
+    return true;
+}
+
+// Method to intersect this bitmap with another, neither input is modified
+public CompactBitmap and(CompactBitmap other) {
+    CompactBitmap result = new CompactBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < chunkCount && j < other.chunkCount) {
+        if (keys[i] < other.keys[j]) {
+            i++;
+        } else if (keys[i] > other.keys[j]) {
+            j++;
+        } else {
+            result.appendIntersection(keys[i], chunks[i], cardinalities[i], other.chunks[j], other.cardinalities[j]);
+            i++;
+            j++;
+        }
+    }
+    return result;
+}
+
+// Method to intersect several bitmaps, smallest first so the working set shrinks as fast as possible
+public static CompactBitmap andAll(List<CompactBitmap> bitmaps) {
+    if (bitmaps.isEmpty()) {
+        return new CompactBitmap();
+    }
+    CompactBitmap[] sorted = bitmaps.toArray(new CompactBitmap[0]);
+    Arrays.sort(sorted, Comparator.comparingInt(CompactBitmap::cardinality));
+    CompactBitmap result = sorted[0];
+    for (int i = 1; i < sorted.length && !result.isEmpty(); i++) {
+        result = result.and(sorted[i]);
+    }
+    return result == sorted[0] ? result.copy() : result;
+}
+
+// Method to list every value in ascending order
+public int[] toArray() {
+    int[] values = new int[cardinality];
+    int position = 0;
+    for (int index = 0; index < chunkCount; index++) {
+        int high = keys[index] << 16;
+        if (chunks[index] instanceof char[]) {
+            char[] array = (char[]) chunks[index];
+            for (int k = 0; k < cardinalities[index]; k++) {
+                values[position++] = high | array[k];
+            }
+        } else {
+            long[] words = (long[]) chunks[index];
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    values[position++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+    return values;
+}
+
+public CompactBitmap copy() {
+    CompactBitmap copy = new CompactBitmap();
+    copy.keys = Arrays.copyOf(keys, keys.length);
+    copy.cardinalities = Arrays.copyOf(cardinalities, cardinalities.length);
+    copy.chunks = new Object[chunks.length];
+    for (int index = 0; index < chunkCount; index++) {
+        copy.chunks[index] = chunks[index] instanceof char[]
+                ? ((char[]) chunks[index]).clone()
+                : ((long[]) chunks[index]).clone();
+    }
+    copy.chunkCount = chunkCount;
+    copy.cardinality = cardinality;
+    return copy;
+}
+
+private void appendIntersection(int key, Object left, int leftSize, Object right, int rightSize) {
+    Object chunk;
+    int size;
+    if (left instanceof char[] && right instanceof char[]) {
+        char[] a = (char[]) left;
+        char[] b = (char[]) right;
+        char[] out = new char[Math.min(leftSize, rightSize)];
+        size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < leftSize && j < rightSize) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        chunk = out;
+    } else if (left instanceof char[] || right instanceof char[]) {
+        char[] array = (char[]) (left instanceof char[] ? left : right);
+        int arraySize = left instanceof char[] ? leftSize : rightSize;
+        long[] words = (long[]) (left instanceof char[] ? right : left);
+        char[] out = new char[arraySize];
+        size = 0;
+        for (int k = 0; k < arraySize; k++) {
+            char low = array[k];
+            if ((words[low >>> 6] & (1L << low)) != 0) {
+                out[size++] = low;
+            }
+        }
+        chunk = out;
+    } else {
+        long[] a = (long[]) left;
+        long[] b = (long[]) right;
+        long[] out = new long[BITMAP_WORDS];
+        size = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            out[w] = a[w] & b[w];
+            size += Long.bitCount(out[w]);
+        }
+        chunk = size <= ARRAY_MAX ? toArray(out, size) : out;
+    }
+    if (size > 0) {
+        insertChunk(chunkCount, key, chunk, size);
+        cardinality += size;
+    }
+}
+
+private int findChunk(int key) {
+    return Arrays.binarySearch(keys, 0, chunkCount, key);
+}
+
+private void insertChunk(int index, int key, Object chunk, int size) {
+    if (chunkCount == keys.length) {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        chunks = Arrays.copyOf(chunks, capacity);
+        cardinalities = Arrays.copyOf(cardinalities, capacity);
+    }
+    System.arraycopy(keys, index, keys, index + 1, chunkCount - index);
+    System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+    System.arraycopy(cardinalities, index, cardinalities, index + 1, chunkCount - index);
+    keys[index] = key;
+    chunks[index] = chunk;
+    cardinalities[index] = size;
+    chunkCount++;
+}
+
+private void removeChunk(int index) {
+    System.arraycopy(keys, index + 1, keys, index, chunkCount - index - 1);
+    System.arraycopy(chunks, index + 1, chunks, index, chunkCount - index - 1);
+    System.arraycopy(cardinalities, index + 1, cardinalities, index, chunkCount - index - 1);
+    chunkCount--;
+    chunks[chunkCount] = null;
+}
+
+private static long[] toBitmap(char[] array, int size) {
+    long[] words = new long[BITMAP_WORDS];
+    for (int k = 0; k < size; k++) {
+        words[array[k] >>> 6] |= 1L << array[k];
+    }
+    return words;
+}
+
+private static char[] toArray(long[] words, int size) {
+    char[] array = new char[Math.max(size, 4)];
+    int position = 0;
+    for (int w = 0; w < BITMAP_WORDS; w++) {
+        long word = words[w];
+        while (word != 0) {
+            array[position++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+            word &= word - 1;
+        }
+    }
+    return array;
+}
+}
@@ -0,0 +1,298 @@
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Bounded pool of JDBC connections so commands don't pay the TLS handshake and login on every call
+public class ConnectionPool implements AutoCloseable {
+// Default pool settings, these are sized for a handful of concurrent commands per desk
+public static final int DEFAULT_MAX_SIZE = 8;
+public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 15_000;
+public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60_000;
+// Connections used more recently than this are trusted without a validation round trip
+private static final long VALIDATION_INTERVAL_MILLIS = 1_000;
+private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+// Opens a physical connection, the driver normally but tests pass in a stand-in
+interface Connector {
+    Connection connect() throws SQLException;
+}
+
+private final Connector connector;
+private final int minSize;
+private final int maxSize;
+private final long borrowTimeoutMillis;
+private final long idleTimeoutMillis;
+// Idle connections, most recently released first so the oldest ones age out
+private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+private final ScheduledExecutorService evictor;
+private int openConnections = 0;
+private boolean closed = false;
+// Pool metrics, guarded by the pool lock
+private long borrowCount = 0;
+private long waitCount = 0;
+private long totalWaitNanos = 0;
+private long maxWaitNanos = 0;
+private long createdCount = 0;
+private long evictedCount = 0;
+private long invalidCount = 0;
+private long timeoutCount = 0;
+
+public ConnectionPool(String connectionUrl) {
+    this(connectionUrl, DEFAULT_MAX_SIZE, DEFAULT_BORROW_TIMEOUT_MILLIS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+}
+
+public ConnectionPool(String connectionUrl, int maxSize, long borrowTimeoutMillis, long idleTimeoutMillis) {
+    this(connectionUrl, 0, maxSize, borrowTimeoutMillis, idleTimeoutMillis);
+}
+
+// minSize connections are kept open when idle, so the connections opened by warmUp aren't evicted overnight
+public ConnectionPool(String connectionUrl, int minSize, int maxSize, long borrowTimeoutMillis, long idleTimeoutMillis) {
+    this(() -> DriverManager.getConnection(connectionUrl), minSize, maxSize, borrowTimeoutMillis, idleTimeoutMillis);
+}
+
+ConnectionPool(Connector connector, int minSize, int maxSize, long borrowTimeoutMillis, long idleTimeoutMillis) {
+    if (maxSize < 1) {
+        throw new IllegalArgumentException("Pool size must be at least 1");
+    }
+    if (minSize < 0 || minSize > maxSize) {
+        throw new IllegalArgumentException("Minimum pool size must be between 0 and the pool size");
+    }
+    this.connector = connector;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.borrowTimeoutMillis = borrowTimeoutMillis;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    // Background thread that closes connections which have sat idle for too long
+    this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "connection-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    long period = Math.max(1_000, idleTimeoutMillis / 2);
+    evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+}
+
+// Method to open connections up front so the first commands don't pay for the handshake
+public void warmUp(int count) throws SQLException {
+    for (int i = 0; i < count; i++) {
+        synchronized (this) {
+            if (closed || openConnections >= maxSize) {
+                return;
+            }
+            openConnections++;
+        }
+        PooledConnection connection;
+        try {
+            connection = open();
+        } catch (SQLException e) {
+            synchronized (this) {
+                openConnections--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            idle.push(connection);
+            notifyAll();
+        }
+    }
+}
+
+// Method to borrow a connection, waiting up to the borrow timeout if every connection is in use
+public PooledConnection borrow() throws SQLException {
+    long start = System.nanoTime();
+    boolean waited = false;
+    while (true) {
+        PooledConnection candidate = null;
+        boolean create = false;
+        synchronized (this) {
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+            while (!closed && idle.isEmpty() && openConnections >= maxSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeoutCount++;
+                    throw new SQLTransientConnectionException("Timed out waiting for a database connection after " + borrowTimeoutMillis + " ms");
+                }
+                waited = true;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a database connection", e);
+                }
+            }
+            if (closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+            if (!idle.isEmpty()) {
+                candidate = idle.pop();
+            } else {
+                openConnections++;
+                create = true;
+            }
+        }
+        if (create) {
+            try {
+                candidate = open();
+            } catch (SQLException e) {
+                synchronized (this) {
+                    openConnections--;
+                    notifyAll();
+                }
+                throw e;
+            }
+        } else if (!validate(candidate)) {
+            // Stale connection, drop it and try again
+            discard(candidate);
+            synchronized (this) {
+                invalidCount++;
+            }
+            continue;
+        }
+        recordBorrow(System.nanoTime() - start, waited);
+        candidate.markBorrowed();
+        return candidate;
+    }
+}
+
+// Method to hand a connection back to the pool, called by PooledConnection.close()
+void release(PooledConnection connection) {
+    boolean healthy;
+    try {
+        Connection physical = connection.physical();
+        healthy = !physical.isClosed();
+        if (healthy && !physical.getAutoCommit()) {
+            // Never hand out a connection with someone else's open transaction
+            physical.rollback();
+            physical.setAutoCommit(true);
+        }
+    } catch (SQLException e) {
+        healthy = false;
+    }
+    if (!healthy) {
+        discard(connection);
+        return;
+    }
+    connection.markReleased();
+    synchronized (this) {
+        if (closed) {
+            openConnections--;
+            closeQuietly(connection);
+            return;
+        }
+        idle.push(connection);
+        notifyAll();
+    }
+}
+
+// Method to close connections that have been idle longer than the idle timeout, down to the minimum size
+void evictIdle() {
+    long now = System.currentTimeMillis();
+    ArrayDeque<PooledConnection> expired = new ArrayDeque<>();
+    synchronized (this) {
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+        while (iterator.hasNext() && openConnections > minSize) {
+            PooledConnection connection = iterator.next();
+            if (now - connection.lastUsedMillis() < idleTimeoutMillis) {
+                break; // Everything after this was released more recently
+            }
+            iterator.remove();
+            openConnections--;
+            evictedCount++;
+            expired.add(connection);
+        }
+        if (!expired.isEmpty()) {
+            notifyAll();
+        }
+    }
+    for (PooledConnection connection : expired) {
+        closeQuietly(connection);
+    }
+}
+
+private PooledConnection open() throws SQLException {
+    Connection physical = connector.connect();
+    synchronized (this) {
+        createdCount++;
+    }
+    return new PooledConnection(this, physical);
+}
+
+private boolean validate(PooledConnection connection) {
+    if (System.currentTimeMillis() - connection.lastUsedMillis() < VALIDATION_INTERVAL_MILLIS) {
+        return true;
+    }
+    try {
+        return connection.physical().isValid(VALIDATION_TIMEOUT_SECONDS);
+    } catch (SQLException e) {
+        return false;
+    }
+}
+
+private void discard(PooledConnection connection) {
+    closeQuietly(connection);
+    synchronized (this) {
+        openConnections--;
+        notifyAll();
+    }
+}
+
+// Every discarded, evicted or closed connection ends here, its cached statements are closed with it
+private static void closeQuietly(PooledConnection connection) {
+    connection.closeStatements();
+    try {
+        connection.physical().close();
+    } catch (SQLException e) {
+        // Connection is being thrown away anyway
+    }
+}
+
+private synchronized void recordBorrow(long waitNanos, boolean waited) {
+    borrowCount++;
+    totalWaitNanos += waitNanos;
+    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+    if (waited) {
+        waitCount++;
+    }
+}
+
+// Connections open, borrowed or idle, and connections idle in the pool, for the tests
+synchronized int openCount() {
+    return openConnections;
+}
+
+synchronized int idleCount() {
+    return idle.size();
+}
+
+// Method to summarize pool usage, used for the stats printed on logout
+public synchronized String getStats() {
+    double averageWaitMillis = borrowCount == 0 ? 0 : totalWaitNanos / 1_000_000.0 / borrowCount;
+    return String.format("Connection pool: %d open (%d idle, min %d, max %d), %d borrows, %d waited, avg wait %.3f ms, max wait %.3f ms, %d created, %d evicted, %d invalid, %d timeouts",
+            openConnections, idle.size(), minSize, maxSize, borrowCount, waitCount, averageWaitMillis, maxWaitNanos / 1_000_000.0,
+            createdCount, evictedCount, invalidCount, timeoutCount);
+}
+
+// Method to close every idle connection, connections still borrowed are closed when released
+@Override
+public void close() {
+    ArrayDeque<PooledConnection> toClose;
+    synchronized (this) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        toClose = new ArrayDeque<>(idle);
+        openConnections -= idle.size();
+        idle.clear();
+        notifyAll();
+    }
+    evictor.shutdownNow();
+    for (PooledConnection connection : toClose) {
+        closeQuietly(connection);
+    }
+}
+}
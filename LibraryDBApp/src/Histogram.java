@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-size, lock-free histogram of non-negative values that many threads can record into at once
+// Values are counted in log-linear buckets (16 per power of two), so percentiles are accurate to about 6%
+// at any scale without keeping every sample. The values have no unit here, LatencyHistogram reads them as nanoseconds
+public class Histogram {
+private static final int SUB_BUCKET_BITS = 4;
+private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+private final AtomicLong count = new AtomicLong();
+private final AtomicLong sum = new AtomicLong();
+private final AtomicLong max = new AtomicLong();
+
+private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+        return (int) Math.max(0, value);
+    }
+    int highestBit = 63 - Long.numberOfLeadingZeros(value);
+    int shift = highestBit - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+}
+
+// The largest value that falls in a bucket
+private static long bucketLimit(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+        return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+}
+
+// Method to record one value
+public void record(long value) {
+    counts.incrementAndGet(bucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    max.accumulateAndGet(value, Math::max);
+}
+
+public long count() {
+    return count.get();
+}
+
+public long sum() {
+    return sum.get();
+}
+
+public long max() {
+    return max.get();
+}
+
+public double mean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+}
+
+// Method to get the value that the given fraction of recordings (e.g. 0.99) are at or below
+public long percentile(double quantile) {
+    long n = count.get();
+    if (n == 0) {
+        return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank) {
+            return Math.min(bucketLimit(i), max.get());
+        }
+    }
+    return max.get();
+}
+
+// Method to count the recordings at or below a limit, used for cumulative histogram buckets
+// Counts the whole bucket the limit falls in, so it can include values up to about 6% above it
+public long countAtOrBelow(long value) {
+    long seen = 0;
+    for (int i = 0; i <= bucket(value) && i < BUCKETS; i++) {
+        seen += counts.get(i);
+    }
+    return seen;
+}
+
+// Method to add another histogram's recordings to this one
+public void add(Histogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+        long c = other.counts.get(i);
+        if (c != 0) {
+            counts.addAndGet(i, c);
+        }
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+    max.accumulateAndGet(other.max.get(), Math::max);
+}
+}
@@ -0,0 +1,248 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Small helpers for reading and writing JSON without pulling in a library
+public class Json {
+private final String text;
+private int position = 0;
+
+private Json(String text) {
+    this.text = text;
+}
+
+// Method to parse one JSON value: objects become Maps, arrays Lists, numbers Longs or Doubles
+// Throws IllegalArgumentException if the text isn't valid JSON
+public static Object parse(String text) {
+    Json parser = new Json(text);
+    Object value = parser.value();
+    parser.skipWhitespace();
+    if (parser.position < text.length()) {
+        throw parser.error("Unexpected text after the value");
+    }
+    return value;
+}
+
+private Object value() {
+    skipWhitespace();
+    if (position >= text.length()) {
+        throw error("Unexpected end of input");
+    }
+    char c = text.charAt(position);
+    switch (c) {
+        case '{':
+            return object();
+        case '[':
+            return array();
+        case '"':
+            return string();
+        case 't':
+            return literal("true", Boolean.TRUE);
+        case 'f':
+            return literal("false", Boolean.FALSE);
+        case 'n':
+            return literal("null", null);
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return number();
+            }
+            throw error("Unexpected character '" + c + "'");
+    }
+}
+
+private Map<String, Object> object() {
+    Map<String, Object> object = new LinkedHashMap<>();
+    position++;
+    skipWhitespace();
+    if (peek() == '}') {
+        position++;
+        return object;
+    }
+    while (true) {
+        skipWhitespace();
+        if (peek() != '"') {
+            throw error("Expected a property name");
+        }
+        String name = string();
+        skipWhitespace();
+        expect(':');
+        object.put(name, value());
+        skipWhitespace();
+        if (peek() == ',') {
+            position++;
+        } else {
+            expect('}');
+            return object;
+        }
+    }
+}
+
+private List<Object> array() {
+    List<Object> array = new ArrayList<>();
+    position++;
+    skipWhitespace();
+    if (peek() == ']') {
+        position++;
+        return array;
+    }
+    while (true) {
+        array.add(value());
+        skipWhitespace();
+        if (peek() == ',') {
+            position++;
+        } else {
+            expect(']');
+            return array;
+        }
+    }
+}
+
+private String string() {
+    position++;
+    StringBuilder value = new StringBuilder();
+    while (true) {
+        if (position >= text.length()) {
+            throw error("Unterminated string");
+        }
+        char c = text.charAt(position++);
+        if (c == '"') {
+            return value.toString();
+        }
+        if (c != '\\') {
+            value.append(c);
+            continue;
+        }
+        if (position >= text.length()) {
+            throw error("Unterminated string");
+        }
+        char escape = text.charAt(position++);
+        switch (escape) {
+            case '"':
+            case '\\':
+            case '/':
+                value.append(escape);
+                break;
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                if (position + 4 > text.length()) {
+                    throw error("Invalid unicode escape");
+                }
+                try {
+                    value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                } catch (NumberFormatException e) {
+                    throw error("Invalid unicode escape");
+                }
+                position += 4;
+                break;
+            default:
+                throw error("Invalid escape '\\" + escape + "'");
+        }
+    }
+}
+
+private Object number() {
+    int start = position;
+    boolean integral = true;
+    while (position < text.length()) {
+        char c = text.charAt(position);
+        if (c == '.' || c == 'e' || c == 'E') {
+            integral = false;
+        } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+            break;
+        }
+        position++;
+    }
+    String number = text.substring(start, position);
+    try {
+        return integral ? (Object) Long.parseLong(number) : (Object) Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+        throw error("Invalid number '" + number + "'");
+    }
+}
+
+private Object literal(String word, Object value) {
+    if (!text.startsWith(word, position)) {
+        throw error("Unexpected character '" + text.charAt(position) + "'");
+    }
+    position += word.length();
+    return value;
+}
+
+private void skipWhitespace() {
+    while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+        position++;
+    }
+}
+
+private char peek() {
+    return position < text.length() ? text.charAt(position) : 0;
+}
+
+private void expect(char c) {
+    if (peek() != c) {
+        throw error("Expected '" + c + "'");
+    }
+    position++;
+}
+
+private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at position " + position);
+}
+
+// Method to write a value as a JSON string literal, or null
+public static void quote(StringBuilder out, String value) {
+    if (value == null) {
+        out.append("null");
+        return;
+    }
+    out.append('"');
+    for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+        }
+    }
+    out.append('"');
+}
+
+public static String quote(String value) {
+    StringBuilder out = new StringBuilder();
+    quote(out, value);
+    return out.toString();
+}
+}
@@ -0,0 +1,97 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory inverted index over the keyword table: each word maps to a compressed bitmap of the books that have it
+// Multi-keyword AND searches become bitmap intersections, and only the matching book rows are fetched from the database
+public class KeywordIndex {
+private static final String LOAD_STATEMENT = "SELECT bookID, word FROM keyword";
+private static final int LOAD_FETCH_SIZE = 10_000;
+
+private final Map<String, CompactBitmap> postings = new HashMap<>();
+private final ReadWriteLock lock = new ReentrantReadWriteLock();
+private long entryCount = 0;
+
+// Method to build the index by streaming the whole keyword table
+public static KeywordIndex load(UnitOfWork work) throws SQLException {
+    KeywordIndex index = new KeywordIndex();
+    PreparedStatement statement = work.prepareStatement(LOAD_STATEMENT);
+    statement.setFetchSize(LOAD_FETCH_SIZE);
+    try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+            index.add(resultSet.getInt(1), resultSet.getString(2));
+        }
+    }
+    return index;
+}
+
+// Words are compared case-insensitively, the same as the database collation does
+private static String normalize(String word) {
+    return word.trim().toLowerCase(Locale.ROOT);
+}
+
+// Method to record that a book has a keyword
+public void add(int bookID, String word) {
+    lock.writeLock().lock();
+    try {
+        if (postings.computeIfAbsent(normalize(word), key -> new CompactBitmap()).add(bookID)) {
+            entryCount++;
+        }
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+
+// Method to record that a keyword was removed from a book
+public void remove(int bookID, String word) {
+    String key = normalize(word);
+    lock.writeLock().lock();
+    try {
+        CompactBitmap books = postings.get(key);
+        if (books != null && books.remove(bookID)) {
+            entryCount--;
+            if (books.isEmpty()) {
+                postings.remove(key);
+            }
+        }
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+
+// Method to find the IDs of books that have every one of the given words, in ascending order
+public int[] search(String[] words) {
+    List<CompactBitmap> matches = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+        for (String word : words) {
+            String key = normalize(word);
+            if (key.isEmpty()) {
+                continue;
+            }
+            CompactBitmap books = postings.get(key);
+            if (books == null) {
+                return new int[0]; // No book has this word, so no book has all of them
+            }
+            matches.add(books);
+        }
+        return CompactBitmap.andAll(matches).toArray();
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+
+public String getStats() {
+    lock.readLock().lock();
+    try {
+        return "Keyword index: " + postings.size() + " words, " + entryCount + " book/word pairs";
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+}
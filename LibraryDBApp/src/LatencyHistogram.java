@@ -0,0 +1,27 @@
+// Histogram of latencies recorded in nanoseconds, with accessors named for the unit
+public class LatencyHistogram extends Histogram {
+
+public long sumNanos() {
+    return sum();
+}
+
+public long maxNanos() {
+    return max();
+}
+
+public double meanNanos() {
+    return mean();
+}
+
+// Method to get the latency that the given fraction of recordings (e.g. 0.99) are at or below
+public long percentileNanos(double quantile) {
+    return percentile(quantile);
+}
+
+// One line summary in milliseconds
+public String summary() {
+    return String.format("n=%d mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+            count(), meanNanos() / 1e6, percentileNanos(0.50) / 1e6, percentileNanos(0.90) / 1e6,
+            percentileNanos(0.99) / 1e6, percentileNanos(0.999) / 1e6, maxNanos() / 1e6);
+}
+}
@@ -0,0 +1,809 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Replays synthetic circulation traffic against the database through the same command layer the console uses,
+// to size servers and find where contention starts. Each worker is a staff session running a weighted mix of
+// searches, book lookups, checkouts, holds, returns and loan lists on randomly picked books, copies and members.
+//
+// Closed loop (no rate given): every worker starts its next command as soon as the last one finishes, which finds
+// the highest throughput the server can sustain with that many desks.
+// Open loop (a rate in commands/s): commands arrive on a schedule no matter how fast they are served, and latency is
+// measured from when a command was due, not when it started, so queueing behind a slow server shows up in it.
+//
+// The catalog and member population can be seeded first, books go through the bulk loader like a catalog export.
+//
+// runThroughServer sends the same traffic through a session server started in this process instead, one loopback
+// socket per worker, so the sockets, the sessions' input and output and the server's threads are part of what's
+// measured. Latency is from sending a command to the session's next prompt.
+//
+// The hold test (holdTest) checks the hold queue under contention instead: every worker holds one new book for its
+// own members and returns random copies of it, then the queue and copies are checked against each other.
+// The checkout test (checkoutTest) has every worker check out one new book for different members at once, then checks
+// that no copy was given out twice.
+public class LoadGenerator {
+public static final int DEFAULT_DURATION_SECONDS = 60;
+public static final int DEFAULT_HOLD_TEST_SECONDS = 10;
+// Search-heavy, like a normal day at the desks. For semester start, weight checkouts and holds up with --mix
+public static final String DEFAULT_MIX = "search=50,details=20,checkout=10,hold=5,return=10,loans=5";
+private static final List<String> OPERATIONS = List.of("search", "details", "checkout", "hold", "return", "loans");
+// SQL Server's error number for a transaction chosen as a deadlock victim
+private static final int DEADLOCK_ERROR = 1205;
+// Error number thrown by holdBook for a member who already has a copy of the book or is waiting for one
+private static final int ALREADY_QUEUED = 50002;
+// Error number thrown by checkOutBook when every copy is out, or being checked out by another desk
+private static final int NO_COPY_AVAILABLE = 50001;
+// SQL Server's error numbers for a duplicate key in a unique index and in a unique constraint, a second loan of
+// one copy would hit UX_memberCopy_copy
+private static final int DUPLICATE_KEY_ERROR = 2601;
+private static final int UNIQUE_CONSTRAINT_ERROR = 2627;
+// Popular books get most of the traffic, a higher skew sends more of it to fewer books
+private static final double POPULARITY_SKEW = 3.0;
+private static final int SEARCH_WORD_SAMPLE = 10_000;
+private static final int SEED_MEMBERS_PER_CHUNK = 1000;
+private static final int SEED_AUTHOR_RATIO = 10;
+private static final String[] SEED_GENRES = {"Fiction", "Mystery", "Fantasy", "Science Fiction", "Romance", "History",
+        "Biography", "Science", "Poetry", "Travel", "Horror", "Philosophy", "Art", "Children", "Reference"};
+private static final String[] SEED_CONDITIONS = {"good", "good", "good", "neutral", "poor"};
+private static final long SEED = 341;
+// Copies of the hold test's book and members per worker, more members than copies so most holds have to queue
+private static final int HOLD_TEST_COPIES = 3;
+private static final int HOLD_TEST_MEMBERS_PER_WORKER = 4;
+public static final int DEFAULT_CHECKOUT_TEST_COPIES = 20;
+// Members who try to check out the checkout test's book per copy, so the last copies are fought over
+private static final int CHECKOUT_TEST_MEMBERS_PER_COPY = 2;
+
+private final ConnectionPool pool;
+private final App.USER_TYPE userType;
+private final int workers;
+private final int durationSeconds;
+private final double rate; // Commands per second over all workers, 0 for a closed loop
+private final Map<String, Integer> mix;
+private final int totalWeight;
+private final Map<String, Operation> operations = new LinkedHashMap<>();
+// IDs commands are run against, read from the database before the run starts
+private int[] bookIDs;
+private int[] copyIDs;
+private int[] memberIDs;
+private String[] searchWords;
+
+// What running one command on a desk came to
+private static final int OK = 0;
+private static final int FAILED = 1;
+private static final int DEADLOCKED = 2;
+
+// Where a worker's commands run, a session in this process or a client of the session server
+private interface Desk {
+    // Runs one command line and returns OK, FAILED or DEADLOCKED
+    int run(String command) throws IOException;
+}
+
+// One kind of command in the mix and what happened every time it ran
+private static final class Operation {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong deadlocks = new AtomicLong();
+}
+
+public LoadGenerator(ConnectionPool pool, App.USER_TYPE userType, int workers, int durationSeconds, double rate, String mix) {
+    this.pool = pool;
+    this.userType = userType;
+    this.workers = workers;
+    this.durationSeconds = durationSeconds;
+    this.rate = rate;
+    this.mix = parseMix(mix);
+    int total = 0;
+    for (Map.Entry<String, Integer> entry : this.mix.entrySet()) {
+        total += entry.getValue();
+        operations.put(entry.getKey(), new Operation());
+    }
+    this.totalWeight = total;
+}
+
+// Method to read a mix like "search=50,checkout=10", throws IllegalArgumentException for unknown operations
+private static Map<String, Integer> parseMix(String mix) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    for (String part : mix.split(",")) {
+        String[] pair = part.trim().split("=");
+        String name = pair[0].trim().toLowerCase(Locale.ROOT);
+        if (!OPERATIONS.contains(name) || pair.length != 2) {
+            throw new IllegalArgumentException("Unknown operation in mix: " + part + ", operations are " + OPERATIONS);
+        }
+        int weight = Integer.parseInt(pair[1].trim());
+        if (weight > 0) {
+            weights.put(name, weight);
+        }
+    }
+    if (weights.isEmpty()) {
+        throw new IllegalArgumentException("The mix needs at least one operation with a positive weight");
+    }
+    return weights;
+}
+
+// Method to add synthetic books (with authors, genres, keywords and copies) and members to the database
+// Returns false if anything failed, including the member inserts not returning one distinct ID per member
+public static boolean seed(ConnectionPool pool, int books, int members) {
+    Random random = new Random(SEED);
+    String[] vocabulary = Benchmark.vocabulary(random, 20_000);
+    if (books > 0) {
+        Path catalog;
+        try {
+            catalog = Files.createTempFile("seed-catalog", ".jsonl");
+            writeCatalog(catalog, random, vocabulary, books);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        try {
+            if (!new BulkLoader(pool, BulkLoader.DEFAULT_CHUNK_SIZE).load(catalog)) {
+                return false;
+            }
+        } finally {
+            catalog.toFile().delete();
+        }
+    }
+    long start = System.nanoTime();
+    // The IDs the inserts returned, which have to be one new ID per member even though names repeat
+    int[] memberIDs = new int[members];
+    for (int from = 0; from < members; from += SEED_MEMBERS_PER_CHUNK) {
+        List<String[]> rows = new ArrayList<>(SEED_MEMBERS_PER_CHUNK);
+        for (int i = from; i < Math.min(members, from + SEED_MEMBERS_PER_CHUNK); i++) {
+            LocalDate dob = LocalDate.of(1940, 1, 1).plusDays(random.nextInt(365 * 65));
+            LocalDate dor = LocalDate.of(2000, 1, 1).plusDays(random.nextInt(365 * 25));
+            rows.add(new String[] {vocabulary[random.nextInt(vocabulary.length)], vocabulary[random.nextInt(vocabulary.length)],
+                    dob.toString(), dor.toString()});
+        }
+        try (UnitOfWork work = new UnitOfWork(pool)) {
+            int[] ids = BulkLoader.insertRows(work, "member", List.of("memFirstName", "memLastName", "memdob", "memdor"), "memberID", rows);
+            System.arraycopy(ids, 0, memberIDs, from, ids.length);
+            work.commit();
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+    }
+    if (members > 0) {
+        System.out.printf("Seeded %,d members in %.1f s%n", members, (System.nanoTime() - start) / 1e9);
+        long distinctIDs = Arrays.stream(memberIDs).filter(id -> id > 0).distinct().count();
+        if (distinctIDs != members) {
+            System.out.println("FAILED: " + members + " members were inserted but " + distinctIDs + " distinct IDs came back");
+            return false;
+        }
+    }
+    return true;
+}
+
+// Method to write a synthetic catalog in the bulk loader's JSON Lines format
+private static void writeCatalog(Path file, Random random, String[] vocabulary, int books) throws IOException {
+    int authors = Math.max(1, books / SEED_AUTHOR_RATIO);
+    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+        StringBuilder line = new StringBuilder(256);
+        for (int i = 0; i < books; i++) {
+            line.setLength(0);
+            line.append("{\"title\":").append(Json.quote(Benchmark.title(random, vocabulary)));
+            line.append(",\"isbn\":\"").append(9_780_000_000_000L + i).append('"');
+            line.append(",\"publisher\":").append(Json.quote(vocabulary[random.nextInt(vocabulary.length)] + " Press"));
+            line.append(",\"copyrightYear\":\"").append(1900 + random.nextInt(125)).append('"');
+            // Authors are named after their number, so books share them
+            int author = random.nextInt(authors);
+            line.append(",\"authors\":[").append(Json.quote(vocabulary[author % vocabulary.length] + " "
+                    + vocabulary[(author * 31 + 7) % vocabulary.length])).append(']');
+            line.append(",\"genres\":[").append(Json.quote(SEED_GENRES[random.nextInt(SEED_GENRES.length)])).append(']');
+            line.append(",\"keywords\":[").append(Json.quote(vocabulary[random.nextInt(vocabulary.length)].toLowerCase(Locale.ROOT)))
+                    .append(',').append(Json.quote(vocabulary[random.nextInt(vocabulary.length)].toLowerCase(Locale.ROOT))).append(']');
+            line.append(",\"copies\":[");
+            int copies = 1 + random.nextInt(4);
+            for (int c = 0; c < copies; c++) {
+                line.append(c > 0 ? "," : "").append(Json.quote(SEED_CONDITIONS[random.nextInt(SEED_CONDITIONS.length)]));
+            }
+            line.append("]}");
+            writer.write(line.toString());
+            writer.newLine();
+        }
+    }
+}
+
+// Method to run the workload and print its report, returns false if there was nothing to run it against
+public boolean run() {
+    if (!prepare()) {
+        return false;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+    for (int i = 0; i < workers; i++) {
+        long workerSeed = SEED + i;
+        executor.execute(() -> {
+            Session session = new Session(userType, -1, new Scanner(""), new PrintStream(OutputStream.nullOutputStream()));
+            session.interactive = false;
+            try {
+                work(new Random(workerSeed), start, end, command -> {
+                    session.lastError = null;
+                    if (App.runCommand(session, command)) {
+                        return OK;
+                    }
+                    return session.lastError != null && session.lastError.getErrorCode() == DEADLOCK_ERROR ? DEADLOCKED : FAILED;
+                });
+            } catch (IOException e) {
+                // Sessions in this process don't do any I/O of their own
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+    finish(executor, start);
+    return true;
+}
+
+// Method to run the load test through a session server on a free loopback port, with one client connection per worker
+public boolean runThroughServer() {
+    if (!prepare()) {
+        return false;
+    }
+    SessionServer server;
+    try {
+        server = new SessionServer(0, userType);
+    } catch (IOException e) {
+        System.out.println(e.getMessage());
+        return false;
+    }
+    try (server) {
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }, "session-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        // The clients run on the same kind of threads as the server's sessions, so hundreds of them are cheap
+        ExecutorService executor = SessionServer.newSessionExecutor();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        AtomicLong disconnected = new AtomicLong();
+        for (int i = 0; i < workers; i++) {
+            long workerSeed = SEED + i;
+            executor.execute(() -> {
+                try (ServerClient client = new ServerClient(server.getPort())) {
+                    work(new Random(workerSeed), start, end, client::run);
+                } catch (IOException e) {
+                    disconnected.incrementAndGet();
+                }
+            });
+        }
+        finish(executor, start);
+        System.out.println(server.getStats());
+        if (disconnected.get() > 0) {
+            System.out.println(disconnected.get() + " clients couldn't connect or lost their connection");
+        }
+        return disconnected.get() == 0;
+    } catch (IOException e) {
+        System.out.println(e.getMessage());
+        return false;
+    }
+}
+
+// A desk connected to the session server, it reads the session's output up to each prompt
+private static final class ServerClient implements AutoCloseable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    ServerClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        readToPrompt();
+    }
+
+    int run(String command) throws IOException {
+        out.println(command);
+        return readToPrompt();
+    }
+
+    // Method to read the session's output up to its next command prompt, returns how the command before it went
+    private int readToPrompt() throws IOException {
+        boolean failed = false;
+        boolean deadlocked = false;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(App.COMMAND_PROMPT)) {
+                return deadlocked ? DEADLOCKED : failed ? FAILED : OK;
+            }
+            if (line.equals(App.FAILED_COMMAND_MESSAGE)) {
+                failed = true;
+            } else if (line.contains("deadlock victim")) {
+                // SQL Server's message for error 1205, the client only sees the text the session printed
+                deadlocked = true;
+            }
+        }
+        throw new EOFException("The session server closed the connection");
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.println("exit");
+        socket.close();
+    }
+}
+
+// Method to check the login and read the IDs the commands use, returns false if the load test can't run
+private boolean prepare() {
+    if (userType == App.USER_TYPE.MEMBER) {
+        System.out.println("The load test runs staff commands, please log in as an employee or curator.");
+        return false;
+    }
+    try {
+        loadIDs();
+    } catch (SQLException e) {
+        System.out.println(e.getMessage());
+        return false;
+    }
+    if (bookIDs.length == 0 || copyIDs.length == 0 || memberIDs.length == 0) {
+        System.out.println("The load test needs books, copies and members in the database, seed them with --seed-books and --seed-members.");
+        return false;
+    }
+    System.out.printf("Running %s for %d s with %d workers%s: %s%n", rate > 0 ? "open loop" : "closed loop", durationSeconds,
+            workers, rate > 0 ? String.format(" at %.0f commands/s", rate) : "", mix);
+    return true;
+}
+
+// Method to wait for the workers to run out of time and print the results
+private void finish(ExecutorService executor, long start) {
+    executor.shutdown();
+    try {
+        // Commands that are running when the time is up are allowed to finish
+        executor.awaitTermination(durationSeconds + 60L, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+    }
+    report((System.nanoTime() - start) / 1e9);
+}
+
+// Method to read the IDs commands are run against, and words from titles to search for
+private void loadIDs() throws SQLException {
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        bookIDs = readIDs(work, "SELECT bookID FROM book");
+        copyIDs = readIDs(work, "SELECT copyID FROM copy");
+        memberIDs = readIDs(work, "SELECT memberID FROM member");
+        List<String> words = new ArrayList<>();
+        PreparedStatement titles = work.prepareStatement("SELECT TOP (?) title FROM book ORDER BY bookID DESC");
+        titles.setInt(1, SEARCH_WORD_SAMPLE);
+        try (ResultSet resultSet = titles.executeQuery()) {
+            while (resultSet.next()) {
+                for (String word : resultSet.getString(1).split(" ")) {
+                    if (word.length() >= 3) {
+                        words.add(word);
+                    }
+                }
+            }
+        }
+        searchWords = words.isEmpty() ? new String[] {"the"} : words.toArray(new String[0]);
+        work.commit();
+    }
+}
+
+private static int[] readIDs(UnitOfWork work, String query) throws SQLException {
+    PreparedStatement statement = work.prepareStatement(query);
+    statement.setFetchSize(10_000);
+    int[] ids = new int[1024];
+    int count = 0;
+    try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = resultSet.getInt(1);
+        }
+    }
+    return Arrays.copyOf(ids, count);
+}
+
+// One worker's loop, it runs commands on its own desk until the time is up
+private void work(Random random, long start, long end, Desk desk) throws IOException {
+    // Each worker takes an equal share of the arrival rate, with exponentially distributed gaps between arrivals
+    double meanGapNanos = rate > 0 ? workers * 1e9 / rate : 0;
+    long due = start;
+    while (true) {
+        if (rate > 0) {
+            due += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        long began = System.nanoTime();
+        if (began >= end || (rate > 0 && due >= end)) {
+            return;
+        }
+        String name = pickOperation(random);
+        int result = desk.run(command(name, random));
+        long finished = System.nanoTime();
+        Operation operation = operations.get(name);
+        operation.latency.record(finished - (rate > 0 ? due : began));
+        if (result != OK) {
+            operation.errors.incrementAndGet();
+            if (result == DEADLOCKED) {
+                operation.deadlocks.incrementAndGet();
+            }
+        }
+    }
+}
+
+private String pickOperation(Random random) {
+    int pick = random.nextInt(totalWeight);
+    for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+        pick -= entry.getValue();
+        if (pick < 0) {
+            return entry.getKey();
+        }
+    }
+    throw new IllegalStateException();
+}
+
+// Method to build the staff console command line for an operation
+private String command(String operation, Random random) {
+    String member = Integer.toString(memberIDs[random.nextInt(memberIDs.length)]);
+    switch (operation) {
+        case "search":
+            return "2 " + searchWords[random.nextInt(searchWords.length)];
+        case "details":
+            return "1 " + popular(bookIDs, random);
+        case "checkout":
+            return "9 " + popular(bookIDs, random) + " " + member;
+        case "hold":
+            return "7 " + popular(bookIDs, random) + " " + member;
+        case "return":
+            // Most copies aren't out, so many returns find nothing to return, which still costs the same round trip
+            return "11 " + copyIDs[random.nextInt(copyIDs.length)] + " " + member;
+        case "loans":
+            return "16 " + member;
+        default:
+            throw new IllegalArgumentException(operation);
+    }
+}
+
+// Method to pick an ID, skewed towards the start of the array so a few books are much more popular than the rest
+private static int popular(int[] ids, Random random) {
+    return ids[(int) (ids.length * Math.pow(random.nextDouble(), POPULARITY_SKEW))];
+}
+
+private void report(double seconds) {
+    System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %10s%n",
+            "operation", "commands", "per s", "p50 ms", "p95 ms", "p99 ms", "errors", "deadlocks");
+    LatencyHistogram all = new LatencyHistogram();
+    long errors = 0;
+    long deadlocks = 0;
+    for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+        Operation operation = entry.getValue();
+        printRow(entry.getKey(), operation.latency, seconds, operation.errors.get(), operation.deadlocks.get());
+        all.add(operation.latency);
+        errors += operation.errors.get();
+        deadlocks += operation.deadlocks.get();
+    }
+    printRow("total", all, seconds, errors, deadlocks);
+    System.out.println(pool.getStats());
+}
+
+private static void printRow(String name, LatencyHistogram latency, double seconds, long errors, long deadlocks) {
+    System.out.printf("%-10s %10d %10.1f %10.2f %10.2f %10.2f %10d %10d%n", name, latency.count(), latency.count() / seconds,
+            latency.percentileNanos(0.50) / 1e6, latency.percentileNanos(0.95) / 1e6, latency.percentileNanos(0.99) / 1e6,
+            errors, deadlocks);
+}
+
+// Method to run many holds and returns of one book at once and check the hold queue stayed consistent
+// Returns true if every check passed. Adds a book with a few copies for the test, which is left in the catalog
+public static boolean holdTest(ConnectionPool pool, App.USER_TYPE userType, int workers, int durationSeconds) {
+    if (userType == App.USER_TYPE.MEMBER) {
+        System.out.println("The hold test runs staff commands, please log in as an employee or curator.");
+        return false;
+    }
+    int bookID;
+    int[] copyIDs = new int[HOLD_TEST_COPIES];
+    int[] memberIDs;
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        memberIDs = readIDs(work, "SELECT TOP (" + workers * HOLD_TEST_MEMBERS_PER_WORKER + ") memberID FROM member ORDER BY memberID");
+        bookID = addTestBook(work, "Hold queue test", copyIDs);
+        work.commit();
+    } catch (SQLException e) {
+        System.out.println(e.getMessage());
+        return false;
+    }
+    if (memberIDs.length < workers * HOLD_TEST_MEMBERS_PER_WORKER) {
+        System.out.println("The hold test needs " + workers * HOLD_TEST_MEMBERS_PER_WORKER + " members, seed them with --seed-members.");
+        return false;
+    }
+    System.out.printf("Holding and returning book %d (%d copies) from %d workers for %d members for %d s%n", bookID,
+            HOLD_TEST_COPIES, workers, memberIDs.length, durationSeconds);
+
+    Operation holds = new Operation();
+    Operation returns = new Operation();
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    for (int w = 0; w < workers; w++) {
+        int worker = w;
+        executor.execute(() -> {
+            Random random = new Random(SEED + worker);
+            Session session = new Session(userType, -1, new Scanner(""), new PrintStream(OutputStream.nullOutputStream()));
+            session.interactive = false;
+            while (System.nanoTime() < end) {
+                // Holds for members who already have a copy or are waiting fail by design and aren't counted as errors
+                int member = memberIDs[worker * HOLD_TEST_MEMBERS_PER_WORKER + random.nextInt(HOLD_TEST_MEMBERS_PER_WORKER)];
+                boolean hold = random.nextBoolean();
+                String command = hold ? "7 " + bookID + " " + member : "11 " + copyIDs[random.nextInt(copyIDs.length)] + " " + member;
+                Operation operation = hold ? holds : returns;
+                session.lastError = null;
+                long began = System.nanoTime();
+                boolean ok = App.runCommand(session, command);
+                operation.latency.record(System.nanoTime() - began);
+                if (!ok && session.lastError != null && session.lastError.getErrorCode() != ALREADY_QUEUED) {
+                    operation.errors.incrementAndGet();
+                    if (session.lastError.getErrorCode() == DEADLOCK_ERROR) {
+                        operation.deadlocks.incrementAndGet();
+                    }
+                }
+            }
+        });
+    }
+    executor.shutdown();
+    try {
+        executor.awaitTermination(durationSeconds + 60L, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %10s%n",
+            "operation", "commands", "per s", "p50 ms", "p95 ms", "p99 ms", "errors", "deadlocks");
+    printRow("hold", holds.latency, seconds, holds.errors.get(), holds.deadlocks.get());
+    printRow("return", returns.latency, seconds, returns.errors.get(), returns.deadlocks.get());
+
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        int failures = checkHoldQueue(work, bookID);
+        failures += drainHoldQueue(work, bookID, copyIDs);
+        work.commit();
+        System.out.println(failures == 0 ? "Hold queue checks passed." : failures + " hold queue checks failed.");
+        return failures == 0 && holds.errors.get() == 0 && returns.errors.get() == 0;
+    } catch (SQLException e) {
+        System.out.println(e.getMessage());
+        return false;
+    }
+}
+
+// Method to add a book with copyIDs.length copies for a test, fill in the copy IDs and return the book ID
+private static int addTestBook(UnitOfWork work, String title, int[] copyIDs) throws SQLException {
+    CallableStatement addBook = work.prepareCall("addBook", 7);
+    String[] book = {title + " " + LocalDate.now(), "", "1", "", "", Integer.toString(LocalDate.now().getYear())};
+    for (int i = 0; i < book.length; i++) {
+        addBook.setString(i + 1, book[i]);
+    }
+    addBook.registerOutParameter(7, Types.INTEGER);
+    addBook.execute();
+    int bookID = addBook.getInt(7);
+    for (int i = 0; i < copyIDs.length; i++) {
+        CallableStatement addCopy = work.prepareCall("addCopy", 2);
+        addCopy.setInt(1, bookID);
+        addCopy.setString(2, "good");
+        addCopy.execute();
+    }
+    PreparedStatement copies = work.prepareStatement("SELECT copyID FROM copy WHERE bookID = ? ORDER BY copyID");
+    copies.setInt(1, bookID);
+    try (ResultSet resultSet = copies.executeQuery()) {
+        for (int i = 0; i < copyIDs.length && resultSet.next(); i++) {
+            copyIDs[i] = resultSet.getInt(1);
+        }
+    }
+    return bookID;
+}
+
+// Method to check out copies of one book for many members from many workers at once and check no copy went out twice
+// Returns true if every check passed. Adds a book with the given number of copies for the test, its loans are returned
+// at the end and the book is left in the catalog
+public static boolean checkoutTest(ConnectionPool pool, App.USER_TYPE userType, int workers, int copies) {
+    if (userType == App.USER_TYPE.MEMBER) {
+        System.out.println("The checkout test runs staff commands, please log in as an employee or curator.");
+        return false;
+    }
+    int bookID;
+    int[] copyIDs = new int[copies];
+    int[] memberIDs;
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        memberIDs = readIDs(work, "SELECT TOP (" + copies * CHECKOUT_TEST_MEMBERS_PER_COPY + ") memberID FROM member ORDER BY memberID");
+        bookID = addTestBook(work, "Checkout contention test", copyIDs);
+        work.commit();
+    } catch (SQLException e) {
+        System.out.println(e.getMessage());
+        return false;
+    }
+    if (memberIDs.length < copies * CHECKOUT_TEST_MEMBERS_PER_COPY) {
+        System.out.println("The checkout test needs " + copies * CHECKOUT_TEST_MEMBERS_PER_COPY + " members, seed them with --seed-members.");
+        return false;
+    }
+    System.out.printf("Checking out book %d (%d copies) from %d workers for %d members%n", bookID, copies, workers, memberIDs.length);
+
+    // Every member tries once, workers take the next member until none are left
+    AtomicLong nextMember = new AtomicLong();
+    AtomicLong checkouts = new AtomicLong();
+    AtomicLong noCopy = new AtomicLong();
+    AtomicLong duplicates = new AtomicLong();
+    Operation operation = new Operation();
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    for (int w = 0; w < workers; w++) {
+        executor.execute(() -> {
+            Session session = new Session(userType, -1, new Scanner(""), new PrintStream(OutputStream.nullOutputStream()));
+            session.interactive = false;
+            for (long m = nextMember.getAndIncrement(); m < memberIDs.length; m = nextMember.getAndIncrement()) {
+                session.lastError = null;
+                long began = System.nanoTime();
+                boolean ok = App.runCommand(session, "9 " + bookID + " " + memberIDs[(int) m]);
+                operation.latency.record(System.nanoTime() - began);
+                int errorCode = session.lastError == null ? 0 : session.lastError.getErrorCode();
+                if (ok) {
+                    checkouts.incrementAndGet();
+                } else if (errorCode == NO_COPY_AVAILABLE) {
+                    // Every copy is out or locked by another desk, which is how a checkout is meant to lose a race
+                    noCopy.incrementAndGet();
+                } else {
+                    operation.errors.incrementAndGet();
+                    if (errorCode == DUPLICATE_KEY_ERROR || errorCode == UNIQUE_CONSTRAINT_ERROR) {
+                        duplicates.incrementAndGet();
+                    } else if (errorCode == DEADLOCK_ERROR) {
+                        operation.deadlocks.incrementAndGet();
+                    }
+                }
+            }
+        });
+    }
+    executor.shutdown();
+    try {
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %10s%n",
+            "operation", "commands", "per s", "p50 ms", "p95 ms", "p99 ms", "errors", "deadlocks");
+    printRow("checkout", operation.latency, seconds, operation.errors.get(), operation.deadlocks.get());
+    System.out.println(checkouts.get() + " checkouts, " + noCopy.get() + " found no copy free");
+
+    int failures = 0;
+    if (duplicates.get() > 0) {
+        System.out.println("FAILED: " + duplicates.get() + " checkouts picked a copy that was already out and hit UX_memberCopy_copy");
+        failures++;
+    }
+    if (checkouts.get() > copies) {
+        System.out.println("FAILED: " + checkouts.get() + " checkouts succeeded for " + copies + " copies");
+        failures++;
+    }
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        failures += checkLoans(work, bookID, checkouts.get());
+        returnLoans(work, bookID);
+        work.commit();
+    } catch (SQLException e) {
+        System.out.println(e.getMessage());
+        return false;
+    }
+    System.out.println(failures == 0 ? "Checkout checks passed." : failures + " checkout checks failed.");
+    return failures == 0 && operation.errors.get() == 0;
+}
+
+// Method to check that every successful checkout has its own copy of the book
+private static int checkLoans(UnitOfWork work, int bookID, long checkouts) throws SQLException {
+    int failures = 0;
+    PreparedStatement loans = work.prepareStatement("SELECT COUNT(*), COUNT(DISTINCT mc.copyID) FROM memberCopy mc"
+            + " JOIN copy c ON c.copyID = mc.copyID WHERE c.bookID = ?");
+    loans.setInt(1, bookID);
+    try (ResultSet resultSet = loans.executeQuery()) {
+        resultSet.next();
+        int rows = resultSet.getInt(1);
+        int distinctCopies = resultSet.getInt(2);
+        if (rows != distinctCopies) {
+            System.out.println("FAILED: " + (rows - distinctCopies) + " copies are out to more than one member");
+            failures++;
+        }
+        if (rows != checkouts) {
+            System.out.println("FAILED: " + checkouts + " checkouts succeeded but " + rows + " copies are out");
+            failures++;
+        }
+    }
+    return failures;
+}
+
+// Method to return every copy the test checked out, so its members' loans don't pile up between runs
+private static void returnLoans(UnitOfWork work, int bookID) throws SQLException {
+    int[] loanedCopyIDs = readIDs(work, "SELECT mc.copyID FROM memberCopy mc JOIN copy c ON c.copyID = mc.copyID WHERE c.bookID = " + bookID);
+    for (int copyID : loanedCopyIDs) {
+        CallableStatement returnCopy = work.prepareCall("returnCopy", 2);
+        returnCopy.setInt(1, copyID);
+        returnCopy.registerOutParameter(2, Types.INTEGER);
+        returnCopy.execute();
+    }
+}
+
+// Method to check that no copy of the book sits free while members wait for it, and nobody waiting holds a copy
+private static int checkHoldQueue(UnitOfWork work, int bookID) throws SQLException {
+    int failures = 0;
+    PreparedStatement state = work.prepareStatement("SELECT"
+            + " (SELECT COUNT(*) FROM copy c WHERE c.bookID = ? AND NOT EXISTS (SELECT 1 FROM memberCopy mc WHERE mc.copyID = c.copyID)),"
+            + " (SELECT COUNT(*) FROM holdQueue WHERE bookID = ?),"
+            + " (SELECT COUNT(*) FROM holdQueue q JOIN memberCopy mc ON mc.memberID = q.memberID JOIN copy c ON c.copyID = mc.copyID"
+            + " WHERE q.bookID = ? AND c.bookID = ?)");
+    for (int i = 1; i <= 4; i++) {
+        state.setInt(i, bookID);
+    }
+    try (ResultSet resultSet = state.executeQuery()) {
+        resultSet.next();
+        int freeCopies = resultSet.getInt(1);
+        int waiting = resultSet.getInt(2);
+        int waitingWithCopy = resultSet.getInt(3);
+        System.out.println(waiting + " members waiting, " + freeCopies + " copies free at the end");
+        if (freeCopies > 0 && waiting > 0) {
+            System.out.println("FAILED: " + freeCopies + " copies are free while " + waiting + " members wait for the book");
+            failures++;
+        }
+        if (waitingWithCopy > 0) {
+            System.out.println("FAILED: " + waitingWithCopy + " members wait for the book while holding a copy of it");
+            failures++;
+        }
+    }
+    return failures;
+}
+
+// Method to return copies one at a time until nobody waits for the book, checking each goes to the head of the queue
+private static int drainHoldQueue(UnitOfWork work, int bookID, int[] copyIDs) throws SQLException {
+    PreparedStatement queue = work.prepareStatement("SELECT memberID FROM holdQueue WHERE bookID = ? ORDER BY queueID");
+    queue.setInt(1, bookID);
+    int[] waiting;
+    try (ResultSet resultSet = queue.executeQuery()) {
+        List<Integer> members = new ArrayList<>();
+        while (resultSet.next()) {
+            members.add(resultSet.getInt(1));
+        }
+        waiting = members.stream().mapToInt(Integer::intValue).toArray();
+    }
+    int failures = 0;
+    for (int i = 0; i < waiting.length; i++) {
+        CallableStatement returnCopy = work.prepareCall("returnCopy", 2);
+        returnCopy.setInt(1, copyIDs[i % copyIDs.length]);
+        returnCopy.registerOutParameter(2, Types.INTEGER);
+        returnCopy.execute();
+        if (returnCopy.getInt(2) != waiting[i]) {
+            System.out.println("FAILED: a returned copy went to member " + returnCopy.getInt(2) + " instead of " + waiting[i]
+                    + ", who had waited longest");
+            failures++;
+        }
+    }
+    return failures;
+}
+}
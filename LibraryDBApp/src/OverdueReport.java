@@ -0,0 +1,104 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Writes every overdue loan in the library to a CSV file in one pass over the getOverdueLoans procedure
+// Loans are fetched in chunks, each in its own short transaction, so only one chunk is in memory at a time and
+// no locks are held between chunks however many loans there are. The report is written next to the target file and
+// moved over it once it is complete, so the previous report stays readable while a new one is written.
+public class OverdueReport {
+public static final int CHUNK_SIZE = 5000;
+public static final LocalTime DEFAULT_RUN_TIME = LocalTime.of(2, 0);
+static final List<String> COLUMNS = List.of("memberID", "memFirstName", "memLastName", "copyID", "bookID", "title",
+        "createdDate", "expiryDate", "daysOverdue");
+
+private final ConnectionPool pool;
+
+public OverdueReport(ConnectionPool pool) {
+    this.pool = pool;
+}
+
+// Method to write the report, returns the number of overdue loans or -1 if it failed
+public long write(Path file) {
+    long start = System.nanoTime();
+    Path partial = file.resolveSibling(file.getFileName() + ".partial");
+    long loans = 0;
+    try (BufferedWriter out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+        out.write(String.join(",", COLUMNS));
+        out.newLine();
+        // The (expiryDate, memberID, copyID) of the last loan written, the next chunk starts after it
+        String[] after = {"19000101", "0", "0"};
+        int rows;
+        do {
+            rows = 0;
+            try (UnitOfWork work = new UnitOfWork(pool)) {
+                CallableStatement statement = work.prepareCall("getOverdueLoans", 4);
+                statement.setString(1, after[0]);
+                statement.setString(2, after[1]);
+                statement.setString(3, after[2]);
+                statement.setInt(4, CHUNK_SIZE);
+                statement.setFetchSize(CHUNK_SIZE);
+                StringBuilder line = new StringBuilder(128);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        line.setLength(0);
+                        for (int c = 1; c <= COLUMNS.size(); c++) {
+                            if (c > 1) {
+                                line.append(',');
+                            }
+                            ResultRenderer.csvField(line, resultSet.getString(c));
+                        }
+                        out.write(line.toString());
+                        out.newLine();
+                        after[0] = resultSet.getString("expiryDate");
+                        after[1] = resultSet.getString("memberID");
+                        after[2] = resultSet.getString("copyID");
+                        rows++;
+                    }
+                }
+                work.commit();
+            }
+            loans += rows;
+        } while (rows == CHUNK_SIZE);
+    } catch (IOException | SQLException e) {
+        System.out.println("Overdue report failed: " + e.getMessage());
+        return -1;
+    }
+    try {
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+        System.out.println("Overdue report failed: " + e.getMessage());
+        return -1;
+    }
+    System.out.printf("Overdue report: %,d overdue loans written to %s in %.1f s%n", loans, file, (System.nanoTime() - start) / 1e9);
+    return loans;
+}
+
+// Method to write the report every day at the given time, on a background thread that stops when the app exits
+public void scheduleDaily(Path file, LocalTime at) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "overdue-report");
+        thread.setDaemon(true);
+        return thread;
+    });
+    LocalDateTime now = LocalDateTime.now();
+    LocalDateTime next = now.toLocalDate().atTime(at);
+    if (!next.isAfter(now)) {
+        next = next.plusDays(1);
+    }
+    scheduler.scheduleAtFixedRate(() -> write(file), Duration.between(now, next).toMillis(), TimeUnit.DAYS.toMillis(1),
+            TimeUnit.MILLISECONDS);
+    System.out.println("Overdue report will be written to " + file + " every day at " + at);
+}
+}
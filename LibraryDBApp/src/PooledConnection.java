@@ -0,0 +1,84 @@
+import java.sql.*;
+
+// A connection borrowed from a ConnectionPool, closing it hands it back to the pool instead of disconnecting
+public class PooledConnection implements AutoCloseable {
+private final ConnectionPool pool;
+private final Connection connection;
+// Statements prepared on this connection, reused across borrows
+private final StatementCache statements;
+private volatile long lastUsedMillis = System.currentTimeMillis();
+private boolean borrowed = false;
+
+PooledConnection(ConnectionPool pool, Connection connection) {
+    this.pool = pool;
+    this.connection = connection;
+    this.statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY);
+}
+
+// The underlying JDBC connection, only valid while this connection is borrowed
+public Connection physical() {
+    return connection;
+}
+
+// Cached statements are owned by the connection, callers must not close them
+public CallableStatement prepareCall(String procedureName, int parameterCount) throws SQLException {
+    return statements.prepareCall(procedureName, parameterCount);
+}
+
+public PreparedStatement prepareStatement(String sql) throws SQLException {
+    return statements.prepareStatement(sql);
+}
+
+public void setAutoCommit(boolean autoCommit) throws SQLException {
+    connection.setAutoCommit(autoCommit);
+}
+
+public void commit() throws SQLException {
+    connection.commit();
+}
+
+public void rollback() throws SQLException {
+    connection.rollback();
+}
+
+// Method to close the cached statements, called by the pool before it closes the connection itself
+void closeStatements() {
+    statements.clear();
+}
+
+long lastUsedMillis() {
+    return lastUsedMillis;
+}
+
+synchronized void markBorrowed() {
+    borrowed = true;
+}
+
+synchronized void markReleased() {
+    borrowed = false;
+    lastUsedMillis = System.currentTimeMillis();
+}
+
+// Method to close the physical connection and hand back its slot, for a connection left in a state the next
+// borrower mustn't get (e.g. a session setting that couldn't be undone)
+public void discard() {
+    try {
+        connection.close();
+    } catch (SQLException e) {
+        // It is being thrown away anyway
+    }
+    close();
+}
+
+// Return this connection to the pool, closing twice is a no-op
+@Override
+public void close() {
+    synchronized (this) {
+        if (!borrowed) {
+            return;
+        }
+        borrowed = false;
+    }
+    pool.release(this);
+}
+}
@@ -0,0 +1,351 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory prefix index for autocompletion, case-insensitive like the database collation
+// Every word of an entry's text can start a completion ("hob" completes "The Hobbit"). The index is one sorted array
+// of longs, each packing an entry ID and the offset of a word in its text, so the only memory per word is 8 bytes on
+// top of the texts themselves, and a lookup is a binary search followed by a scan of the matching run.
+//
+// Entries added after the array was built go into a small sorted list that is searched alongside it, and the array
+// is rebuilt once that list grows past 1% of it. Entries whose text changed since the build are skipped in the array.
+public class PrefixIndex {
+private static final int LOAD_FETCH_SIZE = 10_000;
+private static final int MIN_PENDING = 1000;
+// Entry IDs are packed above the word offset, texts can be up to 65535 characters long
+private static final int OFFSET_BITS = 16;
+private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+private final String name;
+// Text of each entry indexed by its ID, null for IDs with no entry
+private String[] texts = new String[1024];
+// Texts as they were when entries was built, an entry in it is stale once its text has been replaced
+private String[] built = new String[0];
+private long[] entries = new long[0];
+// Words of entries added since the build, sorted like entries
+private final List<Word> pending = new ArrayList<>();
+private int entryCount = 0;
+private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+// A word added since the last build, with the text it was added with
+private static final class Word {
+    final int id;
+    final int offset;
+    final String text;
+
+    Word(int id, int offset, String text) {
+        this.id = id;
+        this.offset = offset;
+        this.text = text;
+    }
+}
+
+// A completion, the ID and full text of an entry with a word starting with the prefix
+public static final class Completion {
+    public final int id;
+    public final String text;
+
+    Completion(int id, String text) {
+        this.id = id;
+        this.text = text;
+    }
+}
+
+public PrefixIndex(String name) {
+    this.name = name;
+}
+
+// Method to build an index by streaming a query whose first column is the ID and remaining columns are the text,
+// e.g. first and last name, which are joined with spaces so a prefix can run on from one into the next
+public static PrefixIndex load(String name, UnitOfWork work, String query) throws SQLException {
+    PrefixIndex index = new PrefixIndex(name);
+    PreparedStatement statement = work.prepareStatement(query);
+    statement.setFetchSize(LOAD_FETCH_SIZE);
+    try (ResultSet resultSet = statement.executeQuery()) {
+        int fieldCount = resultSet.getMetaData().getColumnCount() - 1;
+        String[] fields = new String[fieldCount];
+        while (resultSet.next()) {
+            for (int i = 0; i < fieldCount; i++) {
+                fields[i] = resultSet.getString(i + 2);
+            }
+            index.set(resultSet.getInt(1), join(fields));
+        }
+    }
+    index.build();
+    return index;
+}
+
+private static String join(String... fields) {
+    StringBuilder text = new StringBuilder();
+    for (String field : fields) {
+        if (field != null && !field.isBlank()) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(field.trim());
+        }
+    }
+    return text.toString();
+}
+
+// Method to store an entry's text without indexing it, build then indexes everything at once
+void set(int id, String text) {
+    if (id >= texts.length) {
+        texts = Arrays.copyOf(texts, Math.max(id + 1, texts.length * 2));
+    }
+    if (texts[id] == null) {
+        entryCount++;
+    }
+    texts[id] = text.length() > OFFSET_MASK ? text.substring(0, (int) OFFSET_MASK) : text;
+}
+
+// Method to add or replace the text of an entry
+public void put(int id, String... fields) {
+    lock.writeLock().lock();
+    try {
+        set(id, join(fields));
+        String text = texts[id];
+        for (int offset = 0; offset < text.length(); offset++) {
+            if (isWordStart(text, offset)) {
+                Word word = new Word(id, offset, text);
+                int at = insertionPoint(word);
+                pending.add(at, word);
+            }
+        }
+        if (pending.size() > Math.max(MIN_PENDING, entries.length / 100)) {
+            rebuild();
+        }
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+
+// Method to index every stored text, much faster than putting entries one at a time when loading
+void build() {
+    lock.writeLock().lock();
+    try {
+        rebuild();
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+
+// Method to remove an entry from the index
+public void remove(int id) {
+    lock.writeLock().lock();
+    try {
+        if (id < texts.length && texts[id] != null) {
+            texts[id] = null;
+            entryCount--;
+        }
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+
+// A word starts at a letter or digit that doesn't follow another one
+private static boolean isWordStart(String text, int offset) {
+    return Character.isLetterOrDigit(text.charAt(offset)) && (offset == 0 || !Character.isLetterOrDigit(text.charAt(offset - 1)));
+}
+
+private int insertionPoint(Word word) {
+    int low = 0;
+    int high = pending.size();
+    while (low < high) {
+        int middle = (low + high) >>> 1;
+        Word other = pending.get(middle);
+        if (compare(other.text, other.offset, other.id, word.text, word.offset, word.id) < 0) {
+            low = middle + 1;
+        } else {
+            high = middle;
+        }
+    }
+    return low;
+}
+
+// Method to index every word of every current entry in one sorted array, called with the write lock held
+private void rebuild() {
+    built = texts.clone();
+    int words = 0;
+    for (String text : built) {
+        if (text != null) {
+            for (int offset = 0; offset < text.length(); offset++) {
+                if (isWordStart(text, offset)) {
+                    words++;
+                }
+            }
+        }
+    }
+    long[] packed = new long[words];
+    int count = 0;
+    for (int id = 0; id < built.length; id++) {
+        String text = built[id];
+        if (text != null) {
+            for (int offset = 0; offset < text.length(); offset++) {
+                if (isWordStart(text, offset)) {
+                    packed[count++] = ((long) id << OFFSET_BITS) | offset;
+                }
+            }
+        }
+    }
+    sort(packed, new long[packed.length], 0, packed.length);
+    entries = packed;
+    pending.clear();
+}
+
+// Merge sort, there is no sort for primitive arrays that takes a comparator
+private void sort(long[] values, long[] scratch, int from, int to) {
+    if (to - from < 2) {
+        return;
+    }
+    int middle = (from + to) >>> 1;
+    sort(values, scratch, from, middle);
+    sort(values, scratch, middle, to);
+    if (compareEntries(values[middle - 1], values[middle]) <= 0) {
+        return;
+    }
+    System.arraycopy(values, from, scratch, from, to - from);
+    int left = from;
+    int right = middle;
+    for (int i = from; i < to; i++) {
+        if (right >= to || (left < middle && compareEntries(scratch[left], scratch[right]) <= 0)) {
+            values[i] = scratch[left++];
+        } else {
+            values[i] = scratch[right++];
+        }
+    }
+}
+
+private int compareEntries(long a, long b) {
+    int aID = (int) (a >>> OFFSET_BITS);
+    int bID = (int) (b >>> OFFSET_BITS);
+    return compare(built[aID], (int) (a & OFFSET_MASK), aID, built[bID], (int) (b & OFFSET_MASK), bID);
+}
+
+// Method to compare the rest of two texts from their offsets ignoring case, then their IDs
+private static int compare(String a, int aOffset, int aID, String b, int bOffset, int bID) {
+    int length = Math.min(a.length() - aOffset, b.length() - bOffset);
+    for (int i = 0; i < length; i++) {
+        char aChar = Character.toLowerCase(a.charAt(aOffset + i));
+        char bChar = Character.toLowerCase(b.charAt(bOffset + i));
+        if (aChar != bChar) {
+            return aChar - bChar;
+        }
+    }
+    int lengths = (a.length() - aOffset) - (b.length() - bOffset);
+    return lengths != 0 ? lengths : Integer.compare(aID, bID);
+}
+
+// Method to compare the start of a text from an offset with a lower-cased prefix, 0 if the text starts with it
+private static int comparePrefix(String text, int offset, String prefix) {
+    int length = Math.min(text.length() - offset, prefix.length());
+    for (int i = 0; i < length; i++) {
+        char textChar = Character.toLowerCase(text.charAt(offset + i));
+        if (textChar != prefix.charAt(i)) {
+            return textChar - prefix.charAt(i);
+        }
+    }
+    return text.length() - offset >= prefix.length() ? 0 : -1;
+}
+
+// Method to find up to limit entries with a word starting with the prefix, in alphabetical order of the matching words
+public List<Completion> complete(String prefix, int limit) {
+    // Lower-cased a character at a time, the same way the texts are compared
+    StringBuilder lowering = new StringBuilder(prefix.trim());
+    for (int i = 0; i < lowering.length(); i++) {
+        lowering.setCharAt(i, Character.toLowerCase(lowering.charAt(i)));
+    }
+    String lowered = lowering.toString();
+    List<Completion> completions = new ArrayList<>();
+    if (lowered.isEmpty() || limit <= 0) {
+        return completions;
+    }
+    lock.readLock().lock();
+    try {
+        // The first entry whose word isn't before the prefix
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long entry = entries[middle];
+            if (comparePrefix(built[(int) (entry >>> OFFSET_BITS)], (int) (entry & OFFSET_MASK), lowered) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int next = pendingStart(lowered);
+        while (completions.size() < limit) {
+            // Take whichever of the array and the pending list has the next word in order, skipping stale entries
+            int id;
+            String text;
+            long entry = low < entries.length ? entries[low] : -1;
+            Word word = next < pending.size() ? pending.get(next) : null;
+            boolean entryMatches = entry >= 0
+                    && comparePrefix(built[(int) (entry >>> OFFSET_BITS)], (int) (entry & OFFSET_MASK), lowered) == 0;
+            boolean wordMatches = word != null && comparePrefix(word.text, word.offset, lowered) == 0;
+            if (!entryMatches && !wordMatches) {
+                break;
+            }
+            if (entryMatches && (!wordMatches || compare(built[(int) (entry >>> OFFSET_BITS)], (int) (entry & OFFSET_MASK),
+                    (int) (entry >>> OFFSET_BITS), word.text, word.offset, word.id) <= 0)) {
+                id = (int) (entry >>> OFFSET_BITS);
+                text = built[id];
+                low++;
+            } else {
+                id = word.id;
+                text = word.text;
+                next++;
+            }
+            // Skip words of texts replaced or removed since they were indexed
+            if (text != texts[id]) {
+                continue;
+            }
+            // A text can have several words starting with the prefix, it is only completed once
+            if (!contains(completions, id)) {
+                completions.add(new Completion(id, text));
+            }
+        }
+        return completions;
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+
+private static boolean contains(List<Completion> completions, int id) {
+    for (Completion completion : completions) {
+        if (completion.id == id) {
+            return true;
+        }
+    }
+    return false;
+}
+
+private int pendingStart(String prefix) {
+    int low = 0;
+    int high = pending.size();
+    while (low < high) {
+        int middle = (low + high) >>> 1;
+        Word word = pending.get(middle);
+        if (comparePrefix(word.text, word.offset, prefix) < 0) {
+            low = middle + 1;
+        } else {
+            high = middle;
+        }
+    }
+    return low;
+}
+
+public String getStats() {
+    lock.readLock().lock();
+    try {
+        return "Prefix index (" + name + "): " + entryCount + " entries, " + (entries.length + pending.size()) + " words, "
+                + String.format("%.1f MB", entries.length * 8 / 1e6) + " for the word array";
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+}
@@ -0,0 +1,335 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Streams result sets to the console in one of several formats
+// Column indexes are resolved once per result set from its metadata, rows are written through a large buffer,
+// and the buffer is flushed once the result set is done rather than once per field
+public class ResultRenderer {
+public enum Format {
+    RECORDS, // "Result 1:" followed by one "column: value" line per column, the original console layout
+    TABLE,   // One fixed-width line per row under a header
+    CSV,     // RFC 4180 CSV with a header row
+    JSON     // JSON Lines, one object per row
+}
+
+// Rows read into memory so they can be printed again later, e.g. from a cache
+// Only the requested columns are kept, columns the result set didn't have are printed as N/A
+public static final class Rows {
+    private final List<String> columns;
+    private final int[] indexes;
+    private final int[] widths;
+    private final int expiryIndex;
+    private final List<String[]> values;
+
+    private Rows(List<String> columns, int[] indexes, int[] widths, int expiryIndex, List<String[]> values) {
+        this.columns = columns;
+        this.indexes = indexes;
+        this.widths = widths;
+        this.expiryIndex = expiryIndex;
+        this.values = values;
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
+
+// Rows fetched from the server per round trip
+public static final int FETCH_SIZE = 500;
+private static final int BUFFER_SIZE = 1 << 16;
+private static final int MAX_TABLE_WIDTH = 30;
+// Loans and holds are flagged as overdue when this column is in the past
+private static final String EXPIRY_COLUMN = "expiryDate";
+private static final String LINE = "------------------------------";
+
+private final Writer out;
+private Format format = Format.RECORDS;
+// Row count and last row of the most recent result set, used for keyset pagination
+private int lastRowCount = 0;
+private List<String> lastColumns = List.of();
+private String[] lastValues = new String[0];
+
+public ResultRenderer(OutputStream stream) {
+    this(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+}
+
+public ResultRenderer(Writer writer) {
+    this.out = new BufferedWriter(writer, BUFFER_SIZE);
+}
+
+// Method to look up a format by name, returns null for unknown names
+public static Format parseFormat(String name) {
+    switch (name.trim().toLowerCase(Locale.ROOT)) {
+        case "records":
+            return Format.RECORDS;
+        case "table":
+            return Format.TABLE;
+        case "csv":
+            return Format.CSV;
+        case "json":
+        case "jsonl":
+            return Format.JSON;
+        default:
+            return null;
+    }
+}
+
+public Format getFormat() {
+    return format;
+}
+
+public void setFormat(Format format) {
+    this.format = format;
+}
+
+public int getLastRowCount() {
+    return lastRowCount;
+}
+
+// Method to get a column's value in the last row rendered, or null if there were no rows or no such column
+public String getLastValue(String column) {
+    if (lastRowCount == 0) {
+        return null;
+    }
+    int index = lastColumns.indexOf(column);
+    return index < 0 ? null : lastValues[index];
+}
+
+// Method to render every row of a result set, printing only the given columns (missing ones print as N/A)
+// Returns the number of rows rendered
+public int render(ResultSet resultSet, List<String> columns) throws SQLException {
+    ResultSetMetaData metaData = resultSet.getMetaData();
+    int[] indexes = resolveIndexes(metaData, columns);
+    int[] widths = columnWidths(metaData, columns, indexes);
+    int expiryIndex = expiryIndex(columns, indexes);
+    boolean flagOverdue = expiryIndex > 0;
+    // One date for the whole result set instead of one per row, loans are overdue once their expiry date has passed
+    Date today = Date.valueOf(LocalDate.now());
+    String[] values = new String[indexes.length];
+    int count = 0;
+    try {
+        writeHeader(columns, widths, flagOverdue);
+        while (resultSet.next()) {
+            for (int c = 0; c < indexes.length; c++) {
+                values[c] = indexes[c] > 0 ? resultSet.getString(indexes[c]) : null;
+            }
+            boolean overdue = false;
+            if (flagOverdue) {
+                Date expiryDate = resultSet.getDate(expiryIndex);
+                overdue = expiryDate != null && expiryDate.before(today);
+            }
+            count++;
+            writeRow(count, columns, indexes, widths, values, flagOverdue, overdue);
+        }
+        out.flush();
+    } catch (IOException e) {
+        throw new UncheckedIOException(e);
+    }
+    lastRowCount = count;
+    lastColumns = columns;
+    lastValues = values;
+    return count;
+}
+
+// Method to read every row of a result set into memory instead of printing it, to be printed later with render(Rows)
+public static Rows read(ResultSet resultSet, List<String> columns) throws SQLException {
+    ResultSetMetaData metaData = resultSet.getMetaData();
+    int[] indexes = resolveIndexes(metaData, columns);
+    List<String[]> values = new ArrayList<>();
+    while (resultSet.next()) {
+        String[] row = new String[indexes.length];
+        for (int c = 0; c < indexes.length; c++) {
+            row[c] = indexes[c] > 0 ? resultSet.getString(indexes[c]) : null;
+        }
+        values.add(row);
+    }
+    return new Rows(columns, indexes, columnWidths(metaData, columns, indexes), expiryIndex(columns, indexes), values);
+}
+
+// Method to print rows that were read earlier, returns the number of rows rendered
+public int render(Rows rows) {
+    boolean flagOverdue = rows.expiryIndex > 0;
+    int expiryColumn = rows.columns.indexOf(EXPIRY_COLUMN);
+    Date today = Date.valueOf(LocalDate.now());
+    int count = 0;
+    try {
+        writeHeader(rows.columns, rows.widths, flagOverdue);
+        for (String[] values : rows.values) {
+            boolean overdue = flagOverdue && values[expiryColumn] != null
+                    && Date.valueOf(values[expiryColumn]).before(today);
+            count++;
+            writeRow(count, rows.columns, rows.indexes, rows.widths, values, flagOverdue, overdue);
+        }
+        out.flush();
+    } catch (IOException e) {
+        throw new UncheckedIOException(e);
+    }
+    lastRowCount = count;
+    lastColumns = rows.columns;
+    lastValues = count == 0 ? new String[0] : rows.values.get(count - 1);
+    return count;
+}
+
+// Method to find the index of each column in the result set, 0 for columns it doesn't have
+private static int[] resolveIndexes(ResultSetMetaData metaData, List<String> columns) throws SQLException {
+    Map<String, Integer> indexByName = new HashMap<>();
+    for (int i = metaData.getColumnCount(); i >= 1; i--) { // Lowest index wins for duplicate names, like getString(name)
+        indexByName.put(metaData.getColumnLabel(i).toLowerCase(Locale.ROOT), i);
+    }
+    int[] indexes = new int[columns.size()];
+    for (int c = 0; c < indexes.length; c++) {
+        indexes[c] = indexByName.getOrDefault(columns.get(c).toLowerCase(Locale.ROOT), 0);
+    }
+    return indexes;
+}
+
+private static int[] columnWidths(ResultSetMetaData metaData, List<String> columns, int[] indexes) throws SQLException {
+    int[] widths = new int[indexes.length];
+    for (int c = 0; c < indexes.length; c++) {
+        int displaySize = indexes[c] > 0 ? metaData.getColumnDisplaySize(indexes[c]) : 3;
+        widths[c] = Math.max(columns.get(c).length(), Math.min(MAX_TABLE_WIDTH, displaySize));
+    }
+    return widths;
+}
+
+private static int expiryIndex(List<String> columns, int[] indexes) {
+    int c = columns.indexOf(EXPIRY_COLUMN);
+    return c < 0 ? 0 : indexes[c];
+}
+
+private void writeHeader(List<String> columns, int[] widths, boolean flagOverdue) throws IOException {
+    switch (format) {
+        case TABLE:
+            StringBuilder header = new StringBuilder();
+            StringBuilder rule = new StringBuilder();
+            for (int c = 0; c < widths.length; c++) {
+                if (c > 0) {
+                    header.append(" | ");
+                    rule.append("-+-");
+                }
+                pad(header, columns.get(c), widths[c]);
+                rule.append("-".repeat(widths[c]));
+            }
+            if (flagOverdue) {
+                header.append(" | overdue");
+                rule.append("-+--------");
+            }
+            out.write(header.append('\n').toString());
+            out.write(rule.append('\n').toString());
+            break;
+        case CSV:
+            StringBuilder csv = new StringBuilder();
+            for (int c = 0; c < widths.length; c++) {
+                if (c > 0) {
+                    csv.append(',');
+                }
+                csvField(csv, columns.get(c));
+            }
+            if (flagOverdue) {
+                csv.append(",overdue");
+            }
+            out.write(csv.append('\n').toString());
+            break;
+        default:
+            break;
+    }
+}
+
+private void writeRow(int count, List<String> columns, int[] indexes, int[] widths, String[] values,
+        boolean flagOverdue, boolean overdue) throws IOException {
+    StringBuilder row = new StringBuilder(128);
+    switch (format) {
+        case RECORDS:
+            row.append("Result ").append(count).append(":\n").append(LINE).append('\n');
+            for (int c = 0; c < values.length; c++) {
+                row.append(columns.get(c)).append(": ").append(indexes[c] > 0 ? values[c] : "N/A").append('\n');
+                if (overdue && indexes[c] > 0 && columns.get(c).equals(EXPIRY_COLUMN)) {
+                    row.append("(OVERDUE!)\n");
+                }
+            }
+            row.append(LINE).append('\n');
+            break;
+        case TABLE:
+            for (int c = 0; c < values.length; c++) {
+                if (c > 0) {
+                    row.append(" | ");
+                }
+                pad(row, indexes[c] > 0 ? String.valueOf(values[c]) : "N/A", widths[c]);
+            }
+            if (flagOverdue) {
+                row.append(overdue ? " | OVERDUE" : " |");
+            }
+            row.append('\n');
+            break;
+        case CSV:
+            for (int c = 0; c < values.length; c++) {
+                if (c > 0) {
+                    row.append(',');
+                }
+                csvField(row, values[c]);
+            }
+            if (flagOverdue) {
+                row.append(',').append(overdue);
+            }
+            row.append('\n');
+            break;
+        case JSON:
+            row.append('{');
+            for (int c = 0; c < values.length; c++) {
+                if (c > 0) {
+                    row.append(',');
+                }
+                Json.quote(row, columns.get(c));
+                row.append(':');
+                Json.quote(row, values[c]);
+            }
+            if (flagOverdue) {
+                row.append(",\"overdue\":").append(overdue);
+            }
+            row.append("}\n");
+            break;
+    }
+    out.write(row.toString());
+}
+
+// Pads or truncates a value to exactly the given width
+private static void pad(StringBuilder out, String value, int width) {
+    if (value.length() > width) {
+        out.append(value, 0, width - 1).append('~');
+        return;
+    }
+    out.append(value);
+    for (int i = value.length(); i < width; i++) {
+        out.append(' ');
+    }
+}
+
+// Quotes a CSV field when it contains a delimiter, quote or line break, nulls are written as empty fields
+static void csvField(StringBuilder out, String value) {
+    if (value == null) {
+        return;
+    }
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+        char c = value.charAt(i);
+        quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) {
+        out.append(value);
+        return;
+    }
+    out.append('"').append(value.replace("\"", "\"\"")).append('"');
+}
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+// Keyset pagination state for a search, so next/prev can fetch the pages around the current one
+// A page is identified by the key (bookID, memberID, ...) it starts after, which lets the database seek straight
+// to it instead of counting past every earlier row like OFFSET would
+public class SearchPage {
+public static final int DEFAULT_PAGE_SIZE = 50;
+
+private final String procedureName;
+private final String parameter;
+// IDs already matched in memory, in ascending order, or null when the procedure does the matching
+private final int[] ids;
+private final String keyColumn;
+private final List<String> columns;
+private final int pageSize;
+// Keys the earlier pages started after, most recent first
+private final ArrayDeque<Integer> previousStarts = new ArrayDeque<>();
+private int start = 0;
+private int nextStart = -1;
+private int pageNumber = 1;
+
+// Search paged by a procedure that takes (parameter, afterID, pageSize)
+public SearchPage(String procedureName, String parameter, String keyColumn, List<String> columns, int pageSize) {
+    this(procedureName, parameter, null, keyColumn, columns, pageSize);
+}
+
+// Search whose matching IDs are already known, each page is fetched by passing a slice of them to the procedure
+public SearchPage(String procedureName, int[] ids, String keyColumn, List<String> columns, int pageSize) {
+    this(procedureName, null, ids, keyColumn, columns, pageSize);
+}
+
+private SearchPage(String procedureName, String parameter, int[] ids, String keyColumn, List<String> columns, int pageSize) {
+    this.procedureName = procedureName;
+    this.parameter = parameter;
+    this.ids = ids;
+    this.keyColumn = keyColumn;
+    this.columns = columns;
+    this.pageSize = pageSize;
+}
+
+public String procedureName() {
+    return procedureName;
+}
+
+public String parameter() {
+    return parameter;
+}
+
+public boolean isInMemory() {
+    return ids != null;
+}
+
+public String keyColumn() {
+    return keyColumn;
+}
+
+public List<String> columns() {
+    return columns;
+}
+
+public int pageSize() {
+    return pageSize;
+}
+
+public int pageNumber() {
+    return pageNumber;
+}
+
+// The key the current page starts after
+public int start() {
+    return start;
+}
+
+// Method to start the first page after a key instead of at the beginning, e.g. the HTTP API's after= parameter
+public void startAfter(int key) {
+    start = key;
+}
+
+// Method to get the in-memory IDs on the current page
+public int[] currentIDs() {
+    int from = Arrays.binarySearch(ids, start);
+    from = from >= 0 ? from + 1 : -from - 1;
+    return Arrays.copyOfRange(ids, from, Math.min(ids.length, from + pageSize));
+}
+
+// Method to record what the current page returned, a full page means there may be another one after it
+public void pageLoaded(int rows, String lastKey) {
+    nextStart = rows == pageSize && lastKey != null ? Integer.parseInt(lastKey) : -1;
+}
+
+public boolean hasNext() {
+    return nextStart >= 0;
+}
+
+public boolean hasPrevious() {
+    return !previousStarts.isEmpty();
+}
+
+// Method to move to the next page, returns false if the current page is the last one
+public boolean next() {
+    if (nextStart < 0) {
+        return false;
+    }
+    previousStarts.push(start);
+    start = nextStart;
+    pageNumber++;
+    return true;
+}
+
+// Method to move back to the previous page, returns false if the current page is the first one
+public boolean previous() {
+    if (previousStarts.isEmpty()) {
+        return false;
+    }
+    start = previousStarts.pop();
+    pageNumber--;
+    return true;
+}
+}
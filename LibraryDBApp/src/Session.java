@@ -0,0 +1,62 @@
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Scanner;
+
+// Everything that belongs to one user at one desk: who they are, where their commands come from and go to,
+// and their paging and output settings. The console and every client of the session server each get their own,
+// while the connection pool, indexes and caches are shared by all of them.
+public class Session {
+final App.USER_TYPE userType;
+final int memberID; // Set on login for member sessions, -1 otherwise
+final PrintStream out;
+final ResultRenderer renderer;
+// Commands and prompt answers are read from here, either the user or a batch script
+Scanner input;
+// False in batch mode, where there is nobody to read the prompts
+boolean interactive = true;
+// Arguments typed on the same line as the command number (e.g. "12 5"), used instead of prompting for them
+String[] inlineArgs = null;
+// Lines read by the batch that is running, kept so a failed batch can be replayed one command at a time
+List<String> batchLines = null;
+// The most recent search, so next/prev can page through its results, and the number of results per page
+SearchPage currentSearch = null;
+int pageSize = SearchPage.DEFAULT_PAGE_SIZE;
+// The last database error the session reported, so callers can tell what made a command fail (e.g. a deadlock)
+SQLException lastError = null;
+
+public Session(App.USER_TYPE userType, int memberID, Scanner input, PrintStream out) {
+    this.userType = userType;
+    this.memberID = memberID;
+    this.input = input;
+    this.out = out;
+    this.renderer = new ResultRenderer(out);
+}
+
+// Method to read the next line of commands or prompt answers, remembering it if a batch is running
+public String readLine() {
+    String line = input.nextLine();
+    if (batchLines != null) {
+        batchLines.add(line);
+    }
+    return line;
+}
+
+// Method to report a database error to the user
+public void error(SQLException e) {
+    lastError = e;
+    out.println(e.getMessage());
+}
+
+// Method to report input a command couldn't use, such as a missing argument or an ID that isn't a number
+public void error(RuntimeException e) {
+    out.println("Invalid input: " + e.getMessage());
+}
+
+// Method to print a prompt for input, prompts are left out in batch mode
+public void prompt(String text) {
+    if (interactive) {
+        out.println(text);
+    }
+}
+}
@@ -0,0 +1,102 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serves the console interface to many circulation desks from one process, each TCP connection is its own session
+// Sessions only hold a connection while a command runs, so hundreds of desks can share the connection pool
+// Listens on the loopback address only, desks reach it through whatever runs on the same machine (e.g. telnet or nc)
+public class SessionServer implements AutoCloseable {
+private static final int BACKLOG = 1024;
+
+private final ServerSocket serverSocket;
+private final ExecutorService executor;
+// Every session gets the server's login type, members are asked for their member ID when they connect
+private final App.USER_TYPE userType;
+private final AtomicInteger activeSessions = new AtomicInteger();
+private final AtomicInteger totalSessions = new AtomicInteger();
+
+public SessionServer(int port, App.USER_TYPE userType) throws IOException {
+    this.serverSocket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+    this.executor = newSessionExecutor();
+    this.userType = userType;
+}
+
+// Method to create the executor sessions run on, a virtual thread per session when the JDK has them (21+)
+// and a platform thread per session otherwise
+static ExecutorService newSessionExecutor() {
+    try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+        AtomicInteger threads = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "session-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
+
+// Method to accept connections until the server is closed
+public void serve() throws IOException {
+    System.out.println("Session server listening on " + serverSocket.getLocalSocketAddress());
+    while (!serverSocket.isClosed()) {
+        Socket socket;
+        try {
+            socket = serverSocket.accept();
+        } catch (SocketException e) {
+            break; // Closed while waiting
+        }
+        executor.execute(() -> handle(socket));
+    }
+}
+
+private void handle(Socket socket) {
+    activeSessions.incrementAndGet();
+    totalSessions.incrementAndGet();
+    try (socket) {
+        Scanner input = new Scanner(socket.getInputStream(), StandardCharsets.UTF_8);
+        PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), true, StandardCharsets.UTF_8);
+        int memberID = -1;
+        if (userType == App.USER_TYPE.MEMBER) {
+            out.println("Enter member ID:");
+            try {
+                memberID = Integer.parseInt(input.nextLine().trim());
+            } catch (NumberFormatException e) {
+                out.println("Invalid member ID.");
+                return;
+            }
+        }
+        App.runSession(new Session(userType, memberID, input, out));
+    } catch (IOException | NoSuchElementException e) {
+        // The desk disconnected
+    } finally {
+        activeSessions.decrementAndGet();
+    }
+}
+
+// The port the server listens on, for a server started on port 0
+public int getPort() {
+    return serverSocket.getLocalPort();
+}
+
+public String getStats() {
+    return "Session server: " + activeSessions.get() + " active sessions, " + totalSessions.get() + " since startup";
+}
+
+// Method to stop accepting connections, sessions that are running finish their current command on their own
+@Override
+public void close() throws IOException {
+    serverSocket.close();
+    executor.shutdown();
+}
+}
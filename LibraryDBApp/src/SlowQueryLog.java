@@ -0,0 +1,253 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records statements that took longer than a threshold to a local file, one JSON object per line, with their
+// parameters, duration and rows, and optionally the estimated plan SQL Server would use for them
+// Commands only put entries on a queue, a background thread does the writing, so a slow disk never slows a command
+// down; if the queue is full the entry is dropped and counted instead. Plans are fetched by the same thread on a
+// connection of its own, after the command has committed and released its locks. The file is rotated when it gets too big,
+// keeping a few older files next to it (slow.log.1 is the newest of those).
+public class SlowQueryLog implements AutoCloseable {
+public static final long DEFAULT_THRESHOLD_MILLIS = 500;
+private static final long MAX_FILE_BYTES = 10L * 1024 * 1024;
+private static final int KEPT_FILES = 5;
+private static final int QUEUE_CAPACITY = 10_000;
+private static final String REDACTED = "<redacted>";
+// Positions of the parameters that identify a member, which are left out of the log
+private static final Map<String, int[]> MEMBER_PARAMETERS = Map.ofEntries(
+        Map.entry("checkOutBook", new int[] {0}),
+        Map.entry("checkoutCopy", new int[] {0}),
+        Map.entry("holdBook", new int[] {0}),
+        Map.entry("holdCopy", new int[] {0}),
+        Map.entry("getLoans", new int[] {0}),
+        Map.entry("getHolds", new int[] {0}),
+        Map.entry("getQueuedHolds", new int[] {0}),
+        Map.entry("leaveHoldQueue", new int[] {0}),
+        Map.entry("getMemberHistory", new int[] {0}),
+        Map.entry("findMemberByName", new int[] {0}),
+        Map.entry("findMemberByID", new int[] {0}),
+        Map.entry("membersByIDs", new int[] {0}),
+        Map.entry("addMember", new int[] {0, 1, 2}),
+        Map.entry("removeMember", new int[] {0}));
+
+private final Path file;
+private final long thresholdNanos;
+// Where plans are fetched from, null when they aren't captured
+private final ConnectionPool planPool;
+private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+private final Thread writer;
+private final AtomicLong logged = new AtomicLong();
+private final AtomicLong dropped = new AtomicLong();
+private final AtomicLong discarded = new AtomicLong();
+private volatile boolean closed = false;
+
+// A logged statement waiting for the writer, the JSON object without its closing brace and the statement text to
+// fetch the plan for, if any
+private static final class Entry {
+    final String json;
+    final String planStatement;
+
+    Entry(String json, String planStatement) {
+        this.json = json;
+        this.planStatement = planStatement;
+    }
+}
+
+// planPool is the pool plans are fetched from, or null to log statements without plans
+public SlowQueryLog(Path file, long thresholdMillis, ConnectionPool planPool) {
+    this.file = file;
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.planPool = planPool;
+    this.writer = new Thread(this::writeEntries, "slow-query-log");
+    writer.setDaemon(true);
+    writer.start();
+}
+
+public boolean isSlow(long nanos) {
+    return nanos >= thresholdNanos;
+}
+
+// Method to log a statement if it was slow, sql is the query that was run with a ? for each parameter,
+// or null for a call to the stored procedure called name
+public void record(String name, String sql, String[] parameters, long nanos, int rows) {
+    if (!isSlow(nanos)) {
+        return;
+    }
+    String planStatement = null;
+    if (planPool != null && !MEMBER_PARAMETERS.containsKey(name)) {
+        // Plans embed the parameter values they were compiled for, so they aren't fetched for member lookups
+        planStatement = withLiterals(sql != null ? sql : procedureCall(name, parameters.length), parameters);
+    }
+    StringBuilder entry = new StringBuilder(256);
+    entry.append("{\"time\":\"").append(Instant.now()).append("\",\"statement\":");
+    Json.quote(entry, name);
+    entry.append(",\"parameters\":[");
+    int[] redacted = MEMBER_PARAMETERS.getOrDefault(name, new int[0]);
+    for (int i = 0; i < parameters.length; i++) {
+        if (i > 0) {
+            entry.append(',');
+        }
+        Json.quote(entry, contains(redacted, i) ? REDACTED : parameters[i]);
+    }
+    entry.append(String.format(Locale.ROOT, "],\"durationMs\":%.3f,\"rows\":%d", nanos / 1e6, rows));
+    if (closed || !queue.offer(new Entry(entry.toString(), planStatement))) {
+        dropped.incrementAndGet();
+    }
+}
+
+private static boolean contains(int[] values, int value) {
+    for (int v : values) {
+        if (v == value) {
+            return true;
+        }
+    }
+    return false;
+}
+
+// Method to ask the server for the estimated plan of a statement without running it, returns null if it can't
+// SHOWPLAN_XML has to be switched on and off in batches of its own, and while it is on statements aren't executed,
+// so a connection that can't be switched back is closed instead of going back to the pool where a command would
+// report writes that never ran
+private String estimatedPlan(String planStatement) {
+    PooledConnection connection;
+    try {
+        connection = planPool.borrow();
+    } catch (SQLException e) {
+        return null;
+    }
+    boolean showplan = false;
+    try (Statement statement = connection.physical().createStatement()) {
+        statement.execute("SET SHOWPLAN_XML ON");
+        showplan = true;
+        try (ResultSet resultSet = statement.executeQuery(planStatement)) {
+            return resultSet.next() ? resultSet.getString(1) : null;
+        } finally {
+            statement.execute("SET SHOWPLAN_XML OFF");
+            showplan = false;
+        }
+    } catch (SQLException e) {
+        return null;
+    } finally {
+        if (showplan) {
+            discarded.incrementAndGet();
+            connection.discard();
+        } else {
+            connection.close();
+        }
+    }
+}
+
+private static String procedureCall(String procedureName, int parameterCount) {
+    StringBuilder call = new StringBuilder("EXEC ").append(procedureName);
+    for (int i = 0; i < parameterCount; i++) {
+        call.append(i > 0 ? ", ?" : " ?");
+    }
+    return call.toString();
+}
+
+// Method to put the parameters into the statement as string literals, SHOWPLAN can't take bound parameters
+static String withLiterals(String sql, String[] parameters) {
+    StringBuilder text = new StringBuilder(sql.length() + 16 * parameters.length);
+    int parameter = 0;
+    for (int i = 0; i < sql.length(); i++) {
+        char c = sql.charAt(i);
+        if (c == '?' && parameter < parameters.length) {
+            String value = parameters[parameter++];
+            text.append(value == null ? "NULL" : "N'" + value.replace("'", "''") + "'");
+        } else {
+            text.append(c);
+        }
+    }
+    return text.toString();
+}
+
+// The writer thread, it writes whatever is queued and flushes once the queue is empty
+private void writeEntries() {
+    List<Entry> entries = new ArrayList<>();
+    BufferedWriter out = null;
+    try {
+        while (!closed || !queue.isEmpty()) {
+            Entry first = queue.poll(1, TimeUnit.SECONDS);
+            if (first == null) {
+                continue;
+            }
+            entries.add(first);
+            queue.drainTo(entries);
+            if (out == null || Files.size(file) >= MAX_FILE_BYTES) {
+                if (out != null) {
+                    out.close();
+                    rotate();
+                }
+                out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            for (Entry entry : entries) {
+                out.write(entry.json);
+                String plan = entry.planStatement == null ? null : estimatedPlan(entry.planStatement);
+                if (plan != null) {
+                    out.write(",\"plan\":");
+                    out.write(Json.quote(plan));
+                }
+                out.write('}');
+                out.newLine();
+            }
+            out.flush();
+            logged.addAndGet(entries.size());
+            entries.clear();
+        }
+    } catch (IOException e) {
+        System.err.println("Slow query log stopped: " + e.getMessage());
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+    } finally {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+}
+
+// Method to move slow.log to slow.log.1, slow.log.1 to slow.log.2 and so on, dropping the oldest
+private void rotate() throws IOException {
+    for (int i = KEPT_FILES - 1; i >= 1; i--) {
+        Path older = file.resolveSibling(file.getFileName() + "." + i);
+        if (Files.exists(older)) {
+            Files.move(older, file.resolveSibling(file.getFileName() + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+}
+
+public String getStats() {
+    return "Slow query log (" + file + "): " + logged.get() + " statements logged, " + dropped.get() + " dropped"
+            + (planPool == null ? "" : ", " + discarded.get() + " connections closed after SHOWPLAN stayed on");
+}
+
+// Method to write what is still queued and stop the writer
+@Override
+public void close() {
+    closed = true;
+    try {
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+    }
+}
+}
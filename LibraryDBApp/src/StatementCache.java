@@ -0,0 +1,113 @@
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// LRU cache of prepared and callable statements held with each pooled connection,
+// so repeat commands reuse the server-side prepared handle instead of re-preparing their SQL
+public class StatementCache {
+public static final int DEFAULT_CAPACITY = 64;
+// Hit and miss counters shared by every connection, keyed by call signature (procedure/arity or SQL text)
+private static final LongAdder totalHits = new LongAdder();
+private static final LongAdder totalMisses = new LongAdder();
+private static final LongAdder totalEvictions = new LongAdder();
+private static final Map<String, LongAdder[]> countsBySignature = new ConcurrentHashMap<>();
+
+private final Connection connection;
+private final LinkedHashMap<String, PreparedStatement> statements;
+
+public StatementCache(Connection connection, int capacity) {
+    this.connection = connection;
+    // Access-ordered map so the least recently used statement is evicted (and closed) first
+    this.statements = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            totalEvictions.increment();
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+}
+
+// Method to get a cached callable statement for a procedure with the given number of parameters
+// The {call proc(?, ?, ...)} string is only built the first time a signature is seen on this connection
+public CallableStatement prepareCall(String procedureName, int parameterCount) throws SQLException {
+    String signature = procedureName + "/" + parameterCount;
+    PreparedStatement statement = lookup(signature);
+    if (statement == null) {
+        StringBuilder callStatement = new StringBuilder("{call " + procedureName + "(");
+        for (int i = 0; i < parameterCount; i++) {
+            callStatement.append("?");
+            if (i < parameterCount - 1) {
+                callStatement.append(", ");
+            }
+        }
+        callStatement.append(")}");
+        statement = connection.prepareCall(callStatement.toString());
+        statements.put(signature, statement);
+    }
+    return (CallableStatement) statement;
+}
+
+// Method to get a cached prepared statement for the given SQL text
+public PreparedStatement prepareStatement(String sql) throws SQLException {
+    PreparedStatement statement = lookup(sql);
+    if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+    }
+    return statement;
+}
+
+private PreparedStatement lookup(String signature) {
+    PreparedStatement statement = statements.get(signature);
+    LongAdder[] counts = countsBySignature.computeIfAbsent(signature, key -> new LongAdder[] {new LongAdder(), new LongAdder()});
+    if (statement != null) {
+        totalHits.increment();
+        counts[0].increment();
+    } else {
+        totalMisses.increment();
+        counts[1].increment();
+    }
+    return statement;
+}
+
+// Method to close every cached statement, used when the pool discards, evicts or closes the connection
+public void clear() {
+    for (PreparedStatement statement : statements.values()) {
+        closeQuietly(statement);
+    }
+    statements.clear();
+}
+
+private static void closeQuietly(Statement statement) {
+    try {
+        statement.close();
+    } catch (SQLException e) {
+        // Statement is being thrown away anyway
+    }
+}
+
+public static long getHits() {
+    return totalHits.sum();
+}
+
+public static long getMisses() {
+    return totalMisses.sum();
+}
+
+// Method to summarize hit/miss counts overall and per call signature
+public static String getStats() {
+    StringBuilder stats = new StringBuilder(String.format("Statement cache: %d hits, %d misses, %d evictions",
+            totalHits.sum(), totalMisses.sum(), totalEvictions.sum()));
+    countsBySignature.entrySet().stream()
+            .sorted(Map.Entry.comparingByKey())
+            .forEach(entry -> stats.append(String.format("%n  %s: %d hits, %d misses",
+                    entry.getKey(), entry.getValue()[0].sum(), entry.getValue()[1].sum())));
+    return stats.toString();
+}
+}
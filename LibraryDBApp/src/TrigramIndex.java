@@ -0,0 +1,168 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory trigram index for substring searches like LIKE '%' + @x + '%'
+// Every three character sequence of an entry's text maps to a compressed bitmap of entry IDs, so a search only
+// has to verify the entries that contain all of the query's trigrams instead of scanning the whole table
+public class TrigramIndex {
+// Separates the fields of an entry (e.g. first and last name), no query can contain it so a match never spans two fields
+public static final char FIELD_SEPARATOR = '\u0001';
+private static final int LOAD_FETCH_SIZE = 10_000;
+
+private final String name;
+private final Map<Long, CompactBitmap> postings = new HashMap<>();
+// Lower-cased text of each entry indexed by its ID, used to verify candidates
+private String[] texts = new String[1024];
+private int entryCount = 0;
+private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+public TrigramIndex(String name) {
+    this.name = name;
+}
+
+// Method to build an index by streaming a query whose first column is the ID and remaining columns are the searchable text
+public static TrigramIndex load(String name, UnitOfWork work, String query) throws SQLException {
+    TrigramIndex index = new TrigramIndex(name);
+    PreparedStatement statement = work.prepareStatement(query);
+    statement.setFetchSize(LOAD_FETCH_SIZE);
+    try (ResultSet resultSet = statement.executeQuery()) {
+        int fieldCount = resultSet.getMetaData().getColumnCount() - 1;
+        String[] fields = new String[fieldCount];
+        while (resultSet.next()) {
+            for (int i = 0; i < fieldCount; i++) {
+                fields[i] = resultSet.getString(i + 2);
+            }
+            index.put(resultSet.getInt(1), fields);
+        }
+    }
+    return index;
+}
+
+// Matching is case-insensitive, the same as the database collation
+private static String normalize(String text) {
+    return text == null ? "" : text.toLowerCase(Locale.ROOT);
+}
+
+private static String join(String... fields) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < fields.length; i++) {
+        if (i > 0) {
+            text.append(FIELD_SEPARATOR);
+        }
+        text.append(normalize(fields[i]));
+    }
+    return text.toString();
+}
+
+// Each trigram is packed into one long, 16 bits per character
+private static long trigram(String text, int start) {
+    return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+}
+
+// Method to add or replace the searchable text of an entry, multiple fields are matched independently
+public void put(int id, String... fields) {
+    String text = join(fields);
+    lock.writeLock().lock();
+    try {
+        removeLocked(id);
+        if (id >= texts.length) {
+            texts = Arrays.copyOf(texts, Math.max(id + 1, texts.length * 2));
+        }
+        texts[id] = text;
+        entryCount++;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            postings.computeIfAbsent(trigram(text, i), key -> new CompactBitmap()).add(id);
+        }
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+
+// Method to remove an entry from the index
+public void remove(int id) {
+    lock.writeLock().lock();
+    try {
+        removeLocked(id);
+    } finally {
+        lock.writeLock().unlock();
+    }
+}
+
+private void removeLocked(int id) {
+    if (id >= texts.length || texts[id] == null) {
+        return;
+    }
+    String text = texts[id];
+    for (int i = 0; i + 3 <= text.length(); i++) {
+        long key = trigram(text, i);
+        CompactBitmap ids = postings.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty()) {
+            postings.remove(key);
+        }
+    }
+    texts[id] = null;
+    entryCount--;
+}
+
+// Method to find the IDs of entries with a field containing the query, in ascending order
+// Returns null for queries shorter than a trigram, which the index can't narrow down, and for queries with LIKE
+// wildcards in them, which the search procedures match as patterns; the query isn't trimmed, LIKE keeps the spaces too
+public int[] search(String query) {
+    if (hasWildcard(query)) {
+        return null;
+    }
+    String pattern = normalize(query);
+    if (pattern.length() < 3) {
+        return null;
+    }
+    lock.readLock().lock();
+    try {
+        List<CompactBitmap> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= pattern.length(); i++) {
+            CompactBitmap ids = postings.get(trigram(pattern, i));
+            if (ids == null) {
+                return new int[0];
+            }
+            lists.add(ids);
+        }
+        // Candidates have every trigram, but not necessarily in the right order, so verify them like LIKE would
+        int[] candidates = CompactBitmap.andAll(lists).toArray();
+        int matches = 0;
+        for (int id : candidates) {
+            if (texts[id].contains(pattern)) {
+                candidates[matches++] = id;
+            }
+        }
+        return Arrays.copyOf(candidates, matches);
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+
+// Method to check for the characters LIKE treats as wildcards: %, _ and [ ranges
+private static boolean hasWildcard(String query) {
+    for (int i = 0; i < query.length(); i++) {
+        char c = query.charAt(i);
+        if (c == '%' || c == '_' || c == '[') {
+            return true;
+        }
+    }
+    return false;
+}
+
+public String getStats() {
+    lock.readLock().lock();
+    try {
+        return "Trigram index (" + name + "): " + entryCount + " entries, " + postings.size() + " trigrams";
+    } finally {
+        lock.readLock().unlock();
+    }
+}
+}
@@ -0,0 +1,143 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// One command's transaction: every statement the command runs shares a single pooled connection
+// and is committed or rolled back together when the command finishes
+public class UnitOfWork implements AutoCloseable {
+private final PooledConnection connection;
+private boolean finished = false;
+// Actions that should only happen once this unit of work's changes are committed, such as updating in-memory indexes
+private final List<Runnable> afterCommit = new ArrayList<>();
+// In batch mode, statements that return nothing are queued with addBatch and sent to the server together
+private boolean batching = false;
+// The statement with queued executions, it is sent as soon as any other statement is used so everything runs in order
+private PreparedStatement pendingBatch = null;
+// How long borrowing the connection took, until it is taken for the command metrics
+private long acquireNanos;
+
+// Borrow a connection from the pool and start a transaction on it
+public UnitOfWork(ConnectionPool pool) throws SQLException {
+    long start = System.nanoTime();
+    connection = pool.borrow();
+    acquireNanos = System.nanoTime() - start;
+    try {
+        connection.setAutoCommit(false);
+    } catch (SQLException e) {
+        connection.close();
+        throw e;
+    }
+}
+
+// The connection this unit of work runs on
+public PooledConnection connection() {
+    return connection;
+}
+
+// Method to get how long borrowing the connection took, only the first call gets it and later ones get -1,
+// so a batch that runs many commands on one connection only counts the wait once
+public long takeAcquireNanos() {
+    long nanos = acquireNanos;
+    acquireNanos = -1;
+    return nanos;
+}
+
+// Statements come from the connection's statement cache and stay open after the command, so don't close them
+public CallableStatement prepareCall(String procedureName, int parameterCount) throws SQLException {
+    CallableStatement statement = connection.prepareCall(procedureName, parameterCount);
+    if (statement != pendingBatch) {
+        flushBatch();
+    }
+    return statement;
+}
+
+public PreparedStatement prepareStatement(String sql) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(sql);
+    if (statement != pendingBatch) {
+        flushBatch();
+    }
+    return statement;
+}
+
+public boolean isBatching() {
+    return batching;
+}
+
+public void setBatching(boolean batching) {
+    this.batching = batching;
+}
+
+// Method to queue an execution of a statement with its current parameters instead of running it right away
+public void addBatch(PreparedStatement statement) throws SQLException {
+    if (statement != pendingBatch) {
+        flushBatch();
+    }
+    statement.addBatch();
+    pendingBatch = statement;
+}
+
+// Method to send every queued execution to the server in one round trip
+public void flushBatch() throws SQLException {
+    if (pendingBatch == null) {
+        return;
+    }
+    PreparedStatement statement = pendingBatch;
+    pendingBatch = null;
+    try {
+        statement.executeBatch();
+    } finally {
+        statement.clearBatch();
+    }
+}
+
+// Method to register an action to run after a successful commit, it is dropped if the work is rolled back
+public void afterCommit(Runnable action) {
+    afterCommit.add(action);
+}
+
+// Method to commit every statement run in this unit of work in one go
+public void commit() throws SQLException {
+    flushBatch();
+    connection.commit();
+    finished = true;
+    for (Runnable action : afterCommit) {
+        action.run();
+    }
+    afterCommit.clear();
+}
+
+// Method to undo every statement run in this unit of work
+public void rollback() throws SQLException {
+    finished = true;
+    afterCommit.clear();
+    discardBatch();
+    connection.rollback();
+}
+
+// Method to drop queued executions, the statement is cached so they would otherwise run with the next command
+private void discardBatch() {
+    if (pendingBatch == null) {
+        return;
+    }
+    try {
+        pendingBatch.clearBatch();
+    } catch (SQLException e) {
+        // The rollback or pool discards the connection if it is broken
+    }
+    pendingBatch = null;
+}
+
+// Roll back anything left uncommitted and hand the connection back to the pool
+@Override
+public void close() {
+    if (!finished) {
+        discardBatch();
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            // The pool discards connections it can't reset
+        }
+    }
+    connection.close();
+}
+}
@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.Scanner;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// Adding a book whose second statement fails, against a stand-in connection, no database needed
+class AddBookRollbackTest {
+private static final int NEW_BOOK_ID = 42;
+private static final String TITLE = "Rollback Title";
+private static final String ISBN = "9780000000001";
+
+// A connection whose statements fail from the failingCall'th execution on, counting commits and rollbacks
+private static final class FailingConnection {
+    final int failingCall;
+    int executions = 0;
+    int commits = 0;
+    int rollbacks = 0;
+    boolean autoCommit = true;
+    final Connection proxy;
+
+    FailingConnection(int failingCall) {
+        this.failingCall = failingCall;
+        this.proxy = (Connection) Proxy.newProxyInstance(FailingConnection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "prepareCall":
+                            return statement(CallableStatement.class);
+                        case "prepareStatement":
+                            return statement(PreparedStatement.class);
+                        case "setAutoCommit":
+                            autoCommit = (Boolean) args[0];
+                            return null;
+                        case "getAutoCommit":
+                            return autoCommit;
+                        case "commit":
+                            commits++;
+                            return null;
+                        case "rollback":
+                            rollbacks++;
+                            return null;
+                        case "isClosed":
+                            return false;
+                        case "isValid":
+                            return true;
+                        default:
+                            return ignore(method);
+                    }
+                });
+    }
+
+    private Object statement(Class<? extends PreparedStatement> type) {
+        return Proxy.newProxyInstance(FailingConnection.class.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "execute":
+                case "executeQuery":
+                case "executeUpdate":
+                    if (++executions >= failingCall) {
+                        throw new SQLException("Connection reset");
+                    }
+                    // Only the addBook call gets this far, it returns no rows and sets its OUTPUT parameter
+                    return false;
+                case "getInt":
+                    return NEW_BOOK_ID;
+                default:
+                    return ignore(method);
+            }
+        });
+    }
+
+    // Setters and close return nothing, anything else the test didn't expect to be called
+    private static Object ignore(Method method) {
+        if (method.getReturnType() == void.class) {
+            return null;
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+}
+
+private ConnectionPool pool;
+
+@AfterEach
+void tearDown() {
+    App.titleIndex = null;
+    App.titlePrefixes = null;
+    pool.close();
+}
+
+@Test
+void failedAuthorLookupRollsBackWithoutUpdatingIndexesOrCaches() {
+    FailingConnection connection = new FailingConnection(2);
+    pool = new ConnectionPool(() -> connection.proxy, 0, 1, 1_000, 60_000);
+    App.setUp(pool, 60);
+    App.titleIndex = new TrigramIndex("titles");
+    App.titlePrefixes = new PrefixIndex("titles");
+    long bookStamp = App.bookCache.stamp();
+    long isbnStamp = App.isbnCache.stamp();
+
+    // Title, ISBN, edition, publication date, publisher, copyright year and authors, as command 18 prompts for them
+    String answers = String.join("\n", TITLE, ISBN, "", "", "", "", "Ursula Le Guin") + "\n";
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Session session = new Session(App.USER_TYPE.CURATOR, -1, new Scanner(answers), new PrintStream(output, true, StandardCharsets.UTF_8));
+
+    assertFalse(App.runCommand(session, "18"));
+
+    // addBook ran, then the author lookup failed
+    assertEquals(2, connection.executions);
+    assertTrue(connection.rollbacks > 0, "the transaction wasn't rolled back");
+    assertEquals(0, connection.commits);
+    // Nothing queued with afterCommit ran
+    assertEquals(0, App.titleIndex.search(TITLE).length);
+    assertTrue(App.titlePrefixes.complete("Rollback", 10).isEmpty());
+    assertEquals(bookStamp, App.bookCache.stamp(), "the book cache was invalidated");
+    assertEquals(isbnStamp, App.isbnCache.stamp(), "the ISBN cache was invalidated");
+    assertFalse(output.toString(StandardCharsets.UTF_8).contains("added successfully"));
+}
+}
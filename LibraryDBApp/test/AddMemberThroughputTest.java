@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Adding many members who all have the same name against a real server, every add has to report the ID of the member
+// it inserted. Skipped unless -Dlibrary.test.url=<JDBC URL> points at a database built from DDLSQL.sql, the members
+// are deleted again at the end
+class AddMemberThroughputTest {
+private static final int MEMBERS = 100_000;
+private static final int WORKERS = 8;
+private static final String FIRST_NAME = "Same";
+private static final Pattern NEW_ID = Pattern.compile("added successfully with ID (\\d+)\\.");
+
+private ConnectionPool pool;
+// Unique to this run so the cleanup only deletes its members
+private final String lastName = "Duplicate" + System.currentTimeMillis();
+
+@BeforeEach
+void setUp() {
+    String url = System.getProperty("library.test.url");
+    assumeTrue(url != null, "set library.test.url to run against a server");
+    pool = new ConnectionPool(url, 0, WORKERS, 30_000, 60_000);
+    App.setUp(pool, 0);
+}
+
+@AfterEach
+void tearDown() throws SQLException {
+    if (pool == null) {
+        return;
+    }
+    try (UnitOfWork work = new UnitOfWork(pool)) {
+        PreparedStatement delete = work.prepareStatement("DELETE FROM member WHERE memFirstName = ? AND memLastName = ?");
+        delete.setString(1, FIRST_NAME);
+        delete.setString(2, lastName);
+        delete.executeUpdate();
+        work.commit();
+    }
+    pool.close();
+}
+
+@Test
+void membersWithTheSameNameGetDistinctIDs() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+    List<Future<List<Integer>>> results = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int w = 0; w < WORKERS; w++) {
+        int worker = w;
+        results.add(executor.submit(() -> addMembers(worker)));
+    }
+    Set<Integer> ids = new HashSet<>();
+    int added = 0;
+    for (Future<List<Integer>> result : results) {
+        for (int id : result.get()) {
+            ids.add(id);
+            added++;
+        }
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("Added %,d members in %.1f s, %.0f per s%n", added, seconds, added / seconds);
+
+    assertEquals(MEMBERS, added);
+    assertEquals(MEMBERS, ids.size(), "two adds reported the same member ID");
+}
+
+// Method to add this worker's share of the members through the staff console command and return the IDs it printed
+private List<Integer> addMembers(int worker) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Session session = new Session(App.USER_TYPE.EMPLOYEE, -1, new Scanner(""), new PrintStream(output, true, StandardCharsets.UTF_8));
+    session.interactive = false;
+    List<Integer> ids = new ArrayList<>();
+    for (int i = worker; i < MEMBERS; i += WORKERS) {
+        output.reset();
+        assertTrue(App.runCommand(session, "14 " + FIRST_NAME + " " + lastName + " 1990-01-01"));
+        Matcher matcher = NEW_ID.matcher(output.toString(StandardCharsets.UTF_8));
+        assertTrue(matcher.find(), output.toString(StandardCharsets.UTF_8));
+        ids.add(Integer.parseInt(matcher.group(1)));
+    }
+    return ids;
+}
+}
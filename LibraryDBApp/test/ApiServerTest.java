@@ -0,0 +1,135 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// The HTTP API on a loopback port against an embedded H2 database in SQL Server mode
+// H2 can't run T-SQL, so the procedures these requests call are the Java aliases at the bottom, running the same
+// queries as DDLSQL.sql. The class is public so H2 can call them
+public class ApiServerTest {
+private static final AtomicInteger databases = new AtomicInteger();
+
+private Connection admin;
+private ConnectionPool pool;
+private ApiServer api;
+private final HttpClient client = HttpClient.newHttpClient();
+
+@BeforeEach
+void setUp() throws Exception {
+    String url = "jdbc:h2:mem:api" + databases.incrementAndGet() + ";MODE=MSSQLServer;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    admin = DriverManager.getConnection(url);
+    try (Statement statement = admin.createStatement()) {
+        statement.execute("CREATE TABLE book (bookID int PRIMARY KEY, title varchar(255) NOT NULL, ISBN varchar(13),"
+                + " edition varchar(255), publicationDate date, publisher varchar(255), copyrightYear int)");
+        statement.execute("CREATE TABLE copy (copyID int PRIMARY KEY, bookID int NOT NULL)");
+        statement.execute("CREATE TABLE memberCopy (memberID int NOT NULL, copyID int NOT NULL, memCopyStatus varchar(10) NOT NULL,"
+                + " createdDate date NOT NULL, expiryDate date NOT NULL, PRIMARY KEY (memberID, copyID))");
+        statement.execute("CREATE UNIQUE INDEX UX_memberCopy_copy ON memberCopy (copyID)");
+        statement.execute("INSERT INTO book (bookID, title) VALUES (1, 'Dune'), (2, 'Dune Messiah'), (3, 'Children of Dune'), (4, 'Emma')");
+        statement.execute("INSERT INTO copy VALUES (10, 1)");
+        statement.execute("CREATE ALIAS searchTitle FOR 'ApiServerTest.searchTitle'");
+        statement.execute("CREATE ALIAS checkOutBook FOR 'ApiServerTest.checkOutBook'");
+    }
+    pool = new ConnectionPool(url);
+    App.setUp(pool, 0);
+    api = new ApiServer(pool, 0);
+    api.start();
+}
+
+@AfterEach
+void tearDown() throws SQLException {
+    api.close();
+    pool.close();
+    admin.close();
+}
+
+@Test
+void searchStreamsOneJsonLinePerBookAndPages() throws Exception {
+    HttpResponse<String> first = get("/api/books?title=Dune&limit=2");
+    assertEquals(200, first.statusCode());
+    assertTrue(first.headers().firstValue("Content-Type").orElse("").startsWith("application/x-ndjson"));
+    String[] lines = first.body().split("\n");
+    assertEquals(2, lines.length, first.body());
+    assertTrue(lines[0].startsWith("{") && lines[0].contains("\"bookID\":\"1\"") && lines[0].contains("\"title\":\"Dune\""), lines[0]);
+    assertTrue(lines[1].contains("\"bookID\":\"2\""), lines[1]);
+
+    HttpResponse<String> next = get("/api/books?title=Dune&limit=2&after=2");
+    assertEquals(200, next.statusCode());
+    String[] nextLines = next.body().split("\n");
+    assertEquals(1, nextLines.length, next.body());
+    assertTrue(nextLines[0].contains("\"bookID\":\"3\""), nextLines[0]);
+}
+
+@Test
+void checkoutIsCreatedThenConflictsWhenNoCopyIsLeft() throws Exception {
+    HttpResponse<String> checkout = post("/api/checkouts", "{\"memberID\": 1, \"bookID\": 1}");
+    assertEquals(201, checkout.statusCode(), checkout.body());
+    assertEquals("{\"checkedOut\":true}", checkout.body());
+
+    HttpResponse<String> conflict = post("/api/checkouts", "{\"memberID\": 2, \"bookID\": 1}");
+    assertEquals(409, conflict.statusCode(), conflict.body());
+    assertTrue(conflict.body().contains("No copy of this book is available."), conflict.body());
+}
+
+@Test
+void badIDsAndPathsAreRejected() throws Exception {
+    assertEquals(400, get("/api/books/abc").statusCode());
+    assertEquals(400, get("/api/books?title=Dune&after=-1").statusCode());
+    assertEquals(400, post("/api/checkouts", "{\"memberID\": \"x\", \"bookID\": 1}").statusCode());
+    assertEquals(404, get("/api/nothing").statusCode());
+    assertEquals(404, get("/api/books/1/copies").statusCode());
+    assertTrue(api.metricsJson().contains("\"unknown\":{\"requests\":2,\"errors\":2"), api.metricsJson());
+}
+
+private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+    return client.send(HttpRequest.newBuilder(uri(path)).GET().build(), HttpResponse.BodyHandlers.ofString());
+}
+
+private HttpResponse<String> post(String path, String json) throws IOException, InterruptedException {
+    return client.send(HttpRequest.newBuilder(uri(path)).POST(HttpRequest.BodyPublishers.ofString(json)).build(),
+            HttpResponse.BodyHandlers.ofString());
+}
+
+private URI uri(String path) {
+    return URI.create("http://127.0.0.1:" + api.getPort() + path);
+}
+
+// searchTitle, keyset paged
+public static ResultSet searchTitle(Connection connection, String title, int afterID, int pageSize) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(
+            "SELECT TOP (?) * FROM book WHERE title LIKE '%' + ? + '%' AND bookID > ? ORDER BY bookID");
+    statement.setInt(1, pageSize);
+    statement.setString(2, title);
+    statement.setInt(3, afterID);
+    return statement.executeQuery();
+}
+
+// checkOutBook, picking the lowest free copy of the book and throwing 50001 when there is none
+public static void checkOutBook(Connection connection, int memID, int bookID) throws SQLException {
+    int copyID;
+    try (PreparedStatement statement = connection.prepareStatement("SELECT TOP 1 c.copyID FROM copy c"
+            + " WHERE c.bookID = ? AND NOT EXISTS (SELECT 1 FROM memberCopy mc WHERE mc.copyID = c.copyID) ORDER BY c.copyID")) {
+        statement.setInt(1, bookID);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                throw new SQLException("No copy of this book is available.", "45000", 50001);
+            }
+            copyID = resultSet.getInt(1);
+        }
+    }
+    try (PreparedStatement statement = connection.prepareStatement("INSERT INTO memberCopy (memberID, copyID, memCopyStatus, createdDate, expiryDate)"
+            + " VALUES (?, ?, 'checkedOut', CURRENT_DATE, DATEADD(day, 14, CURRENT_DATE))")) {
+        statement.setInt(1, memID);
+        statement.setInt(2, copyID);
+        statement.executeUpdate();
+    }
+}
+}
@@ -0,0 +1,114 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// Returns and holds in a batch file are queued with addBatch, against a stand-in connection, no database needed
+class BatchedReturnTest {
+
+// A connection that records the calls it prepares and how their statements were run
+private static final class RecordingConnection {
+    final List<String> calls = new ArrayList<>();
+    int executions = 0;
+    int batched = 0;
+    int batches = 0;
+    int outParameters = 0;
+    int commits = 0;
+    boolean autoCommit = true;
+    final Connection proxy;
+
+    RecordingConnection() {
+        this.proxy = (Connection) Proxy.newProxyInstance(RecordingConnection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "prepareCall":
+                            calls.add((String) args[0]);
+                            return statement();
+                        case "setAutoCommit":
+                            autoCommit = (Boolean) args[0];
+                            return null;
+                        case "getAutoCommit":
+                            return autoCommit;
+                        case "commit":
+                            commits++;
+                            return null;
+                        case "isClosed":
+                            return false;
+                        case "isValid":
+                            return true;
+                        default:
+                            return ignore(method);
+                    }
+                });
+    }
+
+    private Object statement() {
+        return Proxy.newProxyInstance(RecordingConnection.class.getClassLoader(), new Class<?>[] {CallableStatement.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "execute":
+                            executions++;
+                            return false;
+                        case "addBatch":
+                            batched++;
+                            return null;
+                        case "executeBatch":
+                            batches++;
+                            return new int[0];
+                        case "registerOutParameter":
+                            outParameters++;
+                            return null;
+                        default:
+                            return ignore(method);
+                    }
+                });
+    }
+
+    // Setters and close return nothing, anything else the test didn't expect to be called
+    private static Object ignore(Method method) {
+        if (method.getReturnType() == void.class) {
+            return null;
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+}
+
+private ConnectionPool pool;
+
+@AfterEach
+void tearDown() {
+    pool.close();
+}
+
+@Test
+void returnsAndHoldsAreQueuedWithoutOutputParameters() {
+    RecordingConnection connection = new RecordingConnection();
+    pool = new ConnectionPool(() -> connection.proxy, 0, 1, 1_000, 60_000);
+    App.setUp(pool, 60);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Session session = new Session(App.USER_TYPE.EMPLOYEE, -1, new Scanner("11 41 7\n11 42 8\n7 5 9\n"),
+            new PrintStream(output, true, StandardCharsets.UTF_8));
+    session.interactive = false;
+
+    App.runBatch(session, 100);
+
+    assertEquals(0, connection.executions, "a batched command ran on its own");
+    assertEquals(0, connection.outParameters);
+    assertEquals(3, connection.batched);
+    // The two returns go together, then the hold
+    assertEquals(2, connection.batches);
+    assertEquals(1, connection.commits);
+    assertTrue(connection.calls.stream().allMatch(call -> call.equals("{call returnCopy(?)}") || call.equals("{call holdBook(?, ?)}")),
+            connection.calls.toString());
+    assertTrue(output.toString(StandardCharsets.UTF_8).contains("3 commands succeeded, 0 failed"), output.toString(StandardCharsets.UTF_8));
+}
+}
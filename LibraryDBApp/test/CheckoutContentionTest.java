@@ -0,0 +1,37 @@
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Many desks checking out the same book at once against a real server, since the allocation depends on SQL Server's
+// UPDLOCK and READPAST. Skipped unless -Dlibrary.test.url=<JDBC URL> points at a database built from DDLSQL.sql with
+// at least 2 members per copy, e.g. seeded with --seed-members
+class CheckoutContentionTest {
+private static final int WORKERS = 16;
+private static final int COPIES = 50;
+
+private ConnectionPool pool;
+
+@BeforeEach
+void setUp() {
+    String url = System.getProperty("library.test.url");
+    assumeTrue(url != null, "set library.test.url to run against a server");
+    pool = new ConnectionPool(url, 0, WORKERS, 30_000, 60_000);
+    App.setUp(pool, 0);
+}
+
+@AfterEach
+void tearDown() {
+    if (pool != null) {
+        pool.close();
+    }
+}
+
+@Test
+void concurrentCheckoutsNeverShareACopy() {
+    // Fails if any copy went to two members, a checkout hit UX_memberCopy_copy, or more checkouts succeeded than copies
+    assertTrue(LoadGenerator.checkoutTest(pool, App.USER_TYPE.EMPLOYEE, WORKERS, COPIES));
+}
+}
@@ -0,0 +1,41 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Scanner;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// Completion runs from the prefix indexes alone, so it must not borrow a connection
+class CompleteCommandTest {
+private ConnectionPool pool;
+private int connects = 0;
+
+@AfterEach
+void tearDown() {
+    App.titlePrefixes = null;
+    pool.close();
+}
+
+@Test
+void completeDoesNotBorrowAConnection() {
+    pool = new ConnectionPool(() -> {
+        connects++;
+        throw new SQLException("complete asked for a connection");
+    }, 0, 1, 100, 60_000);
+    App.setUp(pool, 60);
+    App.titlePrefixes = new PrefixIndex("titles");
+    App.titlePrefixes.put(7, "The Left Hand of Darkness");
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Session session = new Session(App.USER_TYPE.MEMBER, 1, new Scanner(""), new PrintStream(output, true, StandardCharsets.UTF_8));
+
+    assertTrue(App.runCommand(session, "complete title lef"));
+
+    assertTrue(output.toString(StandardCharsets.UTF_8).contains("7: The Left Hand of Darkness"), output.toString(StandardCharsets.UTF_8));
+    assertEquals(0, connects);
+    assertEquals(0, pool.openCount());
+    assertTrue(CommandMetrics.getStats().contains("complete:"), CommandMetrics.getStats());
+}
+}
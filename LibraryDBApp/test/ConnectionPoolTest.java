@@ -0,0 +1,153 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+
+// Pool behaviour against stand-in connections, no database needed
+class ConnectionPoolTest {
+private static final long IDLE_TIMEOUT_MILLIS = 50;
+// Long enough that the evictor leaves connections alone while a test waits
+private static final long NO_IDLE_TIMEOUT_MILLIS = 60_000;
+
+// A physical connection that records what the pool did to it and answers isValid as told
+private static final class FakeConnection {
+    volatile boolean closed = false;
+    volatile boolean valid = true;
+    volatile boolean autoCommit = true;
+    volatile int validations = 0;
+    volatile int rollbacks = 0;
+    final Connection proxy = (Connection) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "isClosed":
+                        return closed;
+                    case "close":
+                        closed = true;
+                        return null;
+                    case "isValid":
+                        validations++;
+                        return valid;
+                    case "getAutoCommit":
+                        return autoCommit;
+                    case "setAutoCommit":
+                        autoCommit = (Boolean) args[0];
+                        return null;
+                    case "rollback":
+                        rollbacks++;
+                        return null;
+                    case "commit":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+}
+
+private final List<FakeConnection> opened = new CopyOnWriteArrayList<>();
+private volatile boolean connectFails = false;
+
+private ConnectionPool pool(int minSize, int maxSize, long borrowTimeoutMillis, long idleTimeoutMillis) {
+    return new ConnectionPool(() -> {
+        if (connectFails) {
+            throw new SQLException("Login failed");
+        }
+        FakeConnection connection = new FakeConnection();
+        opened.add(connection);
+        return connection.proxy;
+    }, minSize, maxSize, borrowTimeoutMillis, idleTimeoutMillis);
+}
+
+@Test
+void borrowTimesOutWhenEveryConnectionIsInUse() throws SQLException {
+    try (ConnectionPool pool = pool(0, 1, 100, NO_IDLE_TIMEOUT_MILLIS)) {
+        PooledConnection held = pool.borrow();
+        long start = System.nanoTime();
+        assertThrows(SQLTransientConnectionException.class, pool::borrow);
+        assertTrue(System.nanoTime() - start >= 100_000_000L, "gave up before the borrow timeout");
+        assertTrue(pool.getStats().contains("1 timeouts"), pool.getStats());
+        held.close();
+        try (PooledConnection again = pool.borrow()) {
+            assertSame(held.physical(), again.physical());
+        }
+        assertEquals(1, opened.size());
+    }
+}
+
+@Test
+void idleConnectionsAreValidatedOnBorrow() throws Exception {
+    try (ConnectionPool pool = pool(0, 2, 1_000, NO_IDLE_TIMEOUT_MILLIS)) {
+        pool.borrow().close();
+        // Used moments ago, so it is trusted without a round trip
+        pool.borrow().close();
+        assertEquals(0, opened.get(0).validations);
+
+        Thread.sleep(1_100);
+        opened.get(0).valid = false;
+        try (PooledConnection connection = pool.borrow()) {
+            assertEquals(1, opened.get(0).validations);
+            assertTrue(opened.get(0).closed, "the stale connection wasn't closed");
+            assertEquals(2, opened.size());
+            assertSame(opened.get(1).proxy, connection.physical());
+        }
+        assertEquals(1, pool.openCount());
+        assertTrue(pool.getStats().contains("1 invalid"), pool.getStats());
+    }
+}
+
+@Test
+void evictorShrinksThePoolToTheMinimumSize() throws Exception {
+    try (ConnectionPool pool = pool(2, 4, 1_000, IDLE_TIMEOUT_MILLIS)) {
+        PooledConnection[] connections = new PooledConnection[4];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = pool.borrow();
+        }
+        for (PooledConnection connection : connections) {
+            connection.close();
+        }
+        assertEquals(4, pool.idleCount());
+
+        Thread.sleep(IDLE_TIMEOUT_MILLIS * 2);
+        pool.evictIdle();
+        assertEquals(2, pool.openCount());
+        assertEquals(2, pool.idleCount());
+        assertEquals(2, opened.stream().filter(connection -> connection.closed).count());
+        // Evicting again never goes below the minimum
+        pool.evictIdle();
+        assertEquals(2, pool.openCount());
+    }
+}
+
+@Test
+void borrowerThatThrowsDoesNotLeakItsConnection() throws SQLException {
+    try (ConnectionPool pool = pool(0, 1, 100, NO_IDLE_TIMEOUT_MILLIS)) {
+        assertThrows(IllegalStateException.class, () -> {
+            try (UnitOfWork work = new UnitOfWork(pool)) {
+                throw new IllegalStateException("command failed");
+            }
+        });
+        assertEquals(1, pool.openCount());
+        assertEquals(1, pool.idleCount());
+        FakeConnection connection = opened.get(0);
+        assertTrue(connection.rollbacks > 0, "the open transaction wasn't rolled back");
+        assertTrue(connection.autoCommit, "the connection went back to the pool mid-transaction");
+        // With only one connection, the next borrower would time out if it had leaked
+        pool.borrow().close();
+        assertEquals(1, opened.size());
+    }
+}
+
+@Test
+void failedConnectDoesNotLeakItsSlot() throws SQLException {
+    try (ConnectionPool pool = pool(0, 1, 100, NO_IDLE_TIMEOUT_MILLIS)) {
+        connectFails = true;
+        assertThrows(SQLException.class, pool::borrow);
+        assertEquals(0, pool.openCount());
+        connectFails = false;
+        pool.borrow().close();
+        assertEquals(1, pool.openCount());
+    }
+}
+}
@@ -0,0 +1,132 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Plans for slow statements are fetched by the log's writer on a connection of its own, against stand-in connections
+class SlowQueryLogTest {
+private static final String PLAN = "<ShowPlanXML/>";
+
+// A connection that answers SHOWPLAN statements, and can be told to fail switching SHOWPLAN off again
+private static final class ShowplanConnection {
+    final boolean offFails;
+    volatile boolean closed = false;
+    volatile boolean showplan = false;
+    volatile String planned = null;
+    final Connection proxy;
+
+    ShowplanConnection(boolean offFails) {
+        this.offFails = offFails;
+        this.proxy = (Connection) Proxy.newProxyInstance(ShowplanConnection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createStatement":
+                            return statement();
+                        case "isClosed":
+                            return closed;
+                        case "close":
+                            closed = true;
+                            return null;
+                        case "getAutoCommit":
+                            return true;
+                        case "isValid":
+                            return true;
+                        default:
+                            return ignore(method);
+                    }
+                });
+    }
+
+    private Object statement() {
+        return Proxy.newProxyInstance(ShowplanConnection.class.getClassLoader(), new Class<?>[] {Statement.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "execute":
+                            if (args[0].equals("SET SHOWPLAN_XML ON")) {
+                                showplan = true;
+                            } else if (offFails) {
+                                throw new SQLException("Connection reset");
+                            } else {
+                                showplan = false;
+                            }
+                            return false;
+                        case "executeQuery":
+                            planned = (String) args[0];
+                            return resultSet();
+                        default:
+                            return ignore(method);
+                    }
+                });
+    }
+
+    private static Object resultSet() {
+        return Proxy.newProxyInstance(ShowplanConnection.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return true;
+                        case "getString":
+                            return PLAN;
+                        default:
+                            return ignore(method);
+                    }
+                });
+    }
+
+    // Close returns nothing, anything else the test didn't expect to be called
+    private static Object ignore(Method method) {
+        if (method.getReturnType() == void.class) {
+            return null;
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+}
+
+@TempDir
+Path directory;
+
+@Test
+void planIsFetchedByTheWriterAndTheConnectionReturned() throws Exception {
+    ShowplanConnection connection = new ShowplanConnection(false);
+    Path file = directory.resolve("slow.log");
+    try (ConnectionPool pool = new ConnectionPool(() -> connection.proxy, 0, 1, 1_000, 60_000)) {
+        SlowQueryLog log = new SlowQueryLog(file, 0, pool);
+        log.record("searchTitle", null, new String[] {"dune", "0", "50"}, 1_000_000, 3);
+        log.close();
+
+        assertEquals("EXEC searchTitle N'dune', N'0', N'50'", connection.planned);
+        assertFalse(connection.showplan);
+        assertFalse(connection.closed);
+        assertEquals(1, pool.idleCount());
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith(",\"plan\":\"" + PLAN + "\"}"), lines.get(0));
+    }
+}
+
+@Test
+void connectionLeftInShowplanModeIsDiscarded() throws Exception {
+    ShowplanConnection connection = new ShowplanConnection(true);
+    Path file = directory.resolve("slow.log");
+    try (ConnectionPool pool = new ConnectionPool(() -> connection.proxy, 0, 1, 1_000, 60_000)) {
+        SlowQueryLog log = new SlowQueryLog(file, 0, pool);
+        log.record("searchTitle", null, new String[] {"dune", "0", "50"}, 1_000_000, 3);
+        log.close();
+
+        assertTrue(connection.closed, "a connection still in SHOWPLAN mode went back to the pool");
+        assertEquals(0, pool.openCount());
+        assertTrue(log.getStats().contains("1 connections closed"), log.getStats());
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertFalse(lines.get(0).contains("\"plan\""), lines.get(0));
+        assertTrue(lines.get(0).endsWith("}"), lines.get(0));
+    }
+}
+}